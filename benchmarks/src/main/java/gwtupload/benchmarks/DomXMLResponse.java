@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import static gwtupload.shared.UConsts.TAG_CTYPE;
+import static gwtupload.shared.UConsts.TAG_FIELD;
+import static gwtupload.shared.UConsts.TAG_FILE;
+import static gwtupload.shared.UConsts.TAG_FILES;
+import static gwtupload.shared.UConsts.TAG_KEY;
+import static gwtupload.shared.UConsts.TAG_NAME;
+import static gwtupload.shared.UConsts.TAG_PARAM;
+import static gwtupload.shared.UConsts.TAG_PARAMS;
+import static gwtupload.shared.UConsts.TAG_RESPONSE;
+import static gwtupload.shared.UConsts.TAG_SIZE;
+import static gwtupload.shared.UConsts.TAG_VALUE;
+
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The XMLResponse used before it was written without DOM: a new DocumentBuilder
+ * per response and a new indenting Transformer per rendering. It is kept here as
+ * the baseline of {@link XMLResponseBenchmark}.
+ */
+public class DomXMLResponse {
+  private Node filesNode;
+  private Node paramsNode;
+  private Document responseDocument;
+  private Node responseNode;
+
+  public DomXMLResponse() {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance("com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl", null);
+    DocumentBuilder builder;
+    try {
+      builder = dbf.newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    }
+    responseDocument = builder.newDocument();
+    responseNode = responseDocument.createElement(TAG_RESPONSE);
+    responseDocument.appendChild(responseNode);
+  }
+
+  public void addFile(String fieldName, String fileName, long size, String contentType, String key) {
+    Node fileNode = responseDocument.createElement(TAG_FILE);
+    appendTag(fileNode, TAG_FIELD, fieldName);
+    appendTag(fileNode, TAG_NAME, fileName);
+    appendTag(fileNode, TAG_SIZE, String.valueOf(size));
+    appendTag(fileNode, TAG_CTYPE, contentType);
+    if (key != null) {
+      appendTag(fileNode, TAG_KEY, key);
+    }
+    filesNode.appendChild(fileNode);
+  }
+
+  public void addParam(String key, String value) {
+    Node paramNode = responseDocument.createElement(TAG_PARAM);
+    appendTag(paramNode, TAG_FIELD, key);
+    appendTag(paramNode, TAG_VALUE, value);
+    paramsNode.appendChild(paramNode);
+  }
+
+  public void addResponseTag(String tagName, String value) {
+    appendTag(responseNode, tagName, value);
+  }
+
+  public String getXML() {
+    try {
+      Transformer tf = TransformerFactory.newInstance().newTransformer();
+      tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      tf.setOutputProperty(OutputKeys.INDENT, "yes");
+      Writer out = new StringWriter();
+      tf.transform(new DOMSource(responseDocument), new StreamResult(out));
+      return out.toString();
+    } catch (TransformerException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void prepareFilesParams() {
+    filesNode = appendTag(responseNode, TAG_FILES, null);
+    paramsNode = appendTag(responseNode, TAG_PARAMS, null);
+  }
+
+  private Node appendTag(Node parent, String tagName, String value) {
+    Element el = responseDocument.createElement(tagName);
+    if (value != null) {
+      el.appendChild(responseDocument.createTextNode(value));
+    }
+    return parent.appendChild(el);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>
+ * In-memory requests and sessions to call the servlet without a container.
+ * </p>
+ *
+ * They implement only what the servlet and commons-fileupload use when receiving
+ * a multipart request, other methods return null, false or 0.
+ */
+public class FakeRequests {
+
+  static final String BOUNDARY = "----gwtuploadBenchmarkBoundary7MA4YWxkTrZu0gW";
+
+  /**
+   * Input stream of a byte array, without the synchronization of ByteArrayInputStream.
+   */
+  private static class BytesInputStream extends ServletInputStream {
+    private final byte[] data;
+    private int pos = 0;
+
+    BytesInputStream(byte[] data) {
+      this.data = data;
+    }
+
+    public int available() {
+      return data.length - pos;
+    }
+
+    public boolean isFinished() {
+      return pos >= data.length;
+    }
+
+    public boolean isReady() {
+      return true;
+    }
+
+    public int read() {
+      return pos < data.length ? data[pos++] & 0xff : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (pos >= data.length) {
+        return -1;
+      }
+      int n = Math.min(len, data.length - pos);
+      System.arraycopy(data, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    public void setReadListener(ReadListener listener) {
+      throw new IllegalStateException("Not an asynchronous request");
+    }
+  }
+
+  private static int sessionCounter = 0;
+
+  /**
+   * Build the body of a multipart request with a number of files of random content.
+   */
+  public static byte[] multipartBody(int parts, int partSize) {
+    try {
+      Random random = new Random(parts * 31 + partSize);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(parts * (partSize + 256));
+      byte[] content = new byte[partSize];
+      for (int i = 0; i < parts; i++) {
+        random.nextBytes(content);
+        out.write(("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file-" + i + "\"; filename=\"file-" + i + ".bin\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8"));
+        out.write(content);
+        out.write("\r\n".getBytes("UTF-8"));
+      }
+      out.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Create a POST request with a multipart body. Each request has a new session.
+   */
+  public static HttpServletRequest multipartRequest(final byte[] body) {
+    final HttpSession session = newSession();
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final ServletInputStream in = new BytesInputStream(body);
+    return proxy(HttpServletRequest.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getSession")) {
+          return session;
+        } else if (name.equals("getMethod")) {
+          return "POST";
+        } else if (name.equals("getContentType")) {
+          return "multipart/form-data; boundary=" + BOUNDARY;
+        } else if (name.equals("getContentLength")) {
+          return body.length;
+        } else if (name.equals("getContentLengthLong")) {
+          return (long) body.length;
+        } else if (name.equals("getHeader")) {
+          String header = (String) args[0];
+          if (header.equalsIgnoreCase("Content-Length")) {
+            return String.valueOf(body.length);
+          } else if (header.equalsIgnoreCase("Content-Type")) {
+            return "multipart/form-data; boundary=" + BOUNDARY;
+          }
+          return null;
+        } else if (name.equals("getInputStream")) {
+          return in;
+        } else if (name.equals("getAttribute")) {
+          return attributes.get(args[0]);
+        } else if (name.equals("setAttribute")) {
+          attributes.put((String) args[0], args[1]);
+          return null;
+        } else if (name.equals("removeAttribute")) {
+          attributes.remove(args[0]);
+          return null;
+        } else if (name.equals("getParameterMap")) {
+          return Collections.emptyMap();
+        } else if (name.equals("getRemoteAddr")) {
+          return "127.0.0.1";
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * Create a session which keeps its attributes in a map.
+   */
+  public static synchronized HttpSession newSession() {
+    final String id = "benchmark-" + sessionCounter++;
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    return proxy(HttpSession.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getId")) {
+          return id;
+        } else if (name.equals("getAttribute")) {
+          return attributes.get(args[0]);
+        } else if (name.equals("setAttribute")) {
+          attributes.put((String) args[0], args[1]);
+          return null;
+        } else if (name.equals("removeAttribute")) {
+          attributes.remove(args[0]);
+          return null;
+        } else if (name.equals("getAttributeNames")) {
+          return Collections.enumeration(attributes.keySet());
+        } else if (name.equals("hashCode")) {
+          return System.identityHashCode(proxy);
+        } else if (name.equals("equals")) {
+          return proxy == args[0];
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(FakeRequests.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import gwtupload.server.MemoryFileItemFactory;
+import gwtupload.server.UploadServlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a file to the items of the factories, in blocks of the size used by
+ * commons-fileupload, and deleting it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileItemFactoryBenchmark {
+
+  private static final int BLOCK_SIZE = 8192;
+
+  private byte[] block;
+
+  @Param({"4096", "65536", "4194304"})
+  public int size;
+
+  @Setup
+  public void setup() {
+    block = new byte[BLOCK_SIZE];
+    new Random(size).nextBytes(block);
+  }
+
+  @Benchmark
+  public long defaultFactory() throws IOException {
+    return write(new UploadServlet.DefaultFileItemFactory());
+  }
+
+  @Benchmark
+  public long memoryFactory() throws IOException {
+    return write(new MemoryFileItemFactory(size));
+  }
+
+  private long write(FileItemFactory factory) throws IOException {
+    FileItem item = factory.createItem("file", "application/octet-stream", false, "file.bin");
+    OutputStream out = item.getOutputStream();
+    for (int done = 0; done < size; done += BLOCK_SIZE) {
+      out.write(block, 0, Math.min(BLOCK_SIZE, size - done));
+    }
+    out.close();
+    long ret = item.getSize();
+    item.delete();
+    return ret;
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import static gwtupload.shared.UConsts.PARAM_BATCH;
+import static gwtupload.shared.UConsts.PARAM_FILENAME;
+import static gwtupload.shared.UConsts.PARAM_REMOVE;
+import static gwtupload.shared.UConsts.PARAM_SESSION;
+import static gwtupload.shared.UConsts.PARAM_SHOW;
+import static gwtupload.shared.UConsts.PARAM_UPLOAD_ID;
+import static gwtupload.shared.UConsts.TAG_ERROR;
+import gwtupload.server.UploadAction;
+import gwtupload.server.UploadServlet;
+import gwtupload.server.exceptions.UploadActionException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * <p>
+ * Load test of the servlets with simulated browsers.
+ * </p>
+ *
+ * It runs UploadServlet and UploadAction in an embedded Jetty on localhost, or
+ * targets a running server with -url, and starts a number of clients which
+ * repeat what the gwt client does: ask for a new session, post a multipart
+ * request with the files while polling its status, show the uploaded file and
+ * remove it. At the end it prints the latency percentiles of each kind of
+ * request, the throughput, and the peak usage of threads and heap of the server.
+ *
+ * The clients run in the same JVM as the embedded server, so the heap reported
+ * includes theirs, which is small compared with the uploads being received.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar gwtupload.benchmarks.LoadTest \
+ *   -clients 50 -duration 60 -files 2 -size 1048576 -servlet action
+ * </pre>
+ */
+public class LoadTest {
+
+  // The response of remove is <error>true</error> when it succeeds
+  private static final Pattern ERROR = Pattern.compile("<" + TAG_ERROR + ">(?!true</" + TAG_ERROR + ">)");
+
+  /**
+   * Action which discards the files, like most applications do after processing them.
+   */
+  public static class LoadTestAction extends UploadAction {
+    private static final long serialVersionUID = 1L;
+
+    public String executeAction(HttpServletRequest request, List<FileItem> sessionFiles) throws UploadActionException {
+      long size = 0;
+      for (FileItem item : sessionFiles) {
+        size += item.getSize();
+      }
+      return String.valueOf(size);
+    }
+  }
+
+  /**
+   * Latencies of a kind of request.
+   */
+  static class Recorder {
+    private int count = 0;
+    private int errors = 0;
+    private long[] micros = new long[1024];
+
+    synchronized void error() {
+      errors++;
+    }
+
+    synchronized void record(long nanos) {
+      if (count == micros.length) {
+        micros = Arrays.copyOf(micros, count * 2);
+      }
+      micros[count++] = nanos / 1000;
+    }
+
+    synchronized String report(String name, double seconds) {
+      long[] sorted = Arrays.copyOf(micros, count);
+      Arrays.sort(sorted);
+      return String.format(Locale.ROOT, "%-8s %8d %6d %9.1f %10.2f %10.2f %10.2f", name, count, errors, count / seconds,
+          percentile(sorted, 50) / 1000.0, percentile(sorted, 99) / 1000.0, count == 0 ? 0 : sorted[count - 1] / 1000.0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+      return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * p / 100) - 1)];
+    }
+  }
+
+  /**
+   * A browser uploading files until the test ends.
+   */
+  class Client extends Thread {
+    private String cookie;
+    private final int id;
+    private int requests = 0;
+
+    Client(int id) {
+      super("load-client-" + id);
+      this.id = id;
+    }
+
+    public void run() {
+      try {
+        while (System.currentTimeMillis() < deadline) {
+          long start = System.nanoTime();
+          try {
+            upload();
+            uploads.incrementAndGet();
+            uploadedBytes.addAndGet((long) files * size);
+          } catch (IOException e) {
+            failures.incrementAndGet();
+          }
+          recorders.get("upload").record(System.nanoTime() - start);
+        }
+      } finally {
+        finished.countDown();
+      }
+    }
+
+    private void upload() throws IOException {
+      if (cookie == null) {
+        HttpURLConnection conn = request("session", PARAM_SESSION + "=true", false);
+        String setCookie = conn.getHeaderField("Set-Cookie");
+        cookie = setCookie == null ? null : setCookie.replaceFirst(";.*$", "");
+      }
+      final String field = "file-" + id + "-" + requests++;
+      final AtomicBoolean posted = new AtomicBoolean();
+      // Status requests are sent while the files are posted, like the gwt client does
+      Thread poller = new Thread(getName() + "-status") {
+        public void run() {
+          int counter = 0;
+          try {
+            while (!posted.get()) {
+              Thread.sleep(statusInterval);
+              if (!posted.get()) {
+                request("status", PARAM_BATCH + "=true&" + PARAM_FILENAME + "=" + encode(field) + "&c=" + counter++, false);
+              }
+            }
+          } catch (Exception e) {
+            // The status requests stop when the upload finishes or the server fails
+          }
+        }
+      };
+      poller.start();
+      try {
+        request("post", PARAM_UPLOAD_ID + "=" + encode(field), true);
+      } finally {
+        posted.set(true);
+      }
+      // Files have the names given by FakeRequests, and each client has its own session
+      request("show", PARAM_SHOW + "=file-0.bin", false);
+      request("remove", PARAM_REMOVE + "=file-0.bin", false);
+    }
+
+    private HttpURLConnection request(String kind, String query, boolean post) throws IOException {
+      Recorder recorder = recorders.get(kind);
+      long start = System.nanoTime();
+      try {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url + "?" + query).openConnection();
+        if (cookie != null) {
+          conn.setRequestProperty("Cookie", cookie);
+        }
+        if (post) {
+          conn.setDoOutput(true);
+          conn.setRequestMethod("POST");
+          conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + FakeRequests.BOUNDARY);
+          conn.setFixedLengthStreamingMode(body.length);
+          OutputStream out = conn.getOutputStream();
+          out.write(body);
+          out.close();
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        // The content of the files is read but not kept
+        String text = read(in, status < 400 && kind.equals("show"));
+        if (status >= 400 || ERROR.matcher(text).find()) {
+          throw new IOException(kind + " failed with status " + status + ": " + text);
+        }
+        recorder.record(System.nanoTime() - start);
+        return conn;
+      } catch (IOException e) {
+        recorder.error();
+        throw e;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String name = args[i].replaceFirst("^-+", "");
+      String value = args[i + 1];
+      if (name.equals("clients")) {
+        test.clients = Integer.parseInt(value);
+      } else if (name.equals("duration")) {
+        test.duration = Integer.parseInt(value);
+      } else if (name.equals("files")) {
+        test.files = Integer.parseInt(value);
+      } else if (name.equals("size")) {
+        test.size = Integer.parseInt(value);
+      } else if (name.equals("status")) {
+        test.statusInterval = Integer.parseInt(value);
+      } else if (name.equals("servlet")) {
+        test.servlet = value;
+      } else if (name.equals("url")) {
+        test.url = value;
+      } else {
+        System.err.println("Unknown option: " + args[i]
+            + "\nOptions: -clients n -duration seconds -files n -size bytes -status millis -servlet servlet|action -url url");
+        System.exit(1);
+      }
+    }
+    test.run();
+  }
+
+  private static String encode(String value) throws IOException {
+    return URLEncoder.encode(value, "UTF-8");
+  }
+
+  private static String read(InputStream in, boolean discard) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try {
+      for (int n; (n = in.read(buffer)) > 0;) {
+        if (!discard) {
+          out.write(buffer, 0, n);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return out.toString("UTF-8");
+  }
+
+  private byte[] body;
+  private int clients = 10;
+  private long deadline;
+  private int duration = 30;
+  private final AtomicLong failures = new AtomicLong();
+  private int files = 1;
+  private CountDownLatch finished;
+  private final Map<String, Recorder> recorders = new LinkedHashMap<String, Recorder>();
+  private String servlet = "servlet";
+  private int size = 1024 * 1024;
+  private int statusInterval = 1500;
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final AtomicLong uploads = new AtomicLong();
+  private String url;
+
+  LoadTest() {
+    for (String kind : new String[] {"session", "post", "status", "show", "remove", "upload"}) {
+      recorders.put(kind, new Recorder());
+    }
+  }
+
+  void run() throws Exception {
+    body = FakeRequests.multipartBody(files, size);
+    Server server = null;
+    QueuedThreadPool pool = null;
+    if (url == null) {
+      pool = new QueuedThreadPool(200, 8);
+      server = new Server(pool);
+      ServerConnector connector = new ServerConnector(server);
+      connector.setHost("127.0.0.1");
+      connector.setPort(0);
+      server.addConnector(connector);
+      ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+      context.setContextPath("/");
+      context.setInitParameter("maxSize", String.valueOf(Long.MAX_VALUE));
+      context.setInitParameter("maxFileSize", String.valueOf(Long.MAX_VALUE));
+      ServletHolder holder = new ServletHolder("action".equals(servlet) ? new LoadTestAction() : new UploadServlet());
+      holder.setAsyncSupported(true);
+      context.addServlet(holder, "/upload.gupld");
+      server.setHandler(context);
+      server.start();
+      url = "http://127.0.0.1:" + connector.getLocalPort() + "/upload.gupld";
+    }
+
+    System.out.println("Load test of " + url + ": " + clients + " clients, " + duration + " seconds, "
+        + files + " files of " + size + " bytes per upload, status every " + statusInterval + " ms");
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long peakHeap = 0;
+    int peakThreads = 0;
+    int peakBusyThreads = 0;
+
+    deadline = System.currentTimeMillis() + duration * 1000L;
+    finished = new CountDownLatch(clients);
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      new Client(i).start();
+    }
+    while (finished.getCount() > 0) {
+      finished.await(1, TimeUnit.SECONDS);
+      peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+      if (pool != null) {
+        peakThreads = Math.max(peakThreads, pool.getThreads());
+        peakBusyThreads = Math.max(peakBusyThreads, pool.getThreads() - pool.getIdleThreads());
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(String.format(Locale.ROOT, "%-8s %8s %6s %9s %10s %10s %10s", "request", "count", "errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+    for (Map.Entry<String, Recorder> e : recorders.entrySet()) {
+      System.out.println(e.getValue().report(e.getKey(), seconds));
+    }
+    System.out.println(String.format(Locale.ROOT, "uploads: %d ok, %d failed, %.1f uploads/s, %.2f MB/s",
+        uploads.get(), failures.get(), uploads.get() / seconds, uploadedBytes.get() / seconds / 1048576));
+    System.out.println(String.format(Locale.ROOT, "peak heap: %.1f MB", peakHeap / 1048576.0)
+        + (pool != null ? ", server threads: " + peakThreads + " (" + peakBusyThreads + " busy at most)" : ""));
+
+    if (server != null) {
+      server.stop();
+    }
+  }
+}
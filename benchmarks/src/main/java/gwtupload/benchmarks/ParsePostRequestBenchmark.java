@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import gwtupload.server.MemoryFileItemFactory;
+import gwtupload.server.UploadServlet;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of parsePostRequest receiving multipart requests held in memory,
+ * so it measures the parser, the file items and the bookkeeping of the servlet
+ * but not the network.
+ *
+ * Each operation is a request of a new session, and its items are deleted
+ * afterwards so the temporary directory does not grow.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsePostRequestBenchmark {
+
+  /**
+   * Servlet exposing the method to measure.
+   */
+  static class BenchmarkServlet extends UploadServlet {
+    private static final long serialVersionUID = 1L;
+    final boolean memory;
+    final int requestSize;
+
+    BenchmarkServlet(boolean memory, int requestSize) {
+      this.memory = memory;
+      this.requestSize = requestSize;
+      maxSize = Long.MAX_VALUE;
+      maxFileSize = Long.MAX_VALUE;
+    }
+
+    protected FileItemFactory getFileItemFactory(long size) {
+      return memory ? new MemoryFileItemFactory(requestSize) : super.getFileItemFactory(size);
+    }
+
+    String parse(HttpServletRequest request) {
+      try {
+        return parsePostRequest(request, null);
+      } finally {
+        removeCurrentListener(request);
+        removeSessionFileItems(request);
+      }
+    }
+  }
+
+  private byte[] body;
+
+  @Param({"disk", "memory"})
+  public String factory;
+
+  @Param({"1", "10"})
+  public int parts;
+
+  @Param({"1024", "1048576"})
+  public int partSize;
+
+  private BenchmarkServlet servlet;
+
+  @Benchmark
+  public String parse() {
+    return servlet.parse(FakeRequests.multipartRequest(body));
+  }
+
+  @Setup
+  public void setup() {
+    body = FakeRequests.multipartBody(parts, partSize);
+    servlet = new BenchmarkServlet("memory".equals(factory), body.length);
+  }
+}
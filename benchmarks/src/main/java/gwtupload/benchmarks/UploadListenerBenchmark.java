@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import gwtupload.server.AbstractUploadListener;
+import gwtupload.server.UploadListener;
+import gwtupload.server.UploadMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of AbstractUploadListener.update, called by the parser for each block of
+ * bytes received, with and without metrics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UploadListenerBenchmark {
+
+  private static final long TOTAL = Long.MAX_VALUE / 2;
+
+  private long done;
+
+  private AbstractUploadListener listener;
+
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  @Setup
+  public void setup() {
+    if (metrics) {
+      UploadMetrics.register();
+    }
+    listener = new UploadListener(FakeRequests.multipartRequest(new byte[0]), 0, TOTAL);
+    done = 0;
+  }
+
+  @TearDown
+  public void tearDown() {
+    listener.remove();
+    if (metrics) {
+      UploadMetrics.unregister();
+    }
+  }
+
+  @Benchmark
+  public void update() {
+    done += 4096;
+    listener.update(done, TOTAL, 1);
+  }
+}
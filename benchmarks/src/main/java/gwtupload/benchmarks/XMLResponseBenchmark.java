@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.benchmarks;
+
+import static gwtupload.shared.UConsts.TAG_CURRENT_BYTES;
+import static gwtupload.shared.UConsts.TAG_FINISHED;
+import static gwtupload.shared.UConsts.TAG_PERCENT;
+import static gwtupload.shared.UConsts.TAG_TOTAL_BYTES;
+import gwtupload.server.XMLResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and rendering the responses of the servlet, comparing the streaming
+ * XMLResponse, in xml and json, with the former DOM implementation.
+ *
+ * A response with 0 files is a status response, the most frequent one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class XMLResponseBenchmark {
+
+  @Param({"0", "1", "10"})
+  public int files;
+
+  @Benchmark
+  public String dom() {
+    DomXMLResponse response = new DomXMLResponse();
+    if (files == 0) {
+      response.addResponseTag(TAG_PERCENT, "42");
+      response.addResponseTag(TAG_CURRENT_BYTES, "440401");
+      response.addResponseTag(TAG_TOTAL_BYTES, "1048576");
+    } else {
+      response.prepareFilesParams();
+      for (int i = 0; i < files; i++) {
+        response.addFile("file-" + i, "photo & notes <" + i + ">.jpg", 1048576L * i, "image/jpeg", null);
+      }
+      response.addParam("description", "uploaded files");
+      response.addResponseTag(TAG_FINISHED, "ok");
+    }
+    return response.getXML();
+  }
+
+  @Benchmark
+  public String json() {
+    return build().getJSON();
+  }
+
+  @Benchmark
+  public String xml() {
+    return build().getXML();
+  }
+
+  private XMLResponse build() {
+    XMLResponse response = new XMLResponse();
+    if (files == 0) {
+      response.addResponseTag(TAG_PERCENT, "42");
+      response.addResponseTag(TAG_CURRENT_BYTES, "440401");
+      response.addResponseTag(TAG_TOTAL_BYTES, "1048576");
+    } else {
+      response.prepareFilesParams();
+      for (int i = 0; i < files; i++) {
+        response.addFile("file-" + i, "photo & notes <" + i + ">.jpg", 1048576L * i, "image/jpeg", null);
+      }
+      response.addParam("description", "uploaded files");
+      response.addResponseTag(TAG_FINISHED, "ok");
+    }
+    return response;
+  }
+}
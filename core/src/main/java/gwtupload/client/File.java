@@ -8,4 +8,16 @@ public class File extends JavaScriptObject {
   public final native String getName() /*-{
 		return this.name;
 	}-*/;
+
+  public final native double getSize() /*-{
+		return this.size || 0;
+	}-*/;
+
+  public final native String getType() /*-{
+		return this.type || "";
+	}-*/;
+
+  public final native double getLastModified() /*-{
+		return this.lastModified || 0;
+	}-*/;
 }
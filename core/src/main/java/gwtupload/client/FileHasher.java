@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.client;
+
+/**
+ * <p>
+ * Computes the digest of a file in the browser.
+ * </p>
+ *
+ * The file is read and hashed with Web Crypto in a Web Worker, so the page does not
+ * freeze while large files are processed. Web Crypto does not hash incrementally,
+ * so the whole file is loaded in the worker's memory.
+ */
+public class FileHasher {
+
+  /**
+   * Notifications of the result.
+   */
+  public interface FileHasherHandler {
+    void onDigest(String digest);
+
+    void onError(String message);
+  }
+
+  /**
+   * The algorithm used, with the name given to it by Web Crypto and by the server.
+   */
+  public static final String ALGORITHM = "SHA-256";
+
+  /**
+   * Return true if the browser is able to hash files in a worker.
+   */
+  public static native boolean isSupported() /*-{
+    return !!($wnd.Worker && $wnd.Blob && $wnd.URL && $wnd.URL.createObjectURL && $wnd.crypto && $wnd.crypto.subtle);
+  }-*/;
+
+  private final FileHasherHandler handler;
+
+  public FileHasher(FileHasherHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Start hashing a file, the handler is notified when it finishes.
+   */
+  public native void hash(File file, String algorithm) /*-{
+    var instance = this;
+    if (!$wnd.__gwtuploadHasherUrl) {
+      var src = "self.onmessage = function(e) {"
+        + "  var f = e.data.file;"
+        + "  var p = f.arrayBuffer ? f.arrayBuffer() : Promise.resolve(new FileReaderSync().readAsArrayBuffer(f));"
+        + "  p.then(function(b) { return self.crypto.subtle.digest(e.data.algorithm, b); }).then(function(d) {"
+        + "    var h = '', a = new Uint8Array(d);"
+        + "    for (var i = 0; i < a.length; i++) { h += (a[i] < 16 ? '0' : '') + a[i].toString(16); }"
+        + "    self.postMessage({digest: h});"
+        + "  }, function(err) { self.postMessage({error: String(err)}); });"
+        + "};";
+      $wnd.__gwtuploadHasherUrl = $wnd.URL.createObjectURL(new $wnd.Blob([src], {type: "text/javascript"}));
+    }
+    try {
+      var worker = new $wnd.Worker($wnd.__gwtuploadHasherUrl);
+      worker.onmessage = $entry(function(e) {
+        worker.terminate();
+        if (e.data.digest) {
+          instance.@gwtupload.client.FileHasher::onDigest(Ljava/lang/String;)(e.data.digest);
+        } else {
+          instance.@gwtupload.client.FileHasher::onError(Ljava/lang/String;)(e.data.error);
+        }
+      });
+      worker.onerror = $entry(function(e) {
+        worker.terminate();
+        instance.@gwtupload.client.FileHasher::onError(Ljava/lang/String;)(e.message || "worker error");
+      });
+      worker.postMessage({file: file, algorithm: algorithm});
+    } catch (e) {
+      instance.@gwtupload.client.FileHasher::onError(Ljava/lang/String;)(String(e));
+    }
+  }-*/;
+
+  // This is invoked from hash()
+  private void onDigest(String digest) {
+    handler.onDigest(digest);
+  }
+
+  // This is invoked from hash()
+  private void onError(String message) {
+    handler.onError(message);
+  }
+}
@@ -106,7 +106,7 @@ public interface IUploader extends HasJsData, HasWidgets, IsWidget {
     @Override
     public String toString() {
       return "UploadedInfo [field=" + field + ", name=" + name + ", ctype=" + ctype + ", size="
-          + size + ", key=" + key + ", fileUrl=" + fileUrl + ", message=" + message + "]";
+          + size + ", key=" + key + ", digest=" + digest + ", fileUrl=" + fileUrl + ", message=" + message + "]";
     }
 
     /**
@@ -120,6 +120,11 @@ public interface IUploader extends HasJsData, HasWidgets, IsWidget {
      */
     public String key;
 
+    /**
+     * Digest of the content computed in the server, when it is configured to do it.
+     */
+    public String digest;
+
     /**
      * Url to download the file from the server using gwtupload servlet.
      */
@@ -155,6 +160,14 @@ public interface IUploader extends HasJsData, HasWidgets, IsWidget {
       this.key = key;
     }
 
+    public String getDigest() {
+      return digest;
+    }
+
+    public void setDigest(String digest) {
+      this.digest = digest;
+    }
+
     public void setName(String name) {
       this.name = name;
     }
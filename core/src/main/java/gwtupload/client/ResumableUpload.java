@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.client;
+
+import static gwtupload.shared.UConsts.PARAM_CHUNK_SIZE;
+import static gwtupload.shared.UConsts.PARAM_CTYPE;
+import static gwtupload.shared.UConsts.PARAM_FILENAME;
+import static gwtupload.shared.UConsts.PARAM_NAME;
+import static gwtupload.shared.UConsts.PARAM_RESUME;
+import static gwtupload.shared.UConsts.PARAM_UPLOAD_ID;
+import static gwtupload.shared.UConsts.TAG_CURRENT_BYTES;
+import static gwtupload.shared.UConsts.TAG_ERROR;
+import static gwtupload.shared.UConsts.TAG_FINISHED;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * <p>
+ * Sends a file to the server in chunks using XMLHttpRequest.
+ * </p>
+ *
+ * Each chunk is sent in a PUT request with a Content-Range header. Several
+ * chunks can be sent at the same time through different connections, which
+ * the server writes at their positions in any order. When a request fails,
+ * it asks the server for the committed offset of the upload and continues
+ * from there, so data already received is not sent again.
+ *
+ * The upload id is computed from the name, size and date of the file, so an
+ * upload interrupted can be resumed even if the user selects the file again.
+ */
+public class ResumableUpload {
+
+  /**
+   * Notifications of the progress of a resumable upload.
+   */
+  public interface ResumableUploadHandler {
+    void onProgress(double done, double total);
+
+    void onComplete(String serverResponse);
+
+    void onError(String message);
+  }
+
+  private static final int MAX_RETRIES = 10;
+  private static final int RETRY_DELAY = 2000;
+
+  /**
+   * Return the files selected in a file input element or in any of its children.
+   */
+  public static native FileList getFiles(Element element) /*-{
+    var input = element.tagName == 'INPUT' ? element : (element.querySelector ? element.querySelector('input[type=file]') : null);
+    return input && input.files ? input.files : null;
+  }-*/;
+
+  /**
+   * Return true if the browser is able to send slices of files.
+   */
+  public static native boolean isSupported() /*-{
+    return !!($wnd.File && $wnd.Blob && $wnd.Blob.prototype.slice && $wnd.XMLHttpRequest);
+  }-*/;
+
+  private boolean canceled = false;
+  private int chunkSize;
+  private int concurrency;
+  private boolean failed = false;
+  private String fieldName;
+  private File file;
+  private ResumableUploadHandler handler;
+  private double nextOffset = 0;
+  private JavaScriptObject requests = JavaScriptObject.createArray();
+  private int retries = 0;
+  private double sentBytes = 0;
+  private ISession session;
+  private String uploadId;
+
+  public ResumableUpload(ISession session, File file, String fieldName, int chunkSize, ResumableUploadHandler handler) {
+    this(session, file, fieldName, chunkSize, 1, handler);
+  }
+
+  /**
+   * @param concurrency the maximum number of chunks sent at the same time
+   */
+  public ResumableUpload(ISession session, File file, String fieldName, int chunkSize, int concurrency, ResumableUploadHandler handler) {
+    this.session = session;
+    this.file = file;
+    this.fieldName = fieldName;
+    this.chunkSize = chunkSize;
+    this.concurrency = Math.max(1, concurrency);
+    this.handler = handler;
+    uploadId = Integer.toHexString((file.getName() + file.getSize() + file.getLastModified()).hashCode()) + "-" + (long) file.getSize();
+  }
+
+  /**
+   * Abort the requests in progress, the data already sent is kept in the server.
+   */
+  public void cancel() {
+    canceled = true;
+    abortAll(requests);
+  }
+
+  public String getUploadId() {
+    return uploadId;
+  }
+
+  /**
+   * Ask the server for the committed offset and start sending from there.
+   */
+  public void start() {
+    session.sendRequest("resume", new RequestCallback() {
+      public void onResponseReceived(Request request, Response response) {
+        long offset = 0;
+        try {
+          String value = ServerResponse.parse(response.getText()).get(TAG_CURRENT_BYTES);
+          offset = value == null ? 0 : Long.parseLong(value);
+        } catch (Exception e) {
+          Uploader.log("ResumableUpload: unable to parse offset, starting from 0", e);
+        }
+        failed = false;
+        nextOffset = sentBytes = offset;
+        sendChunks();
+      }
+
+      public void onError(Request request, Throwable exception) {
+        retry(exception.getMessage());
+      }
+    }, PARAM_RESUME + "=true", PARAM_UPLOAD_ID + "=" + uploadId, Uploader.getFormatParam());
+  }
+
+  /**
+   * Send the following chunks until the maximum number of concurrent requests is reached.
+   */
+  private void sendChunks() {
+    double total = file.getSize();
+    while (!canceled && !failed && size(requests) < concurrency && nextOffset < total) {
+      double end = Math.min(nextOffset + chunkSize, total);
+      String url = session.composeURL(PARAM_UPLOAD_ID + "=" + uploadId, PARAM_CHUNK_SIZE + "=" + chunkSize,
+          PARAM_NAME + "=" + URL.encodeQueryString(fieldName), PARAM_FILENAME + "=" + URL.encodeQueryString(file.getName()),
+          PARAM_CTYPE + "=" + URL.encodeQueryString(file.getType()), Uploader.getFormatParam());
+      String range = "bytes " + (long) nextOffset + "-" + ((long) end - 1) + "/" + (long) total;
+      send(requests, url, range, file, nextOffset, end, session.getServletPath().startsWith("http"));
+      nextOffset = end;
+    }
+  }
+
+  private void retry(String message) {
+    if (canceled) {
+      return;
+    }
+    if (++retries > MAX_RETRIES) {
+      handler.onError(message);
+      return;
+    }
+    Uploader.log("ResumableUpload: " + message + ", retrying " + uploadId + " (" + retries + ")", null);
+    new Timer() {
+      public void run() {
+        start();
+      }
+    }.schedule(RETRY_DELAY * retries);
+  }
+
+  // This is invoked from send()
+  private void onChunkProgress() {
+    handler.onProgress(sentBytes + loaded(requests), file.getSize());
+  }
+
+  // This is invoked from send()
+  private void onChunkSent(double length, int status, String text) {
+    if (canceled || failed) {
+      return;
+    }
+    if (status != 200 || text == null || text.isEmpty()) {
+      // Stop the other chunks, the server says where to continue from
+      failed = true;
+      abortAll(requests);
+      retry("chunk error, status: " + status);
+      return;
+    }
+    retries = 0;
+    ServerResponse doc;
+    try {
+      doc = ServerResponse.parse(text);
+    } catch (Exception e) {
+      handler.onError(text);
+      return;
+    }
+    String error = doc.get(TAG_ERROR);
+    if (error != null) {
+      canceled = true;
+      abortAll(requests);
+      handler.onError(error);
+    } else if (doc.get(TAG_FINISHED) == null && doc.get(TAG_CURRENT_BYTES) != null) {
+      sentBytes += length;
+      onChunkProgress();
+      sendChunks();
+    } else {
+      // Only the request which completes the file gets the final response
+      handler.onComplete(text);
+    }
+  }
+
+  private native void send(JavaScriptObject requests, String url, String range, File file, double start, double end, boolean credentials) /*-{
+    var instance = this;
+    var request = new XMLHttpRequest();
+    request.loadedBytes = 0;
+    request.open("PUT", url);
+    request.withCredentials = credentials;
+    request.setRequestHeader("Content-Range", range);
+    request.setRequestHeader("Content-Type", "application/octet-stream");
+    if (request.upload) {
+      request.upload.onprogress = function(e) {
+        request.loadedBytes = e.loaded;
+        instance.@gwtupload.client.ResumableUpload::onChunkProgress()();
+      };
+    }
+    request.onreadystatechange = function() {
+      if (request.readyState == 4) {
+        requests.splice(requests.indexOf(request), 1);
+        instance.@gwtupload.client.ResumableUpload::onChunkSent(DILjava/lang/String;)(end - start, request.status, request.responseText);
+      }
+    };
+    requests.push(request);
+    request.send(file.slice(start, end));
+  }-*/;
+
+  private static native void abortAll(JavaScriptObject requests) /*-{
+    while (requests.length) {
+      var request = requests.pop();
+      request.onreadystatechange = null;
+      request.abort();
+    }
+  }-*/;
+
+  private static native double loaded(JavaScriptObject requests) /*-{
+    var loaded = 0;
+    for (var i = 0; i < requests.length; i++) {
+      loaded += requests[i].loadedBytes;
+    }
+    return loaded;
+  }-*/;
+
+  private static native int size(JavaScriptObject requests) /*-{
+    return requests.length;
+  }-*/;
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.client;
+
+import static gwtupload.shared.UConsts.TAG_FILE;
+import static gwtupload.shared.UConsts.TAG_STATUS;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.xml.client.Document;
+import com.google.gwt.xml.client.Element;
+import com.google.gwt.xml.client.XMLParser;
+
+/**
+ * <p>
+ * A response of the upload servlet, either in xml or in json format.
+ * </p>
+ *
+ * Json responses are decoded with the browser's native JSON.parse and read
+ * through an overlay type, which is much faster than parsing and traversing
+ * an xml document.
+ */
+public abstract class ServerResponse {
+
+  /**
+   * Overlay of the json object sent by the server.
+   */
+  private static final class JsonData extends JavaScriptObject {
+    protected JsonData() {
+    }
+
+    static native JsonData parse(String json) /*-{
+      return $wnd.JSON.parse(json);
+    }-*/;
+
+    native String get(String tag) /*-{
+      var v = this[tag];
+      return v == null || v === "" ? null : String(v);
+    }-*/;
+
+    native int getFileCount() /*-{
+      return this.files ? this.files.length : 0;
+    }-*/;
+
+    native String getFile(int idx, String tag) /*-{
+      var v = this.files[idx][tag];
+      return v == null || v === "" ? null : String(v);
+    }-*/;
+
+    native int getStatusCount() /*-{
+      return this.status ? this.status.length : 0;
+    }-*/;
+
+    native JsonData getStatus(int idx) /*-{
+      return this.status[idx];
+    }-*/;
+  }
+
+  private static class JsonResponse extends ServerResponse {
+    private final JsonData data;
+
+    JsonResponse(JsonData data) {
+      this.data = data;
+    }
+
+    public String get(String tag) {
+      return data.get(tag);
+    }
+
+    public int getFileCount() {
+      return data.getFileCount();
+    }
+
+    public String getFile(int idx, String tag) {
+      return data.getFile(idx, tag);
+    }
+
+    public int getStatusCount() {
+      return data.getStatusCount();
+    }
+
+    public ServerResponse getStatus(int idx) {
+      return new JsonResponse(data.getStatus(idx));
+    }
+  }
+
+  private static class XmlResponse extends ServerResponse {
+    private final Element root;
+
+    XmlResponse(Element root) {
+      this.root = root;
+    }
+
+    public String get(String tag) {
+      return getFile(0, tag);
+    }
+
+    public int getFileCount() {
+      return root.getElementsByTagName(TAG_FILE).getLength();
+    }
+
+    public String getFile(int idx, String tag) {
+      return Utils.getXmlNodeValue(root.getElementsByTagName(tag), tag, idx);
+    }
+
+    public int getStatusCount() {
+      return root.getElementsByTagName(TAG_STATUS).getLength();
+    }
+
+    public ServerResponse getStatus(int idx) {
+      return new XmlResponse((Element) root.getElementsByTagName(TAG_STATUS).item(idx));
+    }
+  }
+
+  /**
+   * Parse a response, the format is detected from its content.
+   *
+   * @throws RuntimeException when the text is neither valid json nor xml
+   */
+  public static ServerResponse parse(String text) {
+    String s = text.trim();
+    if (s.startsWith("{")) {
+      return new JsonResponse(JsonData.parse(s));
+    }
+    return new XmlResponse(XMLParser.parse(text).getDocumentElement());
+  }
+
+  /**
+   * Extract the response from the html a browser builds when it shows a text
+   * response in the iframe of a form, which usually puts it inside a "pre" tag.
+   */
+  public static String unwrap(String text) {
+    if (text.trim().toLowerCase().startsWith("<pre")) {
+      Document doc = XMLParser.parse(text);
+      return doc.getFirstChild().getFirstChild().getNodeValue();
+    }
+    return text;
+  }
+
+  /**
+   * Return the value of a tag of the response, or null.
+   */
+  public abstract String get(String tag);
+
+  /**
+   * Return the number of files included in the response.
+   */
+  public abstract int getFileCount();
+
+  /**
+   * Return the value of a property of a file in the response, or null.
+   */
+  public abstract String getFile(int idx, String tag);
+
+  /**
+   * Return the number of upload status included in a batched status response.
+   */
+  public abstract int getStatusCount();
+
+  /**
+   * Return the status of an upload included in a batched status response.
+   */
+  public abstract ServerResponse getStatus(int idx);
+}
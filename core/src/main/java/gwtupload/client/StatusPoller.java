@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.client;
+
+import static gwtupload.shared.UConsts.PARAM_BATCH;
+import static gwtupload.shared.UConsts.PARAM_FILENAME;
+import static gwtupload.shared.UConsts.TAG_FIELD;
+
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Sends a single status request for all the uploaders of the page.
+ * </p>
+ *
+ * Each uploader schedules its status request here instead of sending it.
+ * Requests scheduled while there is another one in progress, or before the
+ * status interval has elapsed since the last one, are sent together in the next
+ * request, so there is at most one status request per interval for each servlet,
+ * no matter the number of files being uploaded.
+ */
+public class StatusPoller {
+
+  private static final Map<String, StatusPoller> pollers = new HashMap<String, StatusPoller>();
+
+  /**
+   * Return the poller of the servlet used by a session.
+   */
+  public static StatusPoller get(ISession session) {
+    StatusPoller poller = pollers.get(session.getServletPath());
+    if (poller == null) {
+      poller = new StatusPoller(session);
+      pollers.put(session.getServletPath(), poller);
+    }
+    return poller;
+  }
+
+  private long lastSent = 0;
+
+  private Map<String, Uploader> pending = new LinkedHashMap<String, Uploader>();
+
+  private int requestsCounter = 0;
+
+  private Map<String, Uploader> sending = null;
+
+  private final ISession session;
+
+  private final Timer timer = new Timer() {
+    public void run() {
+      send();
+    }
+  };
+
+  private boolean timerScheduled = false;
+
+  private StatusPoller(ISession session) {
+    this.session = session;
+  }
+
+  /**
+   * Include the status of an uploader in the next request.
+   */
+  public void schedule(Uploader uploader) {
+    pending.put(uploader.getStatusField(), uploader);
+    if (sending == null) {
+      scheduleSend();
+    }
+  }
+
+  private void scheduleSend() {
+    if (!pending.isEmpty() && !timerScheduled) {
+      long wait = lastSent + Uploader.getStatusInterval() - System.currentTimeMillis();
+      timerScheduled = true;
+      // Even when it can be sent now, wait a bit so as all uploaders updating now are included
+      timer.schedule((int) Math.max(1, wait));
+    }
+  }
+
+  private void send() {
+    timerScheduled = false;
+    if (pending.isEmpty()) {
+      return;
+    }
+    sending = pending;
+    pending = new LinkedHashMap<String, Uploader>();
+    lastSent = System.currentTimeMillis();
+
+    List<String> params = new ArrayList<String>();
+    params.add(PARAM_BATCH + "=true");
+    for (String field : sending.keySet()) {
+      params.add(PARAM_FILENAME + "=" + URL.encodeQueryString(field));
+    }
+    params.add("c=" + requestsCounter++);
+    params.add(Uploader.getFormatParam());
+
+    session.sendRequest("get_status", new RequestCallback() {
+      public void onResponseReceived(Request request, Response response) {
+        Map<String, Uploader> uploaders = sending;
+        sending = null;
+        String text = response.getText();
+        try {
+          ServerResponse doc = ServerResponse.parse(text);
+          for (int i = 0, l = doc.getStatusCount(); i < l; i++) {
+            ServerResponse status = doc.getStatus(i);
+            Uploader uploader = uploaders.remove(status.get(TAG_FIELD));
+            if (uploader != null) {
+              uploader.onStatusReceived(status, text);
+            }
+          }
+        } catch (Exception e) {
+          Uploader.log("StatusPoller: unable to parse the response: " + text, e);
+        }
+        // Uploaders not included in the response ask again in their next update
+        for (Uploader uploader : uploaders.values()) {
+          uploader.onStatusReceived(null, null);
+        }
+        scheduleSend();
+      }
+
+      public void onError(Request request, Throwable exception) {
+        Map<String, Uploader> uploaders = sending;
+        sending = null;
+        for (Uploader uploader : uploaders.values()) {
+          uploader.onStatusError(request, exception);
+        }
+        scheduleSend();
+      }
+    }, params.toArray(new String[params.size()]));
+  }
+}
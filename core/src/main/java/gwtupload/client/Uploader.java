@@ -29,6 +29,7 @@ import com.google.gwt.http.client.RequestCallback;
 import com.google.gwt.http.client.RequestException;
 import com.google.gwt.http.client.RequestTimeoutException;
 import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.Composite;
@@ -60,14 +61,22 @@ import java.util.logging.Logger;
 import gwtupload.client.dnd.DragAndDropFormPanel;
 import gwtupload.client.dnd.IDragAndDropFileInput;
 import static gwtupload.shared.UConsts.ATTR_BLOBSTORE_PARAM_NAME;
+import static gwtupload.shared.UConsts.FORMAT_JSON;
+import static gwtupload.shared.UConsts.FORMAT_XML;
 import static gwtupload.shared.UConsts.MULTI_SUFFIX;
+import static gwtupload.shared.UConsts.PARAM_ALGORITHM;
 import static gwtupload.shared.UConsts.PARAM_BLOBKEY;
 import static gwtupload.shared.UConsts.PARAM_BLOBSTORE;
 import static gwtupload.shared.UConsts.PARAM_CANCEL;
+import static gwtupload.shared.UConsts.PARAM_CTYPE;
+import static gwtupload.shared.UConsts.PARAM_DIGEST;
+import static gwtupload.shared.UConsts.PARAM_EVENTS;
 import static gwtupload.shared.UConsts.PARAM_FILENAME;
+import static gwtupload.shared.UConsts.PARAM_FORMAT;
 import static gwtupload.shared.UConsts.PARAM_NAME;
 import static gwtupload.shared.UConsts.PARAM_REMOVE;
 import static gwtupload.shared.UConsts.PARAM_SHOW;
+import static gwtupload.shared.UConsts.PARAM_UPLOAD_ID;
 import static gwtupload.shared.UConsts.TAG_BLOBSTORE;
 import static gwtupload.shared.UConsts.TAG_BLOBSTORE_NAME;
 import static gwtupload.shared.UConsts.TAG_BLOBSTORE_PARAM;
@@ -75,12 +84,15 @@ import static gwtupload.shared.UConsts.TAG_BLOBSTORE_PATH;
 import static gwtupload.shared.UConsts.TAG_CANCELED;
 import static gwtupload.shared.UConsts.TAG_CTYPE;
 import static gwtupload.shared.UConsts.TAG_CURRENT_BYTES;
-import static gwtupload.shared.UConsts.TAG_FILE;
+import static gwtupload.shared.UConsts.TAG_DIGEST;
+import static gwtupload.shared.UConsts.TAG_ERROR;
+import static gwtupload.shared.UConsts.TAG_EVENTS;
 import static gwtupload.shared.UConsts.TAG_FINISHED;
 import static gwtupload.shared.UConsts.TAG_KEY;
 import static gwtupload.shared.UConsts.TAG_MESSAGE;
 import static gwtupload.shared.UConsts.TAG_NAME;
 import static gwtupload.shared.UConsts.TAG_PERCENT;
+import static gwtupload.shared.UConsts.TAG_QUEUED;
 import static gwtupload.shared.UConsts.TAG_SIZE;
 import static gwtupload.shared.UConsts.TAG_TOTAL_BYTES;
 import static gwtupload.shared.UConsts.TAG_WAIT;
@@ -170,10 +182,25 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private static final int DEFAULT_TIME_MAX_WITHOUT_RESPONSE = 60000;
   private static final int DEFAULT_UPDATE_INTERVAL = 500;
 
+  // Status requests are still sent, but rarely, while server events are being received
+  private static final int EVENTS_UPDATE_INTERVAL = 5000;
+
   private static HashSet<String> fileDone = new HashSet<String>();
   private static HashSet<String> fileUploading = new HashSet<String>();
   private static List<String> fileQueue = new ArrayList<String>();
 
+  private static int chunkConcurrency = 1;
+
+  private static int chunkSize = 0;
+
+  private static double instantUploadMaxSize = 0;
+
+  private static boolean jsonResponses = false;
+
+  private static boolean batchStatus = false;
+
+  private static int maxConcurrentUploads = 1;
+
   private static int statusInterval = DEFAULT_UPDATE_INTERVAL;
 
   private static int uploadTimeout = DEFAULT_TIME_MAX_WITHOUT_RESPONSE;
@@ -196,6 +223,88 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     }
   }
 
+  /**
+   * Configure the size of the chunks used to send files with resumable uploads.
+   *
+   * When it is greater than zero and the browser supports it, single files are sent
+   * in chunks using PUT requests, so an interrupted upload continues from the last
+   * byte received by the server instead of starting again. Zero, the default, disables it.
+   * The server accepts chunks between 64 KB and 64 MB, and up to 1048576 chunks per file.
+   */
+  public static void setChunkSize(int chunkSize) {
+    Uploader.chunkSize = chunkSize;
+  }
+
+  /**
+   * Configure the number of chunks of a resumable upload sent at the same time.
+   *
+   * Using several connections speeds up uploads in networks with a high latency,
+   * where a single connection can not use all the bandwidth available. Default is 1.
+   */
+  public static void setChunkConcurrency(int chunkConcurrency) {
+    Uploader.chunkConcurrency = chunkConcurrency;
+  }
+
+  /**
+   * Configure the maximum size of the files sent with instant uploads.
+   *
+   * When it is greater than zero and the browser supports it, single files up to this
+   * size are hashed in the browser and only their digest is sent first. If the server
+   * already has a file with that content, it is attached to the session and the data
+   * is not sent at all. The server must have instant uploads enabled. Files are loaded
+   * in memory to be hashed, so very large sizes are not recommended. Zero, the default,
+   * disables it.
+   */
+  public static void setInstantUploadMaxSize(double instantUploadMaxSize) {
+    Uploader.instantUploadMaxSize = instantUploadMaxSize;
+  }
+
+  /**
+   * Ask the server for json responses instead of xml ones.
+   *
+   * They are smaller and are decoded with the browser's native parser, but the
+   * server must support them. Default is false.
+   */
+  public static void setJsonResponses(boolean jsonResponses) {
+    Uploader.jsonResponses = jsonResponses;
+  }
+
+  /**
+   * Configure the number of files of the page which can be uploaded at the same time.
+   *
+   * The rest of the files wait in the queue. The servlet limits the number of concurrent
+   * uploads per session as well, so it should not be greater than its maxConcurrentUploads
+   * parameter. Default is 1.
+   */
+  public static void setMaxConcurrentUploads(int maxConcurrentUploads) {
+    Uploader.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+  }
+
+  /**
+   * Ask the server for the status of all the uploaders of the page which use the
+   * same servlet in a single request, instead of sending a request per uploader.
+   *
+   * It reduces the number of requests when many files are uploaded at the same time,
+   * but the server must support it. Default is false.
+   */
+  public static void setBatchStatus(boolean batchStatus) {
+    Uploader.batchStatus = batchStatus;
+  }
+
+  /**
+   * Return the status interval configured for all the uploaders.
+   */
+  static int getStatusInterval() {
+    return statusInterval;
+  }
+
+  /**
+   * Return the parameter which selects the format of the server responses.
+   */
+  static String getFormatParam() {
+    return PARAM_FORMAT + "=" + (jsonResponses ? FORMAT_JSON : FORMAT_XML);
+  }
+
   /**
    * Configure the frequency to send status requests to the server.
    */
@@ -218,7 +327,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private final Timer automaticUploadTimer = new Timer() {
     private boolean firstTime = true;
     public void run() {
-      if (autoSubmit && isTheFirstInQueue()) {
+      if (autoSubmit && canBeSubmitted()) {
         this.cancel();
         firstTime = true;
         statusWidget.setStatus(IUploadStatus.Status.SUBMITING);
@@ -286,7 +395,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
         }
         uploadForm.setAction(url);
       } else {
-        uploadForm.setAction(session.getServletPath());
+        uploadForm.setAction(getFormAction());
       }
       removeHiddens();
       if (document != null) {
@@ -368,13 +477,15 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     }
     public void onResponseReceived(Request request, Response response) {
       try {
-        String s = Utils.getXmlNodeValue(XMLParser.parse(response.getText()), TAG_BLOBSTORE);
+        Document doc = XMLParser.parse(response.getText());
+        String s = Utils.getXmlNodeValue(doc, TAG_BLOBSTORE);
         blobstore = "true".equalsIgnoreCase(s);
+        serverEvents = "true".equalsIgnoreCase(Utils.getXmlNodeValue(doc, TAG_EVENTS));
         // with blobstore status does not make sense
         if (blobstore) {
           updateStatusTimer.setInterval(5000);
         }
-        uploadForm.setAction(session.getServletPath());
+        uploadForm.setAction(getFormAction());
         uploadForm.submit();
       } catch (Exception e) {
         String message = e.getMessage().contains("error:")
@@ -434,17 +545,13 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       onSubmitComplete = true;
       serverRawResponse = event.getResults();
       try {
-        // Parse the xml and extract UploadedInfos
-        Document doc = XMLParser.parse(serverRawResponse);
         // for some reason the response is put inside a "pre" tag
-        if (doc.getDocumentElement().getNodeName().equals("pre")) {
-          serverRawResponse = doc.getFirstChild().getFirstChild().getNodeValue();
-          doc = XMLParser.parse(serverRawResponse);
-        }
-        // If the server response is a valid xml
+        serverRawResponse = ServerResponse.unwrap(serverRawResponse);
+        ServerResponse.parse(serverRawResponse);
+        // If the server response is valid
         parseAjaxResponse(serverRawResponse);
       } catch (Exception e) {
-        log("onSubmitComplete exception parsing response (Check CORS and XML syntax): ", e);
+        log("onSubmitComplete exception parsing response (Check CORS and XML or JSON syntax): ", e);
         // Otherwise force an ajax request so as we have not to wait to the timer schedule
         updateStatusTimer.run();
       }
@@ -462,13 +569,21 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   private SubmitHandler onSubmitFormHandler = new SubmitHandler() {
     public void onSubmit(SubmitEvent event) {
 
+      if (instantUploadMissed) {
+        // The server has not the file, the form is submitted again to send its content
+        instantUploadMissed = false;
+        openServerEvents();
+        updateStatusTimer.squeduleStart();
+        return;
+      }
+
       if (!finished && uploading) {
         uploading = false;
         statusWidget.setStatus(IUploadStatus.Status.CANCELED);
         return;
       }
 
-      if (!autoSubmit && fileQueue.size() > 0) {
+      if (!autoSubmit && fileQueue.size() >= maxConcurrentUploads) {
         statusWidget.setError(i18nStrs.uploaderActiveUpload());
         event.cancel();
         return;
@@ -511,14 +626,63 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       serverMessage = new ServerMessage();
 
       statusWidget.setVisible(true);
-      updateStatusTimer.squeduleStart();
       statusWidget.setStatus(IUploadStatus.Status.INPROGRESS);
       lastData = now();
+
+      File file = getInstantFile();
+      if (file != null) {
+        // The digest is sent first, the content is sent only if the server has not got it
+        event.cancel();
+        onSubmitComplete = false;
+        sendInstantUpload(file);
+        return;
+      }
+
+      file = getResumableFile();
+      if (file != null) {
+        // The file is sent in chunks, the form is not submitted
+        event.cancel();
+        onSubmitComplete = false;
+        resumableUpload = new ResumableUpload(session, file, getInputName(), chunkSize, chunkConcurrency, onResumableUploadHandler);
+        resumableUpload.start();
+        return;
+      }
+      openServerEvents();
+      updateStatusTimer.squeduleStart();
+    }
+  };
+
+  private FileHasher instantUpload = null;
+
+  private boolean instantUploadMissed = false;
+
+  private ResumableUpload resumableUpload = null;
+
+  private ResumableUpload.ResumableUploadHandler onResumableUploadHandler = new ResumableUpload.ResumableUploadHandler() {
+    public void onProgress(double done, double total) {
+      lastData = now();
+      statusWidget.setProgress((long) done / 1024, (long) total / 1024);
+    }
+
+    public void onComplete(String serverResponse) {
+      resumableUpload = null;
+      onSubmitComplete = true;
+      serverRawResponse = serverResponse;
+      parseAjaxResponse(serverRawResponse);
+    }
+
+    public void onError(String message) {
+      resumableUpload = null;
+      cancelUpload(i18nStrs.uploaderServerError() + "\n" + message);
     }
   };
 
   private boolean receivedBlobPath = false;
 
+  private JavaScriptObject eventSource = null;
+
+  private boolean serverEvents = false;
+
   private int requestsCounter = 0;
 
   private String serverRawResponse = null;
@@ -767,7 +931,16 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
 
     canceled = true;
     automaticUploadTimer.cancel();
-    if (uploading) {
+    if (instantUpload != null) {
+      // Nothing has been sent yet
+      instantUpload = null;
+      uploadFinished();
+    } else if (resumableUpload != null) {
+      // Received chunks are kept in the server, so the upload can be resumed later
+      resumableUpload.cancel();
+      resumableUpload = null;
+      uploadFinished();
+    } else if (uploading) {
       updateStatusTimer.cancel();
       try {
         sendAjaxRequestToCancelCurrentUpload();
@@ -1055,7 +1228,38 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       return;
     }
     waitingForResponse = true;
-    session.sendRequest("get_status", onStatusReceivedCallback, "filename=" + fileInput.getName().replace(MULTI_SUFFIX, "") , "c=" + requestsCounter++);
+    if (batchStatus) {
+      StatusPoller.get(session).schedule(this);
+    } else {
+      session.sendRequest("get_status", onStatusReceivedCallback, "filename=" + getStatusField(), "c=" + requestsCounter++, getFormatParam());
+    }
+  }
+
+  /**
+   * The name used to ask the server for the status of this upload.
+   */
+  String getStatusField() {
+    return fileInput.getName().replace(MULTI_SUFFIX, "");
+  }
+
+  /**
+   * Called by the status poller with the part of a batched status response
+   * which corresponds to this uploader.
+   */
+  void onStatusReceived(ServerResponse status, String responseTxt) {
+    waitingForResponse = false;
+    if (finished == true && !uploading) {
+      updateStatusTimer.cancel();
+      return;
+    }
+    parseAjaxResponse(status, responseTxt);
+  }
+
+  /**
+   * Called by the status poller when a batched status request fails.
+   */
+  void onStatusError(Request request, Throwable exception) {
+    onStatusReceivedCallback.onError(request, exception);
   }
 
   /**
@@ -1152,33 +1356,225 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     };
   }-*/;
 
-  private boolean isTheFirstInQueue() {
-    return fileQueue.size() > 0 && fileQueue.get(0).equals(getInputName());
+  /**
+   * Return the file to send with an instant upload, or null if its content has to be sent.
+   */
+  private File getInstantFile() {
+    if (instantUploadMaxSize <= 0 || blobstore || !FileHasher.isSupported()) {
+      return null;
+    }
+    File file = getSelectedFile();
+    return file != null && file.getSize() <= instantUploadMaxSize ? file : null;
+  }
+
+  /**
+   * Return the file to send with a resumable upload, or null if the form has to be submitted.
+   */
+  private File getResumableFile() {
+    if (chunkSize <= 0 || blobstore || !ResumableUpload.isSupported()) {
+      return null;
+    }
+    return getSelectedFile();
+  }
+
+  /**
+   * Return the file selected when there is only one, and it is not empty.
+   */
+  private File getSelectedFile() {
+    FileList files = fileInput instanceof IDragAndDropFileInput ? ((IDragAndDropFileInput) fileInput).getFiles()
+        : ResumableUpload.getFiles(fileInput.asWidget().getElement());
+    if (files == null || files.getLength() != 1 || files.item(0).getSize() <= 0) {
+      return null;
+    }
+    return files.item(0);
+  }
+
+  /**
+   * Send the content of the file, after the server has said it has not got it.
+   */
+  private void sendContent() {
+    File file = getResumableFile();
+    if (file != null) {
+      resumableUpload = new ResumableUpload(session, file, getInputName(), chunkSize, chunkConcurrency, onResumableUploadHandler);
+      resumableUpload.start();
+    } else {
+      instantUploadMissed = true;
+      uploadForm.submit();
+    }
+  }
+
+  /**
+   * Hash the file and send its digest to the server, which attaches the file to the
+   * session when it has got the same content, otherwise the content is sent.
+   */
+  private void sendInstantUpload(final File file) {
+    instantUpload = new FileHasher(new FileHasher.FileHasherHandler() {
+      public void onDigest(String digest) {
+        if (instantUpload == null) {
+          return;
+        }
+        session.sendRequest("instant", new RequestCallback() {
+          public void onResponseReceived(Request request, Response response) {
+            if (instantUpload == null) {
+              return;
+            }
+            instantUpload = null;
+            String text = response.getText();
+            try {
+              ServerResponse doc = ServerResponse.parse(text);
+              if (doc.get(TAG_FINISHED) != null || doc.get(TAG_ERROR) != null) {
+                onSubmitComplete = true;
+                serverRawResponse = text;
+                parseAjaxResponse(doc, text);
+                return;
+              }
+            } catch (Exception e) {
+              log("Uploader: unable to parse the instant upload response: " + text, e);
+            }
+            sendContent();
+          }
+
+          public void onError(Request request, Throwable exception) {
+            if (instantUpload != null) {
+              instantUpload = null;
+              sendContent();
+            }
+          }
+        }, PARAM_DIGEST + "=" + digest, PARAM_ALGORITHM + "=" + FileHasher.ALGORITHM, PARAM_NAME + "=" + URL.encodeQueryString(getInputName()),
+            PARAM_FILENAME + "=" + URL.encodeQueryString(file.getName()), PARAM_CTYPE + "=" + URL.encodeQueryString(file.getType()),
+            getUploadIdParam(), getFormatParam());
+      }
+
+      public void onError(String message) {
+        log("Uploader: unable to hash " + file.getName() + ", sending it: " + message, null);
+        if (instantUpload != null) {
+          instantUpload = null;
+          sendContent();
+        }
+      }
+    });
+    instantUpload.hash(file, FileHasher.ALGORITHM);
+  }
+
+  /**
+   * Subscribe to the progress events sent by the server, when it supports them,
+   * so as the status has not to be asked with frequent requests.
+   */
+  private void openServerEvents() {
+    if (serverEvents && !blobstore && eventSource == null) {
+      eventSource = openEventSource(session.composeURL(PARAM_EVENTS + "=" + statusInterval, getUploadIdParam()), getServletPath().startsWith("http"));
+      if (eventSource != null) {
+        updateStatusTimer.setInterval(EVENTS_UPDATE_INTERVAL);
+      }
+    }
+  }
+
+  private void closeServerEvents() {
+    if (eventSource != null) {
+      closeEventSource(eventSource);
+      eventSource = null;
+      updateStatusTimer.setInterval(statusInterval);
+    }
+  }
+
+  // This is invoked from openEventSource()
+  private void onServerEvent(String data) {
+    if (finished && !uploading) {
+      return;
+    }
+    lastData = now();
+    parseAjaxResponse(data);
+  }
+
+  // This is invoked from openEventSource() when the browser gives up reconnecting
+  private void onServerEventsError() {
+    log("GWTUpload: server events not available, polling the status", null);
+    serverEvents = false;
+    closeServerEvents();
+  }
+
+  private native JavaScriptObject openEventSource(String url, boolean credentials) /*-{
+    if (!$wnd.EventSource) {
+      return null;
+    }
+    var instance = this;
+    var source = new $wnd.EventSource(url, {withCredentials: credentials});
+    source.onmessage = function(e) {
+      instance.@gwtupload.client.Uploader::onServerEvent(Ljava/lang/String;)(e.data);
+    };
+    source.onerror = function() {
+      if (source.readyState == 2) {
+        instance.@gwtupload.client.Uploader::onServerEventsError()();
+      }
+    };
+    return source;
+  }-*/;
+
+  private static native void closeEventSource(JavaScriptObject source) /*-{
+    source.close();
+  }-*/;
+
+  /**
+   * The url where the form is posted, selecting the format of the response.
+   */
+  private String getFormAction() {
+    String url = session.getServletPath();
+    url += (url.contains("?") ? "&" : "?") + getUploadIdParam();
+    if (jsonResponses) {
+      url += "&" + getFormatParam();
+    }
+    return url;
+  }
+
+  /**
+   * The parameter which identifies this upload in the server, so the session
+   * can send several files at the same time.
+   */
+  private String getUploadIdParam() {
+    return PARAM_UPLOAD_ID + "=" + URL.encodeQueryString(getStatusField());
+  }
+
+  /**
+   * Return true if the file is in the queue among the first ones, up to
+   * the number of concurrent uploads allowed.
+   */
+  private boolean canBeSubmitted() {
+    int idx = fileQueue.indexOf(getInputName());
+    return idx >= 0 && idx < maxConcurrentUploads;
   }
 
   private void parseAjaxResponse(String responseTxt) {
+    parseAjaxResponse(null, responseTxt);
+  }
+
+  /**
+   * Process a response of the server, the raw text is parsed when the response
+   * has not been parsed yet.
+   */
+  private void parseAjaxResponse(ServerResponse doc, String responseTxt) {
     if (responseTxt == null) {
       return;
     }
 
     String error = null;
-    Document doc = null;
     try {
-      doc = XMLParser.parse(responseTxt);
-      error = Utils.getXmlNodeValue(doc, "error");
+      if (doc == null) {
+        doc = ServerResponse.parse(responseTxt);
+      }
+      error = doc.get(TAG_ERROR);
       if (error == null) {
         // Response brings uploaded files info in either:
         // POST response or FINISHED status
-        String msg = Utils.getXmlNodeValue(doc, TAG_MESSAGE);
+        String msg = doc.get(TAG_MESSAGE);
         serverMessage.setMessage(msg);
-        NodeList list = doc.getElementsByTagName(TAG_FILE);
-        for (int i = 0, l = list.getLength(); i < l; i++) {
+        for (int i = 0, l = doc.getFileCount(); i < l; i++) {
           UploadedInfo info = new UploadedInfo();
           info.setField(getInputName() + "-" + i);
-          info.setName(Utils.getXmlNodeValue(doc, TAG_NAME, i));
-          info.setCtype(Utils.getXmlNodeValue(doc, TAG_CTYPE, i));
+          info.setName(doc.getFile(i, TAG_NAME));
+          info.setCtype(doc.getFile(i, TAG_CTYPE));
           // TODO: test
-          info.setKey (Utils.getXmlNodeValue(doc, TAG_KEY, i));
+          info.setKey (doc.getFile(i, TAG_KEY));
+          info.setDigest(doc.getFile(i, TAG_DIGEST));
           // TODO: remove
           info.message = msg;
           String url = session.composeURL(PARAM_SHOW + "=" + info.getField());
@@ -1187,7 +1583,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
           }
           info.setFileUrl(url);
 
-          String size = Utils.getXmlNodeValue(doc, TAG_SIZE, i);
+          String size = doc.getFile(i, TAG_SIZE);
           if (size != null) {
             info.setSize(Integer.parseInt(size));
           }
@@ -1204,19 +1600,19 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
       successful = false;
       cancelUpload(error);
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_WAIT) != null) {
+    } else if (doc != null && doc.get(TAG_WAIT) != null) {
       if (serverRawResponse != null) {
         log("server response received, cancelling the upload " + getFileNames() + " " + serverRawResponse, null);
         successful = true;
         uploadFinished();
       }
-    } else if (Utils.getXmlNodeValue(doc, TAG_CANCELED) != null) {
+    } else if (doc != null && doc.get(TAG_CANCELED) != null) {
       log("server response is: canceled " + getFileNames(), null);
       successful = false;
       canceled = true;
       uploadFinished();
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_FINISHED) != null) {
+    } else if (doc != null && doc.get(TAG_FINISHED) != null) {
       log("server response is: finished " + serverMessage.getUploadedFileNames(), null);
       successful = true;
       if (onSubmitComplete) {
@@ -1224,11 +1620,18 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
         uploadFinished();
       }
       return;
-    } else if (Utils.getXmlNodeValue(doc, TAG_PERCENT) != null) {
+    } else if (doc != null && doc.get(TAG_PERCENT) != null) {
       lastData = now();
-      long transferredKB = Long.valueOf(Utils.getXmlNodeValue(doc, TAG_CURRENT_BYTES)) / 1024;
-      long totalKB = Long.valueOf(Utils.getXmlNodeValue(doc, TAG_TOTAL_BYTES)) / 1024;
+      long transferredKB = Long.valueOf(doc.get(TAG_CURRENT_BYTES)) / 1024;
+      long totalKB = Long.valueOf(doc.get(TAG_TOTAL_BYTES)) / 1024;
       statusWidget.setProgress(transferredKB, totalKB);
+      if (doc.get(TAG_QUEUED) != null) {
+        // The server is receiving too many files and this one waits its turn
+        statusWidget.setStatus(IUploadStatus.Status.QUEUED);
+        log("server response queued at position " + doc.get(TAG_QUEUED) + " " + getFileNames(), null);
+      } else if (statusWidget.getStatus() == IUploadStatus.Status.QUEUED) {
+        statusWidget.setStatus(IUploadStatus.Status.INPROGRESS);
+      }
       log("server response transferred  " + transferredKB + "/" + totalKB + " " + getFileNames(), null);
       if (onSubmitComplete) {
         successful = false;
@@ -1271,7 +1674,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
   }
 
   private void sendAjaxRequestToCancelCurrentUpload() {
-    session.sendRequest("cancel_upload", onCancelReceivedCallback, PARAM_CANCEL + "=true");
+    session.sendRequest("cancel_upload", onCancelReceivedCallback, PARAM_CANCEL + "=true", getUploadIdParam());
   }
 
   private void sendAjaxRequestToDeleteUploadedFile() {
@@ -1298,6 +1701,7 @@ public class Uploader extends Composite implements IsUpdateable, IUploader, HasJ
     finished = true;
     uploading = false;
     updateStatusTimer.cancel();
+    closeServerEvents();
     statusWidget.setVisible(false);
 
     if (successful) {
@@ -18,6 +18,7 @@ package gwtupload.server;
 
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -48,9 +49,9 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
     throw new RuntimeException("Implement the static method 'current' in your customized class");
   }
 
-  protected Long bytesRead = 0L, contentLength = 0L;
+  protected final AtomicLong bytesRead = new AtomicLong(), contentLength = new AtomicLong();
 
-  protected RuntimeException exception = null;
+  protected volatile RuntimeException exception = null;
 
   protected boolean exceptionTrhown = false;
 
@@ -58,22 +59,40 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
 
   protected int frozenTimeout = 60000;
 
+  protected volatile long lastData = System.currentTimeMillis();
+
+  protected volatile boolean queued = false;
+
+  // Run when an exception cancels the upload, like a timeout set by the watchdog
+  private transient volatile Runnable exceptionHandler = null;
+
   protected Date saved = new Date();
 
   protected String sessionId = "";
 
+  protected long started = System.currentTimeMillis();
+
+  protected String uploadName = null;
+
+  // Informative, uploads are slowed down by the servlet with a BandwidthShaper
   protected int slowUploads = 0;
 
 
   public AbstractUploadListener(int sleepMilliseconds, long requestSize) {
+    this(UploadServlet.getThreadLocalRequest(), sleepMilliseconds, requestSize);
+  }
+
+  public AbstractUploadListener(HttpServletRequest request, int sleepMilliseconds, long requestSize) {
     this();
     slowUploads = sleepMilliseconds;
-    contentLength = requestSize;
-    logger.info(className + " " + sessionId + " created new instance. (slow=" + sleepMilliseconds + ", requestSize=" + requestSize + ")");
-    HttpServletRequest request = UploadServlet.getThreadLocalRequest();
+    contentLength.set(requestSize);
+    // The request is given explicitly because asynchronous requests
+    // are processed by any thread of the container.
     if (request != null) {
       sessionId = request.getSession().getId();
+      uploadName = UploadServlet.getUploadName(request);
     }
+    logger.info(className + " " + sessionId + " created new instance. (slow=" + sleepMilliseconds + ", requestSize=" + requestSize + ")");
     save();
   }
 
@@ -88,7 +107,7 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
    * @return bytes
    */
   public long getBytesRead() {
-    return bytesRead;
+    return bytesRead.get();
   }
 
   /**
@@ -97,7 +116,7 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
    * @return bytes
    */
   public long getContentLength() {
-    return contentLength;
+    return contentLength.get();
   }
 
   /**
@@ -114,7 +133,31 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
    * @return percent
    */
   public long getPercent() {
-    return contentLength != 0 ? bytesRead * 100 / contentLength : 0;
+    long total = contentLength.get();
+    return total != 0 ? bytesRead.get() * 100 / total : 0;
+  }
+
+  /**
+   * Return the id of the upload monitored by this listener.
+   */
+  public String getUploadId() {
+    return getUploadId(sessionId, uploadName);
+  }
+
+  /**
+   * Return the name given by the client to the upload, or null if it is
+   * the only upload of the session.
+   */
+  public String getUploadName() {
+    return uploadName;
+  }
+
+  /**
+   * Compose the id of an upload. A session can run several uploads at the same
+   * time when the client names them, otherwise the id is the session id.
+   */
+  public static String getUploadId(String sessionId, String uploadName) {
+    return uploadName == null ? sessionId : sessionId + "/" + uploadName;
   }
 
   /**
@@ -131,6 +174,22 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
     return postResponse != null;
   }
 
+  /**
+   * Return true while the upload waits in the admission queue, its body is not read yet.
+   */
+  public boolean isQueued() {
+    return queued;
+  }
+
+  /**
+   * Mark the upload as waiting in the admission queue. The time without data
+   * starts to count when it leaves the queue.
+   */
+  public void setQueued(boolean queued) {
+    this.queued = queued;
+    lastData = System.currentTimeMillis();
+  }
+
   /**
    * Return true if has lasted a long since the last data received.
    * by the user.
@@ -138,7 +197,15 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
    * @return boolean
    */
   public boolean isFrozen() {
-    return getPercent() > 0 && getPercent() < 100 && (new Date()).getTime() - saved.getTime() > frozenTimeout;
+    return getPercent() > 0 && getPercent() < 100 && System.currentTimeMillis() - lastData > frozenTimeout;
+  }
+
+  /**
+   * Return true if the listener is stored by reference, like in the ProgressRegistry,
+   * so it has not to be saved again each time its progress changes.
+   */
+  protected boolean isStoredByReference() {
+    return false;
   }
 
   /**
@@ -158,11 +225,26 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
   public void setException(RuntimeException e) {
     exception = e;
     save();
+    ProgressEventStream.publish(this);
+    Runnable handler = exceptionHandler;
+    if (handler != null) {
+      handler.run();
+    }
+  }
+
+  /**
+   * Set the code run, in the thread which sets it, when an exception cancels
+   * the upload. It is used by uploads which are not received by a thread
+   * that could notice the exception, like asynchronous ones.
+   */
+  public void setExceptionHandler(Runnable handler) {
+    exceptionHandler = handler;
   }
 
   public void setFinished(XMLResponse postResponse) {
     this.postResponse = postResponse;
     save();
+    ProgressEventStream.publish(this);
   }
 
   public String toString() {
@@ -175,14 +257,24 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
   public void update(long done, long total, int item) {
     if (exceptionTrhown) { return; }
 
+    long now = System.currentTimeMillis();
     // To avoid cache overloading, this object is saved when the upload starts,
     // when it has finished, or when the interval from the last save is significant.
-    boolean save = bytesRead == 0 && done > 0 || done >= total || (new Date()).getTime() - saved.getTime() > DEFAULT_SAVE_INTERVAL;
-    bytesRead = done;
-    contentLength = total;
+    boolean save = !isStoredByReference() && (bytesRead.get() == 0 && done > 0 || done >= total || now - saved.getTime() > DEFAULT_SAVE_INTERVAL);
+    UploadMetrics metrics = UploadMetrics.get();
+    if (metrics != null) {
+      if (bytesRead.get() == 0 && done > 0) {
+        metrics.firstByte(now - started);
+      }
+      metrics.bytesReceived(done - bytesRead.get());
+    }
+    bytesRead.set(done);
+    contentLength.set(total);
+    lastData = now;
     if (save) {
       save();
     }
+    ProgressEventStream.publish(this);
 
     // If other request has set an exception, it is thrown so the commons-fileupload's
     // parser stops and the connection is closed.
@@ -192,20 +284,6 @@ public abstract class AbstractUploadListener implements ProgressListener, Serial
       exceptionTrhown = true;
       throw exception;
     }
-
-    // Just a way to slow down the upload process and see the progress bar in fast networks.
-    /* 
-      Fix applied for https://cve.mitre.org/cgi-bin/cvename.cgi?name=CVE-2020-13128: 
-      `slowUploads` is anyway controlled by the user since it is a design decision, however 
-      the max value can be `half a minute`, so 30000 milliseconds.
-    */
-    if (slowUploads > 0 && slowUploads < 30000 && done < total) {
-      try {
-        Thread.sleep(slowUploads);
-      } catch (Exception e) {
-        exception = new RuntimeException(e);
-      }
-    }
   }
 
   public XMLResponse getPostResponse() {
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Limits the number of uploads and the number of bytes received at the same time.
+ * </p>
+ *
+ * An upload which does not fit waits in a queue until others finish. The queue
+ * is fair among sessions: each session has its own queue, and when there is room
+ * the next upload admitted is the first one of the session with less uploads in
+ * progress, or of the session served less recently when they have the same, so
+ * a session sending many files does not delay the rest. Uploads of the same
+ * session are admitted in the order they arrived.
+ *
+ * A limit of 0 means no limit. An upload bigger than the bytes limit is admitted
+ * when nothing else is being received, otherwise it could never start.
+ */
+public class AdmissionController {
+
+  private static class Waiter {
+    boolean admitted = false;
+    final long seq;
+    final String sessionId;
+    final long size;
+    final String uploadId;
+
+    Waiter(String sessionId, String uploadId, long size, long seq) {
+      this.sessionId = sessionId;
+      this.uploadId = uploadId;
+      this.size = size;
+      this.seq = seq;
+    }
+  }
+
+  private long activeBytes = 0;
+  private final Map<String, Integer> activeBySession = new HashMap<String, Integer>();
+  private int activeUploads = 0;
+  private long admissions = 0;
+  // Admission number of the last upload admitted of the sessions with uploads in progress or waiting
+  private final Map<String, Long> lastServed = new HashMap<String, Long>();
+  private final long maxBytes;
+  private final int maxUploads;
+  private long seq = 0;
+  private final Map<String, LinkedList<Waiter>> waiting = new HashMap<String, LinkedList<Waiter>>();
+  private int waitingCount = 0;
+
+  /**
+   * @param maxUploads max number of uploads received at the same time
+   * @param maxBytes max sum of the sizes of the uploads received at the same time
+   */
+  public AdmissionController(int maxUploads, long maxBytes) {
+    this.maxUploads = maxUploads;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return true if there is some limit, otherwise every upload is admitted.
+   */
+  public boolean isEnabled() {
+    return maxUploads > 0 || maxBytes > 0;
+  }
+
+  /**
+   * Wait until there is room for an upload. When it is admitted, the caller has
+   * to call {@link #release(String, long)} with the same values once it has finished.
+   *
+   * @param sessionId session sending the upload
+   * @param uploadId id of the upload, used to know its position in the queue
+   * @param size size of the request, a negative value when unknown counts as 0
+   * @param maxWait max milliseconds to wait, 0 to return immediately
+   * @return true if the upload has been admitted, false if it did not fit in time
+   */
+  public synchronized boolean admit(String sessionId, String uploadId, long size, long maxWait) throws InterruptedException {
+    size = Math.max(0, size);
+    if (tryAdmit(sessionId, size)) {
+      return true;
+    }
+    if (maxWait <= 0) {
+      return false;
+    }
+    Waiter waiter = new Waiter(sessionId, uploadId, size, seq++);
+    LinkedList<Waiter> queue = waiting.get(sessionId);
+    if (queue == null) {
+      queue = new LinkedList<Waiter>();
+      waiting.put(sessionId, queue);
+    }
+    queue.add(waiter);
+    waitingCount++;
+
+    long deadline = System.currentTimeMillis() + maxWait;
+    try {
+      long remaining = maxWait;
+      while (!waiter.admitted && remaining > 0) {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+    } finally {
+      if (!waiter.admitted) {
+        dequeue(waiter);
+        // The head of the queue may have changed
+        dispatch();
+      }
+    }
+    return waiter.admitted;
+  }
+
+  /**
+   * Admit an upload only if there is room for it now and nobody is waiting.
+   *
+   * @return true if the upload has been admitted
+   */
+  public synchronized boolean tryAdmit(String sessionId, long size) {
+    size = Math.max(0, size);
+    if (!isEnabled()) {
+      return true;
+    }
+    if (waitingCount == 0 && fits(size)) {
+      start(sessionId, size);
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized long getActiveBytes() {
+    return activeBytes;
+  }
+
+  public synchronized int getActiveUploads() {
+    return activeUploads;
+  }
+
+  /**
+   * Return the position, starting at 1, in which an upload will be admitted
+   * if nothing else arrives, or -1 if it is not waiting.
+   */
+  public synchronized int getQueuePosition(String uploadId) {
+    if (uploadId == null || waitingCount == 0) {
+      return -1;
+    }
+    Waiter target = null;
+    List<Waiter> all = new ArrayList<Waiter>(waitingCount);
+    for (LinkedList<Waiter> queue : waiting.values()) {
+      for (Waiter w : queue) {
+        all.add(w);
+        if (w.uploadId != null && w.uploadId.equals(uploadId)) {
+          target = w;
+        }
+      }
+    }
+    if (target == null) {
+      return -1;
+    }
+    // Each session takes turns, so the uploads before this one are those with a lower turn
+    long targetTurn = turn(target);
+    int position = 1;
+    for (Waiter w : all) {
+      if (w != target && before(turn(w), w, targetTurn, target)) {
+        position++;
+      }
+    }
+    return position;
+  }
+
+  public synchronized int getWaiting() {
+    return waitingCount;
+  }
+
+  /**
+   * Free the room of an admitted upload and admit the next ones waiting.
+   */
+  public synchronized void release(String sessionId, long size) {
+    if (!isEnabled()) {
+      return;
+    }
+    activeUploads--;
+    activeBytes -= Math.max(0, size);
+    Integer n = activeBySession.get(sessionId);
+    if (n == null || n <= 1) {
+      activeBySession.remove(sessionId);
+      if (!waiting.containsKey(sessionId)) {
+        lastServed.remove(sessionId);
+      }
+    } else {
+      activeBySession.put(sessionId, n - 1);
+    }
+    dispatch();
+  }
+
+  private int active(String sessionId) {
+    Integer n = activeBySession.get(sessionId);
+    return n == null ? 0 : n;
+  }
+
+  private void dequeue(Waiter waiter) {
+    LinkedList<Waiter> queue = waiting.get(waiter.sessionId);
+    if (queue != null && queue.remove(waiter)) {
+      waitingCount--;
+      if (queue.isEmpty()) {
+        waiting.remove(waiter.sessionId);
+        if (active(waiter.sessionId) == 0) {
+          lastServed.remove(waiter.sessionId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Admit the waiting uploads while they fit. The next one is always the first
+   * of the session with less uploads in progress, it is not skipped when it does
+   * not fit, so big uploads are not starved by small ones.
+   */
+  private void dispatch() {
+    boolean admitted = false;
+    while (waitingCount > 0) {
+      Waiter next = null;
+      for (LinkedList<Waiter> queue : waiting.values()) {
+        Waiter head = queue.getFirst();
+        if (next == null || before(turn(head), head, turn(next), next)) {
+          next = head;
+        }
+      }
+      if (!fits(next.size)) {
+        break;
+      }
+      dequeue(next);
+      start(next.sessionId, next.size);
+      next.admitted = true;
+      admitted = true;
+    }
+    if (admitted) {
+      notifyAll();
+    }
+  }
+
+  private boolean fits(long size) {
+    if (maxUploads > 0 && activeUploads >= maxUploads) {
+      return false;
+    }
+    return maxBytes <= 0 || activeUploads == 0 || activeBytes + size <= maxBytes;
+  }
+
+  private boolean before(long turn, Waiter w, long otherTurn, Waiter other) {
+    if (turn != otherTurn) {
+      return turn < otherTurn;
+    }
+    long served = served(w.sessionId);
+    long otherServed = served(other.sessionId);
+    return served != otherServed ? served < otherServed : w.seq < other.seq;
+  }
+
+  private long served(String sessionId) {
+    Long n = lastServed.get(sessionId);
+    return n == null ? -1 : n;
+  }
+
+  private void start(String sessionId, long size) {
+    activeUploads++;
+    activeBytes += size;
+    activeBySession.put(sessionId, active(sessionId) + 1);
+    lastServed.put(sessionId, admissions++);
+  }
+
+  private long turn(Waiter w) {
+    return active(w.sessionId) + waiting.get(w.sessionId).indexOf(w);
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import static gwtupload.shared.UConsts.TAG_CANCELED;
+import static gwtupload.shared.UConsts.TAG_ERROR;
+import gwtupload.server.exceptions.UploadBusyException;
+import gwtupload.server.exceptions.UploadCanceledException;
+import gwtupload.server.exceptions.UploadException;
+import gwtupload.server.exceptions.UploadSizeLimitException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>UploadAction which receives files without blocking a container thread.</p>
+ *
+ * The multipart body is read with a Servlet 3.1 ReadListener and parsed
+ * incrementally by {@link MultipartParser} as data arrives, so a slow connection
+ * only uses a thread while there are bytes to process. When the body has been
+ * read, the received items are processed exactly as in UploadAction, so
+ * executeAction is called with the same FileItems.
+ *
+ * Uploads timed out by the watchdog, or canceled, are finished at once, even
+ * when the client does not send more data.
+ *
+ * The servlet has to be declared with &lt;async-supported&gt;true&lt;/async-supported&gt;,
+ * otherwise, and in streaming mode, requests are received by UploadAction in the
+ * classic blocking way.
+ */
+public class AsyncUploadAction extends UploadAction {
+
+  /**
+   * Receives the body of a request while it is available and feeds the parser.
+   * The container never calls it concurrently for the same request.
+   */
+  private class AsyncReceiver implements ReadListener, MultipartParser.PartHandler {
+    private boolean admitted = true;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long bytesRead = 0;
+    private final AsyncContext context;
+    private final long contentLength;
+    private boolean done = false;
+    private FileItem item;
+    private long itemSize;
+    private final FileItemFactory factory;
+    private final List<FileItem> items = new ArrayList<FileItem>();
+    private final AbstractUploadListener listener;
+    private OutputStream out;
+    private MultipartParser parser;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final long started = System.currentTimeMillis();
+
+    AsyncReceiver(AsyncContext context, HttpServletRequest request, HttpServletResponse response, AbstractUploadListener listener,
+        FileItemFactory factory) {
+      this.context = context;
+      this.factory = factory;
+      this.request = request;
+      this.response = response;
+      this.listener = listener;
+      this.contentLength = request.getContentLengthLong();
+    }
+
+    public synchronized void onDataAvailable() throws IOException {
+      ServletInputStream in = request.getInputStream();
+      try {
+        while (!done && in.isReady() && !in.isFinished()) {
+          int n = in.read(buffer);
+          if (n < 0) {
+            break;
+          }
+          bytesRead += n;
+          if (bytesRead > maxSize) {
+            throw new UploadSizeLimitException(maxSize, bytesRead);
+          }
+          parser.feed(buffer, 0, n);
+          // It raises the exception set by a cancel request
+          listener.update(bytesRead, contentLength, items.size());
+        }
+      } catch (Exception e) {
+        fail(e);
+      }
+    }
+
+    public synchronized void onAllDataRead() throws IOException {
+      if (done) {
+        return;
+      }
+      try {
+        if (!parser.isComplete()) {
+          throw new IOException("Unexpected end of multipart stream after " + bytesRead + " bytes");
+        }
+        listener.update(bytesRead, bytesRead, items.size());
+        logger.debug("UPLOAD-ASYNC (" + request.getSession().getId() + ") received " + bytesRead + " bytes, " + items.size() + " items");
+        // The items are processed by UploadAction as if they had been parsed by commons-fileupload,
+        // with the same listener, whose exceptions are handled by UploadAction from now on
+        listener.setExceptionHandler(null);
+        request.setAttribute(ATTR_RECEIVED_ITEMS, items);
+        request.setAttribute(ATTR_UPLOAD_LISTENER, listener);
+        release();
+        doPost(request, response);
+      } catch (Exception e) {
+        fail(e);
+        return;
+      }
+      done = true;
+      context.complete();
+    }
+
+    public void onError(Throwable t) {
+      logger.info("UPLOAD-ASYNC (" + request.getSession().getId() + ") error reading request after " + bytesRead + " bytes: " + t.getMessage());
+      fail(t);
+    }
+
+    public void startPart(String fieldName, String fileName, String contentType, FileItemHeaders headers) throws IOException {
+      item = factory.createItem(fieldName, contentType, fileName == null, fileName);
+      item.setHeaders(headers);
+      items.add(item);
+      out = item.getOutputStream();
+      itemSize = 0;
+    }
+
+    public void partData(byte[] data, int offset, int length) throws IOException {
+      itemSize += length;
+      if (!item.isFormField() && itemSize > maxFileSize) {
+        throw new UploadSizeLimitException(maxFileSize, itemSize);
+      }
+      out.write(data, offset, length);
+    }
+
+    public void endPart() throws IOException {
+      out.close();
+      out = null;
+    }
+
+    /**
+     * Free the room of this upload in the admission controller, the items
+     * have been received or the upload has failed.
+     */
+    private void release() {
+      if (admitted) {
+        admitted = false;
+        admissionController.release(request.getSession().getId(), contentLength);
+        UploadMetrics metrics = UploadMetrics.get();
+        if (metrics != null) {
+          metrics.uploadFinished(listener.getException(), System.currentTimeMillis() - started);
+        }
+      }
+    }
+
+    void start() throws IOException {
+      // The upload is finished when the watchdog times it out, or it is canceled,
+      // even if the client does not send more data
+      listener.setExceptionHandler(new Runnable() {
+        public void run() {
+          fail(listener.getException());
+        }
+      });
+      parser = new MultipartParser(MultipartParser.getBoundary(request.getContentType()), request.getCharacterEncoding(), this);
+      request.getInputStream().setReadListener(this);
+    }
+
+    private synchronized void fail(Throwable e) {
+      if (done) {
+        return;
+      }
+      done = true;
+      IOUtils.closeQuietly(out);
+      for (FileItem i : items) {
+        i.delete();
+      }
+      RuntimeException ex = e instanceof RuntimeException ? (RuntimeException) e : new UploadException(e);
+      listener.setException(ex);
+      release();
+
+      XMLResponse xmlResponse = new XMLResponse();
+      if (ex instanceof UploadCanceledException) {
+        xmlResponse.addResponseTag(TAG_CANCELED, "true");
+      } else {
+        xmlResponse.addResponseTag(TAG_ERROR, ex.getMessage());
+      }
+      try {
+        renderXmlResponse(request, response, xmlResponse, true);
+      } catch (Exception ignore) {
+        // The client has gone
+      } finally {
+        context.complete();
+      }
+    }
+  }
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final long serialVersionUID = 2392458112034719542L;
+
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+    if (request.getAttribute(ATTR_RECEIVED_ITEMS) != null || !isAsyncSupported(request)
+        || MultipartParser.getBoundary(request.getContentType()) == null || getUploadSink(request) != null) {
+      super.doPost(request, response);
+      return;
+    }
+
+    XMLResponse xmlResponse = new XMLResponse();
+    String error = checkBusy(request);
+    if (error == null && request.getContentLengthLong() > maxSize) {
+      error = new UploadSizeLimitException(maxSize, request.getContentLengthLong()).getMessage();
+    }
+    if (error != null) {
+      xmlResponse.addResponseTag(TAG_ERROR, error);
+      renderXmlResponse(request, response, xmlResponse, true);
+      return;
+    }
+
+    FileItemFactory factory;
+    try {
+      factory = getRequestFileItemFactory(request, request.getContentLengthLong());
+    } catch (UploadBusyException e) {
+      renderBusyResponse(request, response, e);
+      return;
+    }
+
+    // It does not hold a thread while waiting its turn, so the client is asked to retry
+    if (!admissionController.tryAdmit(request.getSession().getId(), request.getContentLengthLong())) {
+      logger.info("UPLOAD-ASYNC (" + request.getSession().getId() + ") too many uploads in progress, the client will retry in " + BUSY_RETRY_AFTER_SECONDS + " seconds");
+      renderBusyResponse(request, response, new UploadBusyException(BUSY_RETRY_AFTER_SECONDS));
+      return;
+    }
+
+    logger.debug("UPLOAD-ASYNC (" + request.getSession().getId() + ") new upload request received.");
+    long started = System.currentTimeMillis();
+    UploadMetrics metrics = UploadMetrics.get();
+    if (metrics != null) {
+      metrics.uploadStarted();
+    }
+    AsyncContext context = null;
+    AsyncReceiver receiver = null;
+    try {
+      context = request.startAsync();
+      context.setTimeout(0);
+      receiver = new AsyncReceiver(context, request, response, createNewListener(request), factory);
+      receiver.start();
+    } catch (Exception e) {
+      logger.error("UPLOAD-ASYNC (" + request.getSession().getId() + ") unable to start receiving the upload: " + e.getMessage());
+      if (receiver != null) {
+        // It frees the room of the upload and sends the error
+        receiver.fail(e);
+        return;
+      }
+      admissionController.release(request.getSession().getId(), request.getContentLengthLong());
+      if (metrics != null) {
+        metrics.uploadFinished(e, System.currentTimeMillis() - started);
+      }
+      xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
+      try {
+        renderXmlResponse(request, response, xmlResponse, true);
+      } finally {
+        if (context != null) {
+          context.complete();
+        }
+      }
+    }
+  }
+}
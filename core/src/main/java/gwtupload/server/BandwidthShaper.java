@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * <p>
+ * Limits the bandwidth used to receive uploads.
+ * </p>
+ *
+ * There are three levels of limits, all of them optional: the bandwidth of all
+ * the uploads received by the servlet, the one of the uploads of each session,
+ * and the one of each upload. Each limit is a {@link TokenBucket} charged with
+ * the bytes read from the request, and the thread reading it waits until all
+ * of them allow it to continue.
+ *
+ * Limiting the total bandwidth lets bulk uploads use the uplink without
+ * starving the rest of the traffic.
+ */
+public class BandwidthShaper {
+
+  /**
+   * Request whose input stream is throttled.
+   */
+  private class ThrottledRequest extends HttpServletRequestWrapper {
+    private final TokenBucket[] buckets;
+    private ServletInputStream in;
+
+    ThrottledRequest(HttpServletRequest request, TokenBucket[] buckets) {
+      super(request);
+      this.buckets = buckets;
+    }
+
+    public ServletInputStream getInputStream() throws IOException {
+      if (in == null) {
+        in = new ThrottledInputStream(super.getInputStream(), buckets);
+      }
+      return in;
+    }
+  }
+
+  /**
+   * Input stream which waits after each read the time the buckets say.
+   */
+  private static class ThrottledInputStream extends ServletInputStream {
+    private final TokenBucket[] buckets;
+    private final ServletInputStream in;
+
+    ThrottledInputStream(ServletInputStream in, TokenBucket[] buckets) {
+      this.in = in;
+      this.buckets = buckets;
+    }
+
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+
+    public boolean isFinished() {
+      return in.isFinished();
+    }
+
+    public boolean isReady() {
+      return in.isReady();
+    }
+
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        throttle(1);
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      // Short reads, so the wait after each one is short too
+      int n = in.read(b, off, Math.min(len, MAX_READ));
+      if (n > 0) {
+        throttle(n);
+      }
+      return n;
+    }
+
+    public void setReadListener(ReadListener listener) {
+      in.setReadListener(listener);
+    }
+
+    private void throttle(int bytes) throws IOException {
+      long wait = 0;
+      for (TokenBucket bucket : buckets) {
+        wait = Math.max(wait, bucket.take(bytes));
+      }
+      if (wait > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while throttling the upload");
+        }
+      }
+    }
+  }
+
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static final int MAX_READ = 16 * 1024;
+
+  /**
+   * The burst allowed by a bucket, one second of its rate but not less than a read.
+   */
+  private static long capacity(long rate) {
+    return Math.max(rate, MAX_READ);
+  }
+
+  private final TokenBucket global;
+  private long lastSweep = System.nanoTime();
+  private final long sessionRate;
+  private final ConcurrentMap<String, TokenBucket> sessions = new ConcurrentHashMap<String, TokenBucket>();
+  private final long uploadRate;
+
+  /**
+   * @param globalRate bytes per second of all the uploads, 0 for no limit
+   * @param sessionRate bytes per second of the uploads of each session, 0 for no limit
+   * @param uploadRate bytes per second of each upload, 0 for no limit
+   */
+  public BandwidthShaper(long globalRate, long sessionRate, long uploadRate) {
+    this.global = globalRate > 0 ? new TokenBucket(globalRate, capacity(globalRate)) : null;
+    this.sessionRate = sessionRate;
+    this.uploadRate = uploadRate;
+  }
+
+  /**
+   * Return a request whose input stream is read at the configured rates.
+   *
+   * @param rate bytes per second of this upload, when it has to be lower than the
+   *        configured one, 0 otherwise
+   * @return the same request when there are no limits
+   */
+  public HttpServletRequest throttle(HttpServletRequest request, long rate) {
+    TokenBucket[] buckets = new TokenBucket[3];
+    int n = 0;
+    if (global != null) {
+      buckets[n++] = global;
+    }
+    if (sessionRate > 0) {
+      buckets[n++] = getSessionBucket(request.getSession().getId());
+    }
+    long limit = rate > 0 && (uploadRate <= 0 || rate < uploadRate) ? rate : uploadRate;
+    if (limit > 0) {
+      buckets[n++] = new TokenBucket(limit, capacity(limit));
+    }
+    if (n == 0) {
+      return request;
+    }
+    TokenBucket[] used = new TokenBucket[n];
+    System.arraycopy(buckets, 0, used, 0, n);
+    return new ThrottledRequest(request, used);
+  }
+
+  private TokenBucket getSessionBucket(String sessionId) {
+    sweep();
+    TokenBucket bucket = sessions.get(sessionId);
+    if (bucket == null) {
+      bucket = new TokenBucket(sessionRate, capacity(sessionRate));
+      TokenBucket previous = sessions.putIfAbsent(sessionId, bucket);
+      if (previous != null) {
+        bucket = previous;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Discard the buckets of sessions which have not uploaded for a while,
+   * a new bucket is equivalent to them because they are full.
+   */
+  private void sweep() {
+    long now = System.nanoTime();
+    synchronized (sessions) {
+      if (now - lastSweep < IDLE_NANOS) {
+        return;
+      }
+      lastSweep = now;
+    }
+    for (Iterator<TokenBucket> it = sessions.values().iterator(); it.hasNext();) {
+      if (it.next().isIdle(IDLE_NANOS)) {
+        it.remove();
+      }
+    }
+  }
+}
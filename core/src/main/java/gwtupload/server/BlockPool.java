@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * A pool of byte arrays of the same size.
+ * </p>
+ *
+ * Buffers made of blocks taken from a pool grow without copying, and their
+ * blocks are reused by other buffers when they are released, instead of
+ * allocating a new array for each upload. The pool keeps up to a maximum
+ * number of free blocks, the rest are left to the garbage collector.
+ */
+public class BlockPool {
+
+  private final int blockSize;
+  private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+  private final int maxFree;
+
+  /**
+   * @param blockSize size of the blocks
+   * @param maxFree max number of free blocks kept in the pool
+   */
+  public BlockPool(int blockSize, int maxFree) {
+    this.blockSize = blockSize;
+    this.maxFree = maxFree;
+  }
+
+  /**
+   * Take a block from the pool, or allocate a new one when it is empty.
+   * The content of the block is undefined.
+   */
+  public byte[] acquire() {
+    byte[] block;
+    synchronized (free) {
+      block = free.poll();
+    }
+    return block != null ? block : new byte[blockSize];
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getFreeBlocks() {
+    synchronized (free) {
+      return free.size();
+    }
+  }
+
+  /**
+   * Return a block to the pool. Arrays of other sizes are ignored.
+   */
+  public void release(byte[] block) {
+    if (block != null && block.length == blockSize) {
+      synchronized (free) {
+        if (free.size() < maxFree) {
+          free.push(block);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * Stores received files by the digest of their content.
+ * </p>
+ *
+ * Each distinct content is saved once, in a file named after its digest, and
+ * every item with the same content shares it. The store counts the items using
+ * each file, but releasing the last of them does not remove the file: items
+ * may still exist outside this count, in sessions saved to disk or restored
+ * after a restart. Files which nobody uses and which are older than the max age
+ * are removed by {@link #expire(long)}. Items restored from a session take their
+ * reference again, see {@link #restore(File, String)}.
+ *
+ * Files are grouped in sub-directories by the first characters of the digest so
+ * as directories don't grow too much. Files left by a previous execution are
+ * reused when the same content is received again.
+ *
+ * There must be a single store per directory.
+ */
+public class ContentStore {
+
+  public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private static final long EXPIRE_INTERVAL = 60 * 1000;
+
+  private static final String TMP_SUFFIX = ".tmp";
+
+  protected static UploadLogger logger = UploadLogger.getLogger(ContentStore.class);
+
+  // References of restored items whose store has not been created yet, by directory
+  private static final Map<File, Map<String, Integer>> restored = new HashMap<File, Map<String, Integer>>();
+
+  private static final Map<File, ContentStore> stores = new HashMap<File, ContentStore>();
+
+  /**
+   * Release a reference taken by {@link #restore(File, String)}.
+   */
+  static synchronized void release(File directory, String digest) {
+    ContentStore store = stores.get(directory.getAbsoluteFile());
+    if (store != null) {
+      store.release(digest);
+      return;
+    }
+    Map<String, Integer> pending = restored.get(directory.getAbsoluteFile());
+    Integer count = pending != null ? pending.get(digest) : null;
+    if (count != null && count > 1) {
+      pending.put(digest, count - 1);
+    } else if (count != null) {
+      pending.remove(digest);
+    }
+  }
+
+  /**
+   * Take again the reference of an item restored from a session. When the store
+   * of the directory has not been created yet, the reference is counted once it is.
+   *
+   * @return the store, or null if it has not been created yet
+   */
+  static synchronized ContentStore restore(File directory, String digest) {
+    ContentStore store = stores.get(directory.getAbsoluteFile());
+    if (store != null) {
+      store.acquire(digest);
+      return store;
+    }
+    Map<String, Integer> pending = restored.get(directory.getAbsoluteFile());
+    if (pending == null) {
+      pending = new HashMap<String, Integer>();
+      restored.put(directory.getAbsoluteFile(), pending);
+    }
+    Integer count = pending.get(digest);
+    pending.put(digest, count == null ? 1 : count + 1);
+    return null;
+  }
+
+  private final File directory;
+
+  private long lastExpire = 0;
+
+  private final long maxAge;
+
+  private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+  private final AtomicLong tmpCounter = new AtomicLong();
+
+  public ContentStore(File directory) {
+    this(directory, DEFAULT_MAX_AGE_MILLIS);
+  }
+
+  /**
+   * @param maxAge milliseconds a file is kept after the last item using it is deleted
+   */
+  public ContentStore(File directory, long maxAge) {
+    this.directory = directory;
+    this.maxAge = maxAge;
+    synchronized (ContentStore.class) {
+      stores.put(directory.getAbsoluteFile(), this);
+      Map<String, Integer> pending = restored.remove(directory.getAbsoluteFile());
+      if (pending != null) {
+        references.putAll(pending);
+      }
+    }
+  }
+
+  /**
+   * Remove the files which nobody uses and which have not been used for longer
+   * than the max age, and the temporary files as old as that.
+   *
+   * The directory is not scanned more than once per minute, so it can be called often.
+   */
+  public void expire(long now) {
+    synchronized (this) {
+      if (now - lastExpire < EXPIRE_INTERVAL) {
+        return;
+      }
+      lastExpire = now;
+    }
+    File[] dirs = directory.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    for (File dir : dirs) {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        synchronized (this) {
+          if (now - file.lastModified() > maxAge && !references.containsKey(file.getName()) && file.delete()) {
+            logger.debug("CONTENT-STORE: " + file.getName() + " removed");
+          }
+        }
+      }
+    }
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Return the file where the content with this digest is stored.
+   */
+  public File getFile(String digest) {
+    return new File(new File(directory, digest.substring(0, 2)), digest);
+  }
+
+  /**
+   * Return true if there is a stored content with this digest.
+   */
+  public synchronized boolean contains(String digest) {
+    return references.containsKey(digest) || getFile(digest).exists();
+  }
+
+  /**
+   * Return the number of items sharing the content with this digest.
+   */
+  public synchronized int getReferences(String digest) {
+    Integer count = references.get(digest);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Take a reference to a stored content.
+   *
+   * @return the stored file, or null if there is no content with this digest
+   */
+  public synchronized File acquire(String digest) {
+    File target = getFile(digest);
+    Integer count = references.get(digest);
+    if (count == null && !target.exists()) {
+      return null;
+    }
+    references.put(digest, count == null ? 1 : count + 1);
+    return target;
+  }
+
+  /**
+   * Move a received file to the store, or delete it when the same content
+   * is already stored, and take a reference to the stored content.
+   *
+   * @return the stored file
+   */
+  public File store(File source, String digest) throws IOException {
+    File target = acquire(digest);
+    if (target != null) {
+      FileUtils.deleteQuietly(source);
+      logger.debug("CONTENT-STORE: " + digest + " already stored, " + source.getName() + " deleted");
+      return target;
+    }
+    target = getFile(digest);
+    FileUtils.forceMkdir(target.getParentFile());
+    // Moving can mean copying when the store is in other device, so it is done
+    // to a temporary name without holding the lock
+    File tmp = new File(target.getParentFile(), digest + "." + tmpCounter.incrementAndGet() + TMP_SUFFIX);
+    FileUtils.moveFile(source, tmp);
+    synchronized (this) {
+      if (target.exists()) {
+        FileUtils.deleteQuietly(tmp);
+      } else if (!tmp.renameTo(target)) {
+        FileUtils.deleteQuietly(tmp);
+        throw new IOException("Unable to store " + target);
+      }
+      Integer count = references.get(digest);
+      references.put(digest, count == null ? 1 : count + 1);
+    }
+    logger.debug("CONTENT-STORE: " + digest + " stored in " + target);
+    return target;
+  }
+
+  /**
+   * Release a reference to a stored content. When nobody uses it, the file is
+   * kept until it expires.
+   */
+  public synchronized void release(String digest) {
+    Integer count = references.get(digest);
+    if (count != null && count > 1) {
+      references.put(digest, count - 1);
+    } else if (count != null) {
+      references.remove(digest);
+      getFile(digest).setLastModified(System.currentTimeMillis());
+      logger.debug("CONTENT-STORE: " + digest + " released");
+    }
+  }
+}
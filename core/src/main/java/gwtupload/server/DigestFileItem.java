@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * FileItem which computes the digest of the data written to other item.
+ * </p>
+ *
+ * When the data has been saved to a file and there is a {@link ContentStore},
+ * the file is moved to the store once the item is closed, and from then the
+ * item reads its content from the shared copy. Deleting the item releases
+ * its reference to that copy, and an item restored from a session takes it again.
+ */
+public class DigestFileItem implements FileItem, HasDigest {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  protected static UploadLogger logger = UploadLogger.getLogger(DigestFileItem.class);
+
+  /**
+   * Return the hexadecimal representation of a digest.
+   */
+  public static String toHex(byte[] digest) {
+    char[] ret = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      ret[i * 2] = HEX[digest[i] >> 4 & 0xf];
+      ret[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(ret);
+  }
+
+  /**
+   * Create an item whose content is a file already saved in the content store.
+   *
+   * @return the item, or null if there is no content with this digest in the store
+   */
+  public static DigestFileItem fromStore(ContentStore store, String digest, String algorithm, String fieldName, String contentType, String name) {
+    File file = store.acquire(digest);
+    if (file == null) {
+      return null;
+    }
+    DigestFileItem ret = new DigestFileItem(new StoredFileItem(fieldName, contentType, name, file), algorithm, store);
+    ret.digest = digest;
+    ret.stored = file;
+    return ret;
+  }
+
+  private final String algorithm;
+  private String digest;
+  private FileItem item;
+  private transient ContentStore store;
+  private File stored;
+
+  public DigestFileItem(FileItem item, String algorithm, ContentStore store) {
+    this.item = item;
+    this.algorithm = algorithm;
+    this.store = store;
+  }
+
+  public void delete() {
+    if (stored != null) {
+      if (store != null) {
+        store.release(digest);
+      } else {
+        ContentStore.release(stored.getParentFile().getParentFile(), digest);
+      }
+      stored = null;
+    } else {
+      item.delete();
+    }
+  }
+
+  public byte[] get() {
+    if (stored == null) {
+      return item.get();
+    }
+    InputStream in = null;
+    try {
+      in = getInputStream();
+      return IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public String getContentType() {
+    return item.getContentType();
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public String getFieldName() {
+    return item.getFieldName();
+  }
+
+  public FileItemHeaders getHeaders() {
+    return item.getHeaders();
+  }
+
+  public InputStream getInputStream() throws IOException {
+    return stored != null ? new FileInputStream(stored) : item.getInputStream();
+  }
+
+  /**
+   * Return the decorated item.
+   */
+  public FileItem getItem() {
+    return item;
+  }
+
+  public String getName() {
+    return item.getName();
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+    return new FilterOutputStream(new DigestOutputStream(item.getOutputStream(), md)) {
+      private boolean closed = false;
+
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      public void close() throws IOException {
+        super.close();
+        if (!closed) {
+          closed = true;
+          received(toHex(md.digest()));
+        }
+      }
+    };
+  }
+
+  public long getSize() {
+    return stored != null ? stored.length() : item.getSize();
+  }
+
+  /**
+   * Return the file where the content is, or null when it is in memory.
+   */
+  public File getStoreLocation() {
+    if (stored != null) {
+      return stored;
+    }
+    return UploadedFileServer.getStoreLocation(item);
+  }
+
+  public String getString() {
+    try {
+      return getString(DiskFileItem.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      return new String(get());
+    }
+  }
+
+  public String getString(String encoding) throws UnsupportedEncodingException {
+    if (stored == null) {
+      return item.getString(encoding);
+    }
+    byte[] data = get();
+    return data == null ? null : new String(data, encoding);
+  }
+
+  public boolean isFormField() {
+    return item.isFormField();
+  }
+
+  /**
+   * Return true if the content is shared with other items in the content store.
+   */
+  public boolean isStored() {
+    return stored != null;
+  }
+
+  public boolean isInMemory() {
+    return stored == null && item.isInMemory();
+  }
+
+  public void setFieldName(String name) {
+    item.setFieldName(name);
+  }
+
+  public void setFormField(boolean state) {
+    item.setFormField(state);
+  }
+
+  public void setHeaders(FileItemHeaders headers) {
+    item.setHeaders(headers);
+  }
+
+  /**
+   * Write the content to a file.
+   *
+   * The shared copy is never moved, so it is copied to the destination.
+   */
+  public void write(File file) throws Exception {
+    if (stored != null) {
+      FileUtils.copyFile(stored, file);
+    } else {
+      item.write(file);
+    }
+  }
+
+  public String toString() {
+    return "DigestFileItem " + getFieldName() + " => " + getName() + " (" + algorithm + " " + digest + ")";
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (stored != null) {
+      // Files of the store are in a sub-directory of it
+      store = ContentStore.restore(stored.getParentFile().getParentFile(), digest);
+    }
+  }
+
+  /**
+   * Called when all the data has been written.
+   */
+  protected void received(String digest) {
+    this.digest = digest;
+    File file = getStoreLocation();
+    if (store != null && file != null) {
+      try {
+        stored = store.store(file, digest);
+        // The file of the decorated item has been moved, so it could not be serialized
+        StoredFileItem storedItem = new StoredFileItem(item.getFieldName(), item.getContentType(), item.getName(), stored);
+        storedItem.setFormField(item.isFormField());
+        storedItem.setHeaders(item.getHeaders());
+        item = storedItem;
+      } catch (IOException e) {
+        logger.error("DigestFileItem: unable to move " + file + " to the content store", e);
+      }
+    }
+  }
+}
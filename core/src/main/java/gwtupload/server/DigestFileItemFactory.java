@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+
+/**
+ * <p>
+ * FileItemFactory which computes the digest of each received file.
+ * </p>
+ *
+ * It decorates other factory, and the digest is computed while the data is
+ * written to the items it creates, so files are not read again. When a
+ * {@link ContentStore} is given, files saved to disk are moved to it once
+ * received, and identical files share the same copy.
+ *
+ * <pre>
+ * protected FileItemFactory getFileItemFactory(long requestSize) {
+ *   return new DigestFileItemFactory(new DefaultFileItemFactory(), "SHA-256", contentStore);
+ * }
+ * </pre>
+ */
+public class DigestFileItemFactory implements FileItemFactory {
+
+  public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+  private final String algorithm;
+  private final FileItemFactory factory;
+  private final ContentStore store;
+
+  /**
+   * @param factory the factory which creates the items
+   * @param algorithm the name of the digest algorithm, SHA-256 if null
+   * @param store where received files are saved, or null to leave them where the factory puts them
+   *
+   * @throws IllegalArgumentException if the algorithm is not available
+   */
+  public DigestFileItemFactory(FileItemFactory factory, String algorithm, ContentStore store) {
+    this.factory = factory;
+    this.algorithm = algorithm != null ? algorithm : DEFAULT_ALGORITHM;
+    this.store = store;
+    checkAlgorithm(this.algorithm);
+  }
+
+  /**
+   * Check that the platform provides a digest algorithm.
+   *
+   * @throws IllegalArgumentException if the algorithm is not available
+   */
+  public static void checkAlgorithm(String algorithm) {
+    try {
+      MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Digest algorithm not available: " + algorithm, e);
+    }
+  }
+
+  public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName) {
+    FileItem item = factory.createItem(fieldName, contentType, isFormField, fileName);
+    return isFormField ? item : new DigestFileItem(item, algorithm, store);
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public ContentStore getStore() {
+    return store;
+  }
+}
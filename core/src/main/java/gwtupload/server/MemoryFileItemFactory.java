@@ -16,18 +16,22 @@
  */
 package gwtupload.server;
 
+import gwtupload.server.exceptions.UploadSizeLimitException;
+
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.FileItemHeaders;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static gwtupload.shared.UConsts.MULTI_SUFFIX;
 
@@ -39,54 +43,243 @@ import static gwtupload.shared.UConsts.MULTI_SUFFIX;
  * It doesn't support large files.
  * Useful for systems where write to file-system is not allowed.
  *
+ * The data of each item is kept in blocks taken from a pool shared by all the
+ * factories, so an item only uses the memory its data needs, and the blocks of
+ * deleted items are reused. The sum of the sizes of the items created by a
+ * factory can not exceed the request size given in the constructor.
+ *
  * @author Manolo Carrasco Moñino
  *
  */
 public class MemoryFileItemFactory implements FileItemFactory, Serializable {
 
   /**
-   * A serializable OutputStream stored in memory.
+   * A serializable OutputStream stored in memory, in blocks of the pool.
    *
    */
   public class SerializableByteArrayOutputStream extends OutputStream implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
-    private byte[] buff = new byte[requestSize];
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+    // Data as a single array, computed the first time it is asked
+    private byte[] contiguous = null;
+    // Bytes used in the last block
+    private int lastUsed = 0;
+    // Streams returned by getInputStream and not closed yet
+    private transient int openStreams = 0;
     private int size = 0;
 
-    public byte[] get() {
-      return buff;
+    /**
+     * Return the data. The first time it is called with data in several blocks,
+     * they are joined in a single array, the blocks are kept because streams
+     * may be reading them.
+     */
+    public synchronized byte[] get() {
+      if (contiguous == null || contiguous.length != size) {
+        if (blocks.size() == 1 && blocks.get(0).length == size) {
+          contiguous = blocks.get(0);
+        } else {
+          byte[] ret = new byte[size];
+          int pos = 0;
+          for (byte[] block : blocks) {
+            int n = Math.min(block.length, size - pos);
+            System.arraycopy(block, 0, ret, pos, n);
+            pos += n;
+          }
+          contiguous = ret;
+        }
+      }
+      return contiguous;
+    }
+
+    /**
+     * Return a stream which reads the blocks without copying them.
+     *
+     * While it is open, deleting the item does not return the blocks to the
+     * pool, they are left to the garbage collector.
+     */
+    public synchronized InputStream getInputStream() {
+      final byte[][] data = blocks.toArray(new byte[blocks.size()][]);
+      final int length = size;
+      openStreams++;
+      return new InputStream() {
+        private int block = 0;
+        private boolean closed = false;
+        private int pos = 0;
+        private int read = 0;
+
+        public int available() {
+          return length - read;
+        }
+
+        public void close() {
+          synchronized (SerializableByteArrayOutputStream.this) {
+            if (!closed) {
+              closed = true;
+              openStreams--;
+            }
+          }
+        }
+
+        public int read() {
+          if (read >= length) {
+            return -1;
+          }
+          byte[] current = data[block];
+          int ret = current[pos++] & 0xff;
+          read++;
+          if (pos == current.length) {
+            block++;
+            pos = 0;
+          }
+          return ret;
+        }
+
+        public int read(byte[] b, int off, int len) {
+          if (read >= length) {
+            return -1;
+          }
+          if (len == 0) {
+            return 0;
+          }
+          byte[] current = data[block];
+          int n = Math.min(len, Math.min(current.length - pos, length - read));
+          System.arraycopy(current, pos, b, off, n);
+          pos += n;
+          read += n;
+          if (pos == current.length) {
+            block++;
+            pos = 0;
+          }
+          return n;
+        }
+      };
     }
 
-    public void reset() {
+    public synchronized void reset() {
+      used.addAndGet(-size);
+      releaseBlocks();
+      contiguous = null;
       size = 0;
+      lastUsed = 0;
     }
 
     public int size() {
       return size;
     }
 
+    public String toString() {
+      return new String(get());
+    }
+
     @Override
-    public void write(int b) throws IOException {
-      buff[size++] = (byte) b;
+    public synchronized void write(int b) throws IOException {
+      reserve(1);
+      byte[] last = lastBlock();
+      last[lastUsed++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (len <= 0) {
+        return;
+      }
+      reserve(len);
+      while (len > 0) {
+        byte[] last = lastBlock();
+        int n = Math.min(len, last.length - lastUsed);
+        System.arraycopy(b, off, last, lastUsed, n);
+        lastUsed += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Return the last block, adding a new one when it is full.
+     */
+    private byte[] lastBlock() {
+      byte[] last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+      if (last == null || lastUsed == last.length) {
+        last = pool().acquire();
+        blocks.add(last);
+        lastUsed = 0;
+      }
+      return last;
+    }
+
+    private void releaseBlocks() {
+      // Blocks read by open streams are not reused
+      if (openStreams == 0) {
+        for (byte[] block : blocks) {
+          // The array returned by get() may still be used by the application
+          if (block != contiguous) {
+            pool().release(block);
+          }
+        }
+      }
+      blocks.clear();
+    }
+
+    private void reserve(int len) {
+      long total = used.addAndGet(len);
+      if (total > requestSize) {
+        used.addAndGet(-len);
+        throw new UploadSizeLimitException(requestSize, total);
+      }
+      size += len;
     }
   }
 
+  private static final int BLOCK_SIZE = 16 * 1024;
+
   private static final int DEFAULT_REQUEST_SIZE = 4096 * 1024;
 
+  // Up to 16 MB of free blocks are kept
+  private static final BlockPool DEFAULT_POOL = new BlockPool(BLOCK_SIZE, 1024);
+
   private static final long serialVersionUID = 1L;
 
   int requestSize;
 
   private HashMap<String, Integer> map = new HashMap<String, Integer>();
 
+  private transient BlockPool pool;
+
+  // Bytes stored by the items of this factory
+  private final AtomicLong used = new AtomicLong();
+
   public MemoryFileItemFactory() {
     this(DEFAULT_REQUEST_SIZE);
   }
 
   public MemoryFileItemFactory(int requestSize) {
+    this(requestSize, DEFAULT_POOL);
+  }
+
+  /**
+   * @param requestSize max sum of the sizes of the items created by this factory
+   * @param pool pool of the blocks where the data is stored
+   */
+  public MemoryFileItemFactory(int requestSize, BlockPool pool) {
     this.requestSize = requestSize;
+    this.pool = pool;
+  }
+
+  /**
+   * Return the bytes stored by the items created by this factory.
+   */
+  public long getUsedMemory() {
+    return used.get();
+  }
+
+  private BlockPool pool() {
+    // After deserialization items use the default pool
+    if (pool == null) {
+      pool = DEFAULT_POOL;
+    }
+    return pool;
   }
 
   public FileItem createItem(String fieldName, final String contentType, final boolean isFormField, final String fileName) {
@@ -129,7 +322,7 @@ public class MemoryFileItemFactory implements FileItemFactory, Serializable {
       }
 
       public InputStream getInputStream() throws IOException {
-        return new ByteArrayInputStream(get());
+        return data.getInputStream();
       }
 
       public String getName() {
@@ -145,7 +338,7 @@ public class MemoryFileItemFactory implements FileItemFactory, Serializable {
       }
 
       public String getString() {
-        return data.toString();
+        return new String(get());
       }
 
       public String getString(String arg0) throws UnsupportedEncodingException {
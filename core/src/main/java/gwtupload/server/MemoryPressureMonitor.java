@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * <p>
+ * Detects when the java heap is almost full, so as new uploads are not
+ * received in memory while the garbage collector is struggling.
+ * </p>
+ *
+ * It sets a usage threshold, by default measured after a collection, in the
+ * heap pools which support it, usually the old generation, and it is notified
+ * by the JVM when the threshold is crossed. The pressure is over when the
+ * usage of all those pools falls 10% below the threshold again
+ * so as the state does not flip on every collection. That is checked when
+ * asking for the state, at most once per second.
+ *
+ * Thresholds are a setting of the JVM, so only one monitor should be started.
+ */
+public class MemoryPressureMonitor implements NotificationListener {
+
+  private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+  private static final double RELEASE_MARGIN = 0.1;
+
+  private static UploadLogger logger = UploadLogger.getLogger(MemoryPressureMonitor.class);
+
+  private final AtomicLong diverted = new AtomicLong();
+  private volatile long lastCheck = 0;
+  private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+  private final AtomicLong pressureEvents = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final double threshold;
+  private volatile boolean underPressure = false;
+
+  /**
+   * @param threshold fraction of the max size of the heap pools, between 0 and 1
+   */
+  public MemoryPressureMonitor(double threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Count a request received in disk instead of in memory because of the pressure.
+   */
+  public void diverted() {
+    diverted.incrementAndGet();
+  }
+
+  public long getDiverted() {
+    return diverted.get();
+  }
+
+  /**
+   * Return the times the threshold has been exceeded.
+   */
+  public long getPressureEvents() {
+    return pressureEvents.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  public void handleNotification(Notification notification, Object handback) {
+    String type = notification.getType();
+    if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+        || MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+      if (!underPressure) {
+        logger.info("UPLOAD-MEMORY heap usage over " + Math.round(threshold * 100) + "% in " + notification.getMessage());
+        pressureEvents.incrementAndGet();
+      }
+      lastCheck = System.currentTimeMillis();
+      underPressure = true;
+    }
+  }
+
+  /**
+   * Return true while the heap is over the threshold.
+   */
+  public boolean isUnderPressure() {
+    if (underPressure) {
+      long now = System.currentTimeMillis();
+      if (now - lastCheck > CHECK_INTERVAL_MILLIS) {
+        lastCheck = now;
+        if (!isOver(threshold * (1 - RELEASE_MARGIN))) {
+          logger.info("UPLOAD-MEMORY heap usage back under " + Math.round(threshold * 100) + "%");
+          underPressure = false;
+        }
+      }
+    }
+    return underPressure;
+  }
+
+  /**
+   * Count a request rejected because of the pressure.
+   */
+  public void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  /**
+   * Set the thresholds in the heap pools and start receiving notifications.
+   *
+   * @return false when no heap pool supports thresholds
+   */
+  public synchronized boolean start() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP) {
+        continue;
+      }
+      if (pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsage() != null) {
+        long max = maxOf(pool.getCollectionUsage());
+        if (max > 0) {
+          pool.setCollectionUsageThreshold((long) (max * threshold));
+          pools.add(pool);
+        }
+      } else if (pool.isUsageThresholdSupported()) {
+        long max = maxOf(pool.getUsage());
+        if (max > 0) {
+          pool.setUsageThreshold((long) (max * threshold));
+          pools.add(pool);
+        }
+      }
+    }
+    if (pools.isEmpty()) {
+      return false;
+    }
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    return true;
+  }
+
+  /**
+   * Stop receiving notifications and remove the thresholds.
+   */
+  public synchronized void stop() {
+    try {
+      ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+    } catch (ListenerNotFoundException e) {
+    }
+    for (MemoryPoolMXBean pool : pools) {
+      if (pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsage() != null) {
+        pool.setCollectionUsageThreshold(0);
+      } else {
+        pool.setUsageThreshold(0);
+      }
+    }
+    pools.clear();
+    underPressure = false;
+  }
+
+  private boolean isOver(double fraction) {
+    for (MemoryPoolMXBean pool : pools) {
+      MemoryUsage usage = pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsage() != null
+          ? pool.getCollectionUsage() : pool.getUsage();
+      long max = maxOf(usage);
+      if (max > 0 && usage.getUsed() > max * fraction) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long maxOf(MemoryUsage usage) {
+    return usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.ParameterParser;
+import org.apache.commons.fileupload.util.FileItemHeadersImpl;
+
+/**
+ * <p>
+ * Incremental parser of multipart/form-data bodies.
+ * </p>
+ *
+ * Unlike commons-fileupload's MultipartStream, which pulls data from a blocking
+ * InputStream, this parser is pushed with whatever bytes are available, so it can
+ * be driven by a non-blocking ReadListener. It is a state machine which keeps, between
+ * two calls to feed(), only the bytes which could be the beginning of a boundary or
+ * of an incomplete header block.
+ *
+ * Nested multipart/mixed parts are not expanded, they are handled as a single part.
+ */
+public class MultipartParser {
+
+  /**
+   * Receives the parts found by the parser.
+   */
+  public interface PartHandler {
+    void startPart(String fieldName, String fileName, String contentType, FileItemHeaders headers) throws IOException;
+
+    void partData(byte[] buffer, int offset, int length) throws IOException;
+
+    void endPart() throws IOException;
+  }
+
+  private enum State {
+    PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE
+  }
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+  private static final int MAX_HEADERS_SIZE = 10 * 1024;
+
+  /**
+   * Extract the boundary from a multipart content-type header.
+   *
+   * @return the boundary or null if the content-type doesn't have it
+   */
+  public static String getBoundary(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    ParameterParser parser = new ParameterParser();
+    parser.setLowerCaseNames(true);
+    Map<String, String> params = parser.parse(contentType, new char[] {';', ','});
+    return params.get("boundary");
+  }
+
+  private byte[] buffer;
+  private final byte[] delimiter;
+  private final String headerEncoding;
+  private final PartHandler handler;
+  private int length = 0;
+  private State state = State.PREAMBLE;
+
+  public MultipartParser(String boundary, String headerEncoding, PartHandler handler) throws IOException {
+    // The first boundary has not a preceding CRLF, this is solved feeding it at the beginning
+    this.delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+    this.headerEncoding = headerEncoding != null ? headerEncoding : "ISO-8859-1";
+    this.handler = handler;
+    buffer = new byte[Math.max(8 * 1024, delimiter.length * 2)];
+    feed(CRLF, 0, CRLF.length);
+  }
+
+  /**
+   * Process a block of bytes of the request body.
+   */
+  public void feed(byte[] data, int offset, int len) throws IOException {
+    if (state == State.EPILOGUE) {
+      return;
+    }
+    ensureCapacity(length + len);
+    System.arraycopy(data, offset, buffer, length, len);
+    length += len;
+
+    int pos = 0;
+    boolean more = true;
+    while (more) {
+      switch (state) {
+        case PREAMBLE:
+          int i = indexOf(buffer, pos, length, delimiter);
+          if (i < 0) {
+            pos = Math.max(pos, length - delimiter.length + 1);
+            more = false;
+          } else {
+            pos = i + delimiter.length;
+            state = State.DELIMITER;
+          }
+          break;
+        case DELIMITER:
+          if (length - pos < 2) {
+            more = false;
+          } else if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            pos = length;
+            state = State.EPILOGUE;
+            more = false;
+          } else if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+            pos += 2;
+            state = State.HEADERS;
+          } else if (buffer[pos] == ' ' || buffer[pos] == '\t') {
+            // Transport padding after the boundary
+            pos++;
+          } else {
+            throw new IOException("Malformed multipart stream, unexpected characters after boundary");
+          }
+          break;
+        case HEADERS:
+          int end = indexOf(buffer, pos, length, HEADERS_END);
+          if (length - pos >= 2 && buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+            // A part without headers
+            startPart("");
+            pos += 2;
+            state = State.BODY;
+          } else if (end >= 0) {
+            startPart(new String(buffer, pos, end - pos, headerEncoding));
+            pos = end + HEADERS_END.length;
+            state = State.BODY;
+          } else if (length - pos > MAX_HEADERS_SIZE) {
+            throw new IOException("Malformed multipart stream, part headers are too large");
+          } else {
+            more = false;
+          }
+          break;
+        case BODY:
+          int j = indexOf(buffer, pos, length, delimiter);
+          if (j < 0) {
+            // The tail could be the beginning of the delimiter
+            int safe = Math.max(pos, length - delimiter.length + 1);
+            if (safe > pos) {
+              handler.partData(buffer, pos, safe - pos);
+              pos = safe;
+            }
+            more = false;
+          } else {
+            if (j > pos) {
+              handler.partData(buffer, pos, j - pos);
+            }
+            handler.endPart();
+            pos = j + delimiter.length;
+            state = State.DELIMITER;
+          }
+          break;
+        default:
+          pos = length;
+          more = false;
+      }
+    }
+
+    // Carry over the unprocessed bytes
+    System.arraycopy(buffer, pos, buffer, 0, length - pos);
+    length -= pos;
+  }
+
+  /**
+   * Return true when the closing boundary has been found.
+   */
+  public boolean isComplete() {
+    return state == State.EPILOGUE;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > buffer.length) {
+      byte[] b = new byte[Math.max(size, buffer.length * 2)];
+      System.arraycopy(buffer, 0, b, 0, length);
+      buffer = b;
+    }
+  }
+
+  private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+    int last = to - pattern.length;
+    for (int i = from; i <= last; i++) {
+      int k = 0;
+      while (k < pattern.length && data[i + k] == pattern[k]) {
+        k++;
+      }
+      if (k == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void startPart(String block) throws IOException {
+    FileItemHeadersImpl headers = new FileItemHeadersImpl();
+    for (String line : block.split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.addHeader(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+    String disposition = headers.getHeader("content-disposition");
+    if (disposition == null || !disposition.toLowerCase().startsWith("form-data")) {
+      throw new IOException("Malformed multipart stream, part without form-data disposition");
+    }
+    ParameterParser parser = new ParameterParser();
+    parser.setLowerCaseNames(true);
+    Map<String, String> params = parser.parse(disposition, ';');
+    handler.startPart(params.get("name"), params.get("filename"), headers.getHeader("content-type"), headers);
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Item created by {@link OffHeapFileItemFactory}, its content is in blocks of
+ * direct memory until it is moved to a temporary file.
+ * </p>
+ *
+ * When the item is serialized, for instance with the session, a content still
+ * in memory is moved to its temporary file first. Items which are not deleted
+ * release their memory and their file when they are garbage collected.
+ *
+ * While a stream returned by getInputStream is open, deleting the item does
+ * not return its blocks to the budget for other items, they are left to the
+ * garbage collector.
+ */
+public class OffHeapFileItem implements FileItem {
+
+  /**
+   * Writes to the blocks, moving the content to a file when it does not fit.
+   */
+  private class BlocksOutputStream extends OutputStream {
+    public void close() throws IOException {
+      synchronized (OffHeapFileItem.this) {
+        if (fileOut != null) {
+          fileOut.close();
+          fileOut = null;
+        }
+      }
+    }
+
+    public void flush() throws IOException {
+      synchronized (OffHeapFileItem.this) {
+        if (fileOut != null) {
+          fileOut.flush();
+        }
+      }
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (OffHeapFileItem.this) {
+        writeData(b, off, len);
+      }
+    }
+
+    private void writeData(byte[] b, int off, int len) throws IOException {
+      if (file == null && size + len > threshold) {
+        spill();
+        budget.spilled(true);
+      }
+      while (file == null && capacity() - size < len) {
+        ByteBuffer block = budget.acquire();
+        if (block == null) {
+          spill();
+          budget.spilled(false);
+        } else {
+          blocks.add(block);
+        }
+      }
+      size += len;
+      if (fileOut != null) {
+        fileOut.write(b, off, len);
+        return;
+      }
+      int i = blocks.size() - 1;
+      while (i > 0 && blocks.get(i - 1).hasRemaining()) {
+        i--;
+      }
+      while (len > 0) {
+        ByteBuffer block = blocks.get(i++);
+        int n = Math.min(len, block.remaining());
+        block.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+  }
+
+  private static final String TEMP_PREFIX = "upload_";
+
+  private static final long serialVersionUID = 1L;
+
+  private transient List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+  private transient OffHeapFileItemFactory.Budget budget;
+  private String contentType;
+  private String fieldName;
+  private File file;
+  private String fileName;
+  private transient OutputStream fileOut;
+  // Streams returned by getInputStream which read the blocks and are not closed yet
+  private transient int openStreams = 0;
+  private FileItemHeaders headers;
+  private boolean isFormField;
+  private transient OutputStream out;
+  private final File repository;
+  private long size = 0;
+  private final int threshold;
+
+  OffHeapFileItem(String fieldName, String contentType, boolean isFormField, String fileName,
+      OffHeapFileItemFactory.Budget budget, int threshold, File repository) {
+    this.fieldName = fieldName;
+    this.contentType = contentType;
+    this.isFormField = isFormField;
+    this.fileName = fileName;
+    this.budget = budget;
+    this.threshold = threshold;
+    this.repository = repository;
+  }
+
+  public synchronized void delete() {
+    releaseBlocks();
+    IOUtils.closeQuietly(fileOut);
+    fileOut = null;
+    if (file != null) {
+      FileUtils.deleteQuietly(file);
+    }
+  }
+
+  public synchronized byte[] get() {
+    if (file != null) {
+      try {
+        return FileUtils.readFileToByteArray(file);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    byte[] ret = new byte[(int) size];
+    int pos = 0;
+    for (ByteBuffer block : blocks) {
+      ByteBuffer data = (ByteBuffer) block.duplicate().flip();
+      int n = data.remaining();
+      data.get(ret, pos, n);
+      pos += n;
+    }
+    return ret;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public FileItemHeaders getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Return a stream which reads the content, without copying it when it is in memory.
+   */
+  public synchronized InputStream getInputStream() throws IOException {
+    if (file != null) {
+      return new FileInputStream(file);
+    }
+    final List<ByteBuffer> data = new ArrayList<ByteBuffer>(blocks.size());
+    for (ByteBuffer block : blocks) {
+      data.add((ByteBuffer) block.duplicate().flip());
+    }
+    openStreams++;
+    return new InputStream() {
+      private boolean closed = false;
+      private int i = 0;
+
+      public int available() {
+        int n = 0;
+        for (int j = i; j < data.size(); j++) {
+          n += data.get(j).remaining();
+        }
+        return n;
+      }
+
+      public void close() {
+        synchronized (OffHeapFileItem.this) {
+          if (!closed) {
+            closed = true;
+            openStreams--;
+          }
+        }
+      }
+
+      public int read() {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) {
+        while (i < data.size() && !data.get(i).hasRemaining()) {
+          i++;
+        }
+        if (i == data.size()) {
+          return -1;
+        }
+        ByteBuffer block = data.get(i);
+        int n = Math.min(len, block.remaining());
+        block.get(b, off, n);
+        return n;
+      }
+    };
+  }
+
+  public String getName() {
+    return fileName;
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    if (out == null) {
+      out = new BlocksOutputStream();
+    }
+    return out;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Return the temporary file with the content, or null when it is in memory.
+   */
+  public File getStoreLocation() {
+    return file;
+  }
+
+  public String getString() {
+    try {
+      return getString(DiskFileItem.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      return new String(get());
+    }
+  }
+
+  public String getString(String encoding) throws UnsupportedEncodingException {
+    byte[] data = get();
+    return data == null ? null : new String(data, encoding);
+  }
+
+  public boolean isFormField() {
+    return isFormField;
+  }
+
+  public boolean isInMemory() {
+    return file == null;
+  }
+
+  public void setFieldName(String name) {
+    fieldName = name;
+  }
+
+  public void setFormField(boolean state) {
+    isFormField = state;
+  }
+
+  public void setHeaders(FileItemHeaders headers) {
+    this.headers = headers;
+  }
+
+  public String toString() {
+    return "OffHeapFileItem " + fieldName + " => " + fileName + " (" + size + " bytes " + (file == null ? "in memory" : "in " + file) + ")";
+  }
+
+  /**
+   * Write the content to a file, the temporary file is moved when it is possible.
+   */
+  public synchronized void write(File dest) throws Exception {
+    if (file != null) {
+      if (!file.renameTo(dest)) {
+        FileUtils.copyFile(file, dest);
+      }
+      return;
+    }
+    FileOutputStream fos = new FileOutputStream(dest);
+    try {
+      writeBlocks(fos.getChannel());
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Return the blocks to the budget and remove the temporary file when the
+   * item is discarded without calling delete, for instance when the session
+   * expires, like DiskFileItem does with its file.
+   */
+  @Override
+  protected void finalize() throws Throwable {
+    try {
+      delete();
+    } finally {
+      super.finalize();
+    }
+  }
+
+  private int capacity() {
+    return blocks.size() * budget.getBlockSize();
+  }
+
+  private void releaseBlocks() {
+    if (blocks != null) {
+      for (ByteBuffer block : blocks) {
+        // Blocks read by open streams are not reused
+        if (openStreams == 0) {
+          budget.release(block);
+        } else {
+          budget.discard(block);
+        }
+      }
+      blocks.clear();
+    }
+  }
+
+  /**
+   * Move the content to a temporary file, which receives the rest of the data.
+   */
+  private void spill() throws IOException {
+    File tmp = File.createTempFile(TEMP_PREFIX, ".tmp", repository);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      writeBlocks(fos.getChannel());
+    } catch (IOException e) {
+      fos.close();
+      FileUtils.deleteQuietly(tmp);
+      throw e;
+    }
+    file = tmp;
+    fileOut = new BufferedOutputStream(fos, budget.getBlockSize());
+    releaseBlocks();
+  }
+
+  private void writeBlocks(FileChannel channel) throws IOException {
+    for (ByteBuffer block : blocks) {
+      ByteBuffer data = (ByteBuffer) block.duplicate().flip();
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+    }
+  }
+
+  private synchronized void writeObject(ObjectOutputStream stream) throws IOException {
+    if (file == null && size > 0) {
+      spill();
+      fileOut.close();
+      fileOut = null;
+    }
+    stream.defaultWriteObject();
+  }
+
+  private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+    stream.defaultReadObject();
+    blocks = new ArrayList<ByteBuffer>();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+
+/**
+ * <p>
+ * FileItemFactory which keeps small and medium items in direct buffers,
+ * out of the java heap, and the rest in temporary files.
+ * </p>
+ *
+ * Items are written to blocks of direct memory taken from a {@link Budget}
+ * shared by all the factories of the servlet. When an item grows over the
+ * threshold, or the budget is exhausted, its content is moved to a temporary
+ * file, like DiskFileItemFactory does, and the item continues in the file.
+ *
+ * Many uploads of medium size in progress do not fill the heap, causing long
+ * garbage collections, nor use the disk for files which fit in memory.
+ */
+public class OffHeapFileItemFactory implements FileItemFactory {
+
+  /**
+   * Direct memory shared by the items of several factories.
+   *
+   * The blocks released by the items are kept for other items, so direct
+   * buffers, which are expensive to allocate, are allocated only once. The
+   * memory allocated never exceeds the max size of the budget.
+   */
+  public static class Budget {
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong budgetSpills = new AtomicLong();
+    private final int blockSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final long max;
+    private final AtomicLong thresholdSpills = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param max max bytes of direct memory
+     * @param blockSize size of the blocks where items are written
+     */
+    public Budget(long max, int blockSize) {
+      this.max = max;
+      this.blockSize = blockSize;
+    }
+
+    public Budget(long max) {
+      this(max, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Take a cleared block, or return null when the budget is exhausted.
+     */
+    ByteBuffer acquire() {
+      ByteBuffer block = free.poll();
+      if (block == null) {
+        long n;
+        do {
+          n = allocated.get();
+          if (n + blockSize > max) {
+            return null;
+          }
+        } while (!allocated.compareAndSet(n, n + blockSize));
+        block = ByteBuffer.allocateDirect(blockSize);
+      }
+      used.addAndGet(blockSize);
+      block.clear();
+      return block;
+    }
+
+    void release(ByteBuffer block) {
+      used.addAndGet(-blockSize);
+      free.add(block);
+    }
+
+    /**
+     * Forget a block which can not be reused because it is still being read,
+     * the garbage collector frees it and a new one is allocated in its place.
+     */
+    void discard(ByteBuffer block) {
+      used.addAndGet(-blockSize);
+      allocated.addAndGet(-blockSize);
+    }
+
+    void spilled(boolean overThreshold) {
+      (overThreshold ? thresholdSpills : budgetSpills).incrementAndGet();
+    }
+
+    /**
+     * Return the bytes of direct memory allocated, used or free.
+     */
+    public long getAllocated() {
+      return allocated.get();
+    }
+
+    public int getBlockSize() {
+      return blockSize;
+    }
+
+    /**
+     * Return the number of items moved to disk because the budget was exhausted.
+     */
+    public long getBudgetSpills() {
+      return budgetSpills.get();
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Return the number of items moved to disk because they were larger than the threshold.
+     */
+    public long getThresholdSpills() {
+      return thresholdSpills.get();
+    }
+
+    /**
+     * Return the bytes of direct memory used by items.
+     */
+    public long getUsed() {
+      return used.get();
+    }
+  }
+
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+  private final Budget budget;
+  private final HashMap<String, Integer> map = new HashMap<String, Integer>();
+  private final File repository;
+  private final int threshold;
+
+  /**
+   * @param budget direct memory available
+   * @param threshold max size of an item kept in memory
+   * @param repository directory of the temporary files, null for the system one
+   */
+  public OffHeapFileItemFactory(Budget budget, int threshold, File repository) {
+    this.budget = budget;
+    this.threshold = threshold;
+    this.repository = repository;
+  }
+
+  public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName) {
+    return new OffHeapFileItem(UploadServlet.indexedFieldName(map, fieldName), contentType, isFormField, fileName,
+        budget, threshold, repository);
+  }
+
+  public Budget getBudget() {
+    return budget;
+  }
+}
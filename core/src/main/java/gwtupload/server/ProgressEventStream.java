@@ -0,0 +1,307 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import static gwtupload.shared.UConsts.TAG_CANCELED;
+import static gwtupload.shared.UConsts.TAG_CURRENT_BYTES;
+import static gwtupload.shared.UConsts.TAG_ERROR;
+import static gwtupload.shared.UConsts.TAG_FINISHED;
+import static gwtupload.shared.UConsts.TAG_PERCENT;
+import static gwtupload.shared.UConsts.TAG_RESPONSE;
+import static gwtupload.shared.UConsts.TAG_TOTAL_BYTES;
+import gwtupload.server.exceptions.UploadCanceledException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Server-Sent Events stream with the progress of the uploads of a session.
+ * </p>
+ *
+ * Instead of polling the servlet, a client can open an EventSource and the
+ * listener of the upload pushes the progress each time it is updated. Every
+ * subscriber has a minimum interval between events, so fast uploads do not
+ * flood the connection; the final event (finished, error or canceled) is always
+ * sent and closes the stream. Events are written with the non-blocking output of
+ * Servlet 3.1, so a slow client does not slow the upload nor the other clients.
+ *
+ * Events contain the same xml tags as the status responses, written in a single line.
+ * When the client gives the name of an upload, only the events of that upload are sent.
+ * It needs a container supporting Servlet 3.1.
+ */
+public class ProgressEventStream {
+
+  /**
+   * An open event stream.
+   *
+   * Events are written with non-blocking output: an event is written only when
+   * the connection is ready, otherwise it waits until the container calls
+   * onWritePossible. A progress event not written yet is replaced by the next
+   * one, so a slow or dead client keeps only the latest state and never blocks
+   * the thread receiving the upload nor other subscribers.
+   */
+  private static class Subscriber implements AsyncListener, WriteListener {
+    private boolean closed = false;
+    final AsyncContext context;
+    // Data written to the stream before the events
+    private String head;
+    final long interval;
+    volatile long lastQueued = 0;
+    final Locale locale;
+    private ServletOutputStream out;
+    private String pending = null;
+    private boolean pendingLast = false;
+    private boolean sentLast = false;
+    final String sessionId;
+    private boolean unflushed = false;
+    final String uploadName;
+
+    Subscriber(String sessionId, String uploadName, Locale locale, AsyncContext context, long interval, String head) {
+      this.sessionId = sessionId;
+      this.uploadName = uploadName;
+      this.locale = locale;
+      this.context = context;
+      this.interval = interval;
+      this.head = head;
+    }
+
+    public void onComplete(AsyncEvent event) throws IOException {
+      close();
+    }
+
+    public void onError(AsyncEvent event) throws IOException {
+      close();
+    }
+
+    public void onError(Throwable t) {
+      close();
+      context.complete();
+    }
+
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    public void onTimeout(AsyncEvent event) throws IOException {
+      // The browser reconnects automatically
+      close();
+      context.complete();
+    }
+
+    public void onWritePossible() throws IOException {
+      drain();
+    }
+
+    /**
+     * Queue an event and write it if the connection is ready. The last event is never replaced.
+     */
+    void offer(String data, boolean last) {
+      synchronized (this) {
+        if (closed || pendingLast) {
+          return;
+        }
+        pending = data;
+        pendingLast = last;
+        lastQueued = System.currentTimeMillis();
+      }
+      drain();
+    }
+
+    void start(ServletOutputStream out) {
+      synchronized (this) {
+        this.out = out;
+      }
+      out.setWriteListener(this);
+    }
+
+    private void close() {
+      synchronized (this) {
+        closed = true;
+        pending = null;
+      }
+      unsubscribe(this);
+    }
+
+    /**
+     * Write while the connection is ready, it never blocks.
+     */
+    private void drain() {
+      boolean complete = false;
+      synchronized (this) {
+        if (out == null) {
+          return;
+        }
+        try {
+          while (!closed && out.isReady()) {
+            if (unflushed) {
+              out.flush();
+              unflushed = false;
+            } else if (sentLast) {
+              complete = true;
+              break;
+            } else if (head != null) {
+              out.write(head.getBytes("UTF-8"));
+              head = null;
+              unflushed = true;
+            } else if (pending != null) {
+              StringBuilder sb = new StringBuilder(pending.length() + 16);
+              for (String line : pending.split("\n")) {
+                sb.append("data: ").append(line).append('\n');
+              }
+              sb.append('\n');
+              out.write(sb.toString().getBytes("UTF-8"));
+              sentLast = pendingLast;
+              pending = null;
+              unflushed = true;
+            } else {
+              break;
+            }
+          }
+        } catch (Exception e) {
+          complete = true;
+        }
+      }
+      if (complete) {
+        close();
+        context.complete();
+      }
+    }
+  }
+
+  public static final long MIN_INTERVAL = 100;
+
+  private static final int RECONNECT_MILLIS = 2000;
+
+  private static final long STREAM_TIMEOUT = 60000;
+
+  protected static UploadLogger logger = UploadLogger.getLogger(ProgressEventStream.class);
+
+  private static final ConcurrentMap<String, List<Subscriber>> subscribers = new ConcurrentHashMap<String, List<Subscriber>>();
+
+  /**
+   * Opens an event stream in the response. The request must support async mode.
+   *
+   * @param interval minimum milliseconds between two progress events
+   * @param listener the listener of the upload in progress, if any, so its state is sent at once
+   */
+  public static void subscribe(HttpServletRequest request, HttpServletResponse response, long interval, AbstractUploadListener listener) throws IOException {
+    String sessionId = request.getSession().getId();
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    AsyncContext context = request.startAsync();
+    context.setTimeout(STREAM_TIMEOUT);
+
+    Subscriber subscriber = new Subscriber(sessionId, UploadServlet.getUploadName(request), request.getLocale(), context,
+        Math.max(MIN_INTERVAL, interval), "retry: " + RECONNECT_MILLIS + "\n\n");
+    context.addListener(subscriber);
+    subscriber.start(response.getOutputStream());
+
+    List<Subscriber> list = subscribers.get(sessionId);
+    if (list == null) {
+      List<Subscriber> newList = new CopyOnWriteArrayList<Subscriber>();
+      list = subscribers.putIfAbsent(sessionId, newList);
+      if (list == null) {
+        list = newList;
+      }
+    }
+    list.add(subscriber);
+    logger.debug("UPLOAD-EVENTS (" + sessionId + ") new subscriber, interval=" + subscriber.interval);
+
+    if (listener != null && !listener.isFinished() && listener.getException() == null && listener.getBytesRead() > 0) {
+      subscriber.offer(progressEvent(listener), false);
+    }
+  }
+
+  /**
+   * Sends the state of an upload to the subscribers of its session.
+   * It is called by the listener each time it changes, so it costs just a map
+   * lookup when nobody is subscribed. Events are written only when each
+   * connection is ready, so it does not block.
+   */
+  public static void publish(AbstractUploadListener listener) {
+    List<Subscriber> list = subscribers.get(listener.sessionId);
+    if (list == null || list.isEmpty()) {
+      return;
+    }
+    boolean last = listener.isFinished() || listener.getException() != null;
+    long now = System.currentTimeMillis();
+    String data = null;
+    for (Subscriber subscriber : list) {
+      // Subscribers to a named upload don't receive the events of other uploads of the session
+      if (subscriber.uploadName != null && listener.uploadName != null && !subscriber.uploadName.equals(listener.uploadName)) {
+        continue;
+      }
+      if (last) {
+        // Error messages are in the language of each subscriber
+        subscriber.offer(finalEvent(listener, subscriber.locale), true);
+      } else if (now - subscriber.lastQueued >= subscriber.interval) {
+        if (data == null) {
+          data = progressEvent(listener);
+        }
+        subscriber.offer(data, false);
+      }
+    }
+  }
+
+  private static void unsubscribe(Subscriber subscriber) {
+    List<Subscriber> list = subscribers.get(subscriber.sessionId);
+    if (list != null) {
+      list.remove(subscriber);
+      if (list.isEmpty()) {
+        subscribers.remove(subscriber.sessionId, list);
+      }
+    }
+  }
+
+  private static String progressEvent(AbstractUploadListener listener) {
+    return "<" + TAG_RESPONSE + ">"
+        + tag(TAG_PERCENT, "" + listener.getPercent())
+        + tag(TAG_CURRENT_BYTES, "" + listener.getBytesRead())
+        + tag(TAG_TOTAL_BYTES, "" + listener.getContentLength())
+        + "</" + TAG_RESPONSE + ">";
+  }
+
+  private static String finalEvent(AbstractUploadListener listener, Locale locale) {
+    String tags;
+    if (listener.getException() instanceof UploadCanceledException) {
+      tags = tag(TAG_CANCELED, "true") + tag(TAG_FINISHED, TAG_CANCELED);
+    } else if (listener.getException() != null) {
+      tags = tag(TAG_ERROR, UploadServlet.getMessage(locale, "server_error", listener.getException().getMessage())) + tag(TAG_FINISHED, TAG_ERROR);
+    } else {
+      tags = tag(TAG_FINISHED, "ok");
+    }
+    return "<" + TAG_RESPONSE + ">" + tags + "</" + TAG_RESPONSE + ">";
+  }
+
+  private static String tag(String name, String value) {
+    value = value == null ? "" : value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    return "<" + name + ">" + value + "</" + name + ">";
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Registry of the listeners of the uploads in progress in this JVM.
+ * </p>
+ *
+ * Listeners are registered once, when the upload starts, and afterwards their
+ * progress is read directly from the object, so updating the progress does not
+ * write in the session nor in any other shared structure. It doesn't work when
+ * the status requests can be received by a different node of a cluster than the
+ * upload itself.
+ */
+public final class ProgressRegistry {
+
+  private static final ConcurrentMap<String, AbstractUploadListener> listeners = new ConcurrentHashMap<String, AbstractUploadListener>();
+
+  /**
+   * Return the listener of an upload, or null.
+   */
+  public static AbstractUploadListener get(String uploadId) {
+    return listeners.get(uploadId);
+  }
+
+  /**
+   * Register a listener, replacing the previous one with the same upload id.
+   */
+  public static void register(AbstractUploadListener listener) {
+    listeners.put(listener.getUploadId(), listener);
+  }
+
+  /**
+   * Remove a listener, only if it is the one registered for its upload id.
+   */
+  public static void remove(AbstractUploadListener listener) {
+    listeners.remove(listener.getUploadId(), listener);
+  }
+
+  /**
+   * Return a live view of the registered listeners.
+   */
+  public static Collection<AbstractUploadListener> listeners() {
+    return listeners.values();
+  }
+
+  /**
+   * Return the listeners of the uploads of a session.
+   */
+  public static List<AbstractUploadListener> listeners(String sessionId) {
+    List<AbstractUploadListener> ret = new ArrayList<AbstractUploadListener>();
+    for (AbstractUploadListener listener : listeners.values()) {
+      if (sessionId.equals(listener.sessionId)) {
+        ret.add(listener);
+      }
+    }
+    return ret;
+  }
+
+  private ProgressRegistry() {
+  }
+}
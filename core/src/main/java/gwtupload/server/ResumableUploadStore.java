@@ -0,0 +1,449 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * Stores the partial files of resumable uploads.
+ * </p>
+ *
+ * Each upload is identified by a stable key and is split in chunks of a fixed
+ * size. The partial file is preallocated with the total length and every chunk
+ * is written at its own position, so chunks can arrive in any order and through
+ * several connections at the same time. A bitmap, persisted next to the partial
+ * file, records the chunks already written and tells when the file is complete.
+ *
+ * When a connection drops, the chunks already written are kept and the client
+ * only has to resend the missing ones. Uploads which do not receive data for
+ * longer than the max age are discarded by {@link #expire(long)}, including
+ * the files left by a previous run of the application.
+ */
+public class ResumableUploadStore {
+
+  /**
+   * State of an upload in progress.
+   */
+  private static class Upload {
+    final int chunkSize;
+    final int chunks;
+    boolean completed = false;
+    volatile long lastWrite = System.currentTimeMillis();
+    final BitSet received;
+    final long total;
+
+    // Number of chunks set in received
+    int receivedCount;
+
+    Upload(long total, int chunkSize, BitSet received) {
+      this.total = total;
+      this.chunkSize = chunkSize;
+      this.chunks = (int) ((total + chunkSize - 1) / chunkSize);
+      this.received = received;
+      this.receivedCount = received.cardinality();
+    }
+
+    long contiguousBytes() {
+      return Math.min(total, (long) received.nextClearBit(0) * chunkSize);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  public static final int DEFAULT_MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_MIN_CHUNK_SIZE = 64 * 1024;
+  // Bytes of the map file before the bitmap: the total length and the chunk size
+  private static final int MAP_HEADER_SIZE = 12;
+  // The bitmap of an upload has 128 KB at most
+  private static final int MAX_CHUNKS = 1024 * 1024;
+  // Time during which chunks arriving for a completed upload are discarded
+  private static final long COMPLETED_MILLIS = 60 * 1000;
+  public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+  // Min time between two scans of the directory
+  private static final long EXPIRE_INTERVAL = 60 * 1000;
+  private static final String MAP_SUFFIX = ".map";
+  private static final String PARTIAL_SUFFIX = ".part";
+
+  protected static UploadLogger logger = UploadLogger.getLogger(ResumableUploadStore.class);
+
+  private final File directory;
+
+  // Keys of the uploads completed recently, with the time they were completed
+  private final ConcurrentMap<String, Long> completed = new ConcurrentHashMap<String, Long>();
+
+  private long lastExpire = 0;
+
+  private final long maxAge;
+  private final int maxChunkSize;
+  private final int minChunkSize;
+
+  private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+  public ResumableUploadStore(File directory) {
+    this(directory, DEFAULT_MAX_AGE_MILLIS);
+  }
+
+  /**
+   * @param maxAge milliseconds an upload is kept without receiving data
+   */
+  public ResumableUploadStore(File directory, long maxAge) {
+    this(directory, maxAge, DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+  }
+
+  /**
+   * @param maxAge milliseconds an upload is kept without receiving data
+   * @param minChunkSize min size of the chunks, unless the file is sent in a single chunk
+   * @param maxChunkSize max size of the chunks
+   */
+  public ResumableUploadStore(File directory, long maxAge, int minChunkSize, int maxChunkSize) {
+    this.directory = directory;
+    this.maxAge = maxAge;
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+  }
+
+  /**
+   * Discard the uploads which have not received data for longer than the max age,
+   * and the partial files in the directory as old as that which do not belong to
+   * any upload in progress, like the ones left when the application was stopped.
+   *
+   * The directory is not scanned more than once per minute, so it can be called often.
+   */
+  public void expire(long now) {
+    synchronized (this) {
+      if (now - lastExpire < EXPIRE_INTERVAL) {
+        return;
+      }
+      lastExpire = now;
+    }
+    for (Map.Entry<String, Long> e : completed.entrySet()) {
+      if (now - e.getValue() > COMPLETED_MILLIS) {
+        completed.remove(e.getKey(), e.getValue());
+      }
+    }
+    Set<String> active = new HashSet<String>();
+    for (Map.Entry<String, Upload> e : uploads.entrySet()) {
+      if (now - e.getValue().lastWrite > maxAge) {
+        logger.debug("RESUMABLE-STORE expired " + e.getKey());
+        remove(e.getKey());
+      } else {
+        active.add(fileName(e.getKey()));
+      }
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      String suffix = name.endsWith(PARTIAL_SUFFIX) ? PARTIAL_SUFFIX : name.endsWith(MAP_SUFFIX) ? MAP_SUFFIX : null;
+      if (suffix != null && now - file.lastModified() > maxAge
+          && !active.contains(name.substring(0, name.length() - suffix.length())) && file.delete()) {
+        logger.debug("RESUMABLE-STORE deleted abandoned file " + file);
+      }
+    }
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Converts a received upload key to a safe file name.
+   */
+  protected static String fileName(String key) {
+    return key.replaceAll("[^A-Za-z0-9_\\-]", "_");
+  }
+
+  /**
+   * Return the file where the data of an upload is being written.
+   */
+  public File getPartialFile(String key) {
+    return new File(directory, fileName(key) + PARTIAL_SUFFIX);
+  }
+
+  /**
+   * Return the number of bytes committed for an upload without gaps from its beginning.
+   *
+   * A client resuming an upload can start sending from this offset. Chunks after it
+   * which were already received are written again without harm.
+   */
+  public long getOffset(String key) throws IOException {
+    Upload upload = getUpload(key, 0, 0);
+    if (upload == null) {
+      return 0;
+    }
+    synchronized (upload) {
+      return upload.contiguousBytes();
+    }
+  }
+
+  /**
+   * Return the offset of an upload when a client starts or resumes sending it.
+   *
+   * Unlike {@link #getOffset(String)}, a key which was just completed can be
+   * used again for a new upload after this call.
+   */
+  public long resume(String key) throws IOException {
+    completed.remove(key);
+    return getOffset(key);
+  }
+
+  /**
+   * Write the content of a chunk at its position.
+   *
+   * The chunk must start at a multiple of chunkSize and, except the last one,
+   * contain exactly chunkSize bytes. Chunks of the same upload can be written
+   * concurrently, each one at its own position in the preallocated file.
+   * The chunk size must be between the limits of the store, and the number of
+   * chunks of a file is limited, so the map of the chunks stays small.
+   *
+   * Chunks of an upload completed less than a minute ago, like duplicates resent
+   * by the client, are discarded instead of starting a new partial file.
+   *
+   * @param end position of the last byte of the chunk
+   * @return true only for the call which completes the file, so it is assembled once
+   */
+  public boolean write(String key, long start, long end, long total, int chunkSize, InputStream in) throws IOException {
+    if (chunkSize <= 0 || start < 0 || start % chunkSize != 0 || start >= total) {
+      throw new IOException("Chunk starting at " + start + " is not aligned to the chunk size " + chunkSize);
+    }
+    if (chunkSize > maxChunkSize || chunkSize < minChunkSize && chunkSize < total) {
+      throw new IOException("Chunk size " + chunkSize + " is not between " + minChunkSize + " and " + maxChunkSize);
+    }
+    if ((total + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+      throw new IOException("Too many chunks of " + chunkSize + " bytes for " + total + " bytes, the max is " + MAX_CHUNKS);
+    }
+    if (end - start + 1 != Math.min(chunkSize, total - start)) {
+      throw new IOException("Chunk " + start + "-" + end + " does not have the chunk size " + chunkSize);
+    }
+    if (isCompleted(key)) {
+      logger.debug("RESUMABLE-STORE discarded chunk " + start + " of the completed upload " + key);
+      return false;
+    }
+    Upload upload = getUpload(key, total, chunkSize);
+    if (upload.total != total || upload.chunkSize != chunkSize) {
+      throw new IOException("Chunk does not match the size of the upload " + key);
+    }
+    int index = (int) (start / chunkSize);
+    long length = Math.min(chunkSize, total - start);
+
+    RandomAccessFile file = new RandomAccessFile(getPartialFile(key), "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+      long position = start;
+      while (position <= end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end + 1 - position));
+        int n = in.read(buffer.array(), 0, buffer.limit());
+        if (n < 0) {
+          throw new IOException("Chunk " + index + " of " + key + " is incomplete: " + (position - start) + "/" + length + " bytes");
+        }
+        buffer.limit(n);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+    } finally {
+      file.close();
+    }
+
+    synchronized (upload) {
+      upload.lastWrite = System.currentTimeMillis();
+      if (upload.completed) {
+        return false;
+      }
+      if (!upload.received.get(index)) {
+        upload.received.set(index);
+        upload.receivedCount++;
+        writeMapByte(key, upload, index >> 3);
+      }
+      if (upload.receivedCount < upload.chunks) {
+        return false;
+      }
+      upload.completed = true;
+      return true;
+    }
+  }
+
+  /**
+   * Converts the partial file of an upload into a FileItem once all its data
+   * has been received. The key can be reused afterwards for a new upload.
+   */
+  public FileItem complete(String key, String fieldName, String contentType, String fileName) throws IOException {
+    Upload upload = uploads.remove(key);
+    if (upload == null) {
+      throw new IOException("Unknown upload " + key);
+    }
+    completed.put(key, System.currentTimeMillis());
+    synchronized (upload) {
+      File partial = getPartialFile(key);
+      File file = File.createTempFile("upload_", ".tmp", directory);
+      file.delete();
+      if (!partial.renameTo(file)) {
+        FileUtils.moveFile(partial, file);
+      }
+      getMapFile(key).delete();
+      logger.debug("RESUMABLE-STORE completed " + key + " => " + file + " (" + file.length() + " bytes)");
+      return new StoredFileItem(fieldName, contentType, fileName, file);
+    }
+  }
+
+  /**
+   * Discard the data received for an upload.
+   */
+  public void remove(String key) {
+    Upload upload = uploads.remove(key);
+    if (upload != null) {
+      synchronized (upload) {
+        upload.completed = true;
+      }
+    }
+    getPartialFile(key).delete();
+    getMapFile(key).delete();
+  }
+
+  private boolean isCompleted(String key) {
+    Long time = completed.get(key);
+    return time != null && System.currentTimeMillis() - time <= COMPLETED_MILLIS;
+  }
+
+  private File getMapFile(String key) {
+    return new File(directory, fileName(key) + MAP_SUFFIX);
+  }
+
+  /**
+   * Return the state of an upload, reading it from disk after a restart, or
+   * creating it and preallocating the partial file when total is greater than zero.
+   */
+  private Upload getUpload(String key, long total, int chunkSize) throws IOException {
+    Upload upload = uploads.get(key);
+    if (upload != null) {
+      return upload;
+    }
+    synchronized (uploads) {
+      upload = uploads.get(key);
+      if (upload == null) {
+        upload = readMap(key);
+        if (upload == null && total > 0) {
+          FileUtils.forceMkdir(directory);
+          RandomAccessFile file = new RandomAccessFile(getPartialFile(key), "rw");
+          try {
+            file.setLength(total);
+          } finally {
+            file.close();
+          }
+          upload = new Upload(total, chunkSize, new BitSet());
+          writeMap(key, upload);
+        }
+        if (upload != null) {
+          uploads.put(key, upload);
+        }
+      }
+      return upload;
+    }
+  }
+
+  // BitSet.valueOf and toByteArray are not available in java 6, the layout is the same
+  private static BitSet toBitSet(byte[] bytes) {
+    BitSet ret = new BitSet(bytes.length * 8);
+    for (int i = 0; i < bytes.length * 8; i++) {
+      if ((bytes[i >> 3] & (1 << (i & 7))) != 0) {
+        ret.set(i);
+      }
+    }
+    return ret;
+  }
+
+  private static byte[] toBytes(BitSet bits) {
+    byte[] ret = new byte[(bits.length() + 7) / 8];
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      ret[i >> 3] |= 1 << (i & 7);
+    }
+    return ret;
+  }
+
+  private Upload readMap(String key) throws IOException {
+    File map = getMapFile(key);
+    if (!map.exists() || !getPartialFile(key).exists()) {
+      return null;
+    }
+    RandomAccessFile file = new RandomAccessFile(map, "r");
+    try {
+      long total = file.readLong();
+      int chunkSize = file.readInt();
+      byte[] bits = new byte[(int) file.length() - MAP_HEADER_SIZE];
+      file.readFully(bits);
+      Upload upload = new Upload(total, chunkSize, toBitSet(bits));
+      upload.lastWrite = map.lastModified();
+      return upload;
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Write the map file of a new upload, with room for the bitmap of all its chunks.
+   */
+  private void writeMap(String key, Upload upload) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(getMapFile(key), "rw");
+    try {
+      byte[] bits = toBytes(upload.received);
+      file.setLength(0);
+      file.writeLong(upload.total);
+      file.writeInt(upload.chunkSize);
+      file.write(bits);
+      file.setLength(MAP_HEADER_SIZE + (upload.chunks + 7) / 8);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Write only the byte of the bitmap which has changed.
+   */
+  private void writeMapByte(String key, Upload upload, int pos) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 8; i++) {
+      if (upload.received.get(pos * 8 + i)) {
+        value |= 1 << i;
+      }
+    }
+    RandomAccessFile file = new RandomAccessFile(getMapFile(key), "rw");
+    try {
+      file.seek(MAP_HEADER_SIZE + pos);
+      file.write(value);
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>
+ * The items received in a session.
+ * </p>
+ *
+ * Items are indexed by field name and by file name, both case insensitive, so
+ * adding, removing and finding an item do not depend on the number of items
+ * stored. When two items have the same name, the first one received is found.
+ *
+ * The list returned by {@link #asList()} is a view of the store: changes made
+ * through it are written to the store, and lookups in it use the indexes.
+ */
+public class SessionFileStore implements Serializable {
+
+  /**
+   * A list backed by the store.
+   *
+   * Items can only be appended, and an item is not added twice. Its iterators
+   * fail when the store is modified by other means than themselves.
+   */
+  public class View extends AbstractList<FileItem> {
+
+    public void add(int index, FileItem item) {
+      if (index != size()) {
+        throw new UnsupportedOperationException("Items can only be added at the end");
+      }
+      SessionFileStore.this.add(item);
+    }
+
+    public void clear() {
+      SessionFileStore.this.clear();
+    }
+
+    public boolean contains(Object o) {
+      return SessionFileStore.this.contains(o);
+    }
+
+    public FileItem get(int index) {
+      return items()[index];
+    }
+
+    public SessionFileStore getStore() {
+      return SessionFileStore.this;
+    }
+
+    public FileItem remove(int index) {
+      FileItem item = get(index);
+      SessionFileStore.this.remove(item);
+      return item;
+    }
+
+    public boolean remove(Object o) {
+      return o instanceof FileItem && SessionFileStore.this.remove((FileItem) o);
+    }
+
+    public FileItem set(int index, FileItem item) {
+      return SessionFileStore.this.set(index, item);
+    }
+
+    public int size() {
+      return items().length;
+    }
+
+    void modified() {
+      modCount++;
+    }
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Return the store saved in session under a key, optionally creating it.
+   *
+   * A list of items saved under the key by older code is converted to a store.
+   */
+  @SuppressWarnings("unchecked")
+  public static SessionFileStore get(HttpSession session, String key, boolean create) {
+    Object value = session.getAttribute(key);
+    if (value instanceof SessionFileStore) {
+      return (SessionFileStore) value;
+    }
+    if (value == null && !create) {
+      return null;
+    }
+    synchronized (session) {
+      value = session.getAttribute(key);
+      if (value instanceof SessionFileStore) {
+        return (SessionFileStore) value;
+      }
+      SessionFileStore store = new SessionFileStore();
+      if (value instanceof Collection) {
+        store.addAll((Collection<FileItem>) value);
+      }
+      session.setAttribute(key, store);
+      return store;
+    }
+  }
+
+  private static String lower(String name) {
+    return name == null ? null : name.toLowerCase();
+  }
+
+  private final Map<String, Set<FileItem>> byFieldName = new HashMap<String, Set<FileItem>>();
+  private final Map<String, Set<FileItem>> byFileName = new HashMap<String, Set<FileItem>>();
+  private final Set<FileItem> items = new LinkedHashSet<FileItem>();
+  // Array with the items, computed again after each modification
+  private transient volatile FileItem[] array;
+  private transient View view;
+
+  public synchronized void add(FileItem item) {
+    if (items.add(item)) {
+      index(byFieldName, lower(item.getFieldName()), item);
+      if (!item.isFormField()) {
+        index(byFileName, lower(item.getName()), item);
+      }
+      modified();
+    }
+  }
+
+  public synchronized void addAll(Collection<FileItem> newItems) {
+    for (FileItem item : newItems) {
+      add(item);
+    }
+  }
+
+  /**
+   * Return a list with the items, in the order they were added, which writes through to the store.
+   */
+  public synchronized List<FileItem> asList() {
+    if (view == null) {
+      view = new View();
+    }
+    return view;
+  }
+
+  public synchronized void clear() {
+    if (!items.isEmpty()) {
+      items.clear();
+      byFieldName.clear();
+      byFileName.clear();
+      modified();
+    }
+  }
+
+  public synchronized boolean contains(Object item) {
+    return items.contains(item);
+  }
+
+  /**
+   * Find an item of type file by its field name or by its file name.
+   */
+  public synchronized FileItem find(String parameter) {
+    FileItem item = findByFieldName(parameter);
+    if (item == null) {
+      item = findByFileName(parameter);
+    }
+    return item != null && !item.isFormField() ? item : null;
+  }
+
+  /**
+   * Find an item by its field name.
+   */
+  public synchronized FileItem findByFieldName(String fieldName) {
+    return first(byFieldName, lower(fieldName));
+  }
+
+  /**
+   * Find an item of type file by its file name.
+   */
+  public synchronized FileItem findByFileName(String fileName) {
+    return first(byFileName, lower(fileName));
+  }
+
+  /**
+   * Return true if there is an item of type file with exactly this field name.
+   */
+  public synchronized boolean hasFile(String fieldName) {
+    Set<FileItem> found = byFieldName.get(lower(fieldName));
+    if (found != null) {
+      for (FileItem item : found) {
+        if (!item.isFormField() && item.getFieldName().equals(fieldName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public synchronized boolean remove(FileItem item) {
+    if (items.remove(item)) {
+      unindex(item);
+      modified();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Replace the item at a position, keeping the order of the others.
+   *
+   * @return the replaced item
+   */
+  public synchronized FileItem set(int index, FileItem item) {
+    List<FileItem> list = new ArrayList<FileItem>(items);
+    FileItem old = list.set(index, item);
+    if (old != item) {
+      unindex(old);
+      items.clear();
+      items.addAll(list);
+      index(byFieldName, lower(item.getFieldName()), item);
+      if (!item.isFormField()) {
+        index(byFileName, lower(item.getName()), item);
+      }
+      modified();
+    }
+    return old;
+  }
+
+  public synchronized int size() {
+    return items.size();
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (FileItem i : items()) {
+      sb.append(i.getFieldName()).append(" => ").append(i.getName()).append("(").append(i.getSize()).append(" bytes),");
+    }
+    return sb.toString();
+  }
+
+  private static FileItem first(Map<String, Set<FileItem>> index, String key) {
+    Set<FileItem> found = index.get(key);
+    return found == null ? null : found.iterator().next();
+  }
+
+  private static void index(Map<String, Set<FileItem>> index, String key, FileItem item) {
+    Set<FileItem> set = index.get(key);
+    if (set == null) {
+      set = new LinkedHashSet<FileItem>(2);
+      index.put(key, set);
+    }
+    set.add(item);
+  }
+
+  private FileItem[] items() {
+    FileItem[] ret = array;
+    if (ret == null) {
+      synchronized (this) {
+        ret = array;
+        if (ret == null) {
+          ret = items.toArray(new FileItem[items.size()]);
+          array = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  private void modified() {
+    array = null;
+    if (view != null) {
+      view.modified();
+    }
+  }
+
+  private void unindex(FileItem item) {
+    unindex(byFieldName, lower(item.getFieldName()), item);
+    if (!item.isFormField()) {
+      unindex(byFileName, lower(item.getName()), item);
+    }
+  }
+
+  private static void unindex(Map<String, Set<FileItem>> index, String key, FileItem item) {
+    Set<FileItem> set = index.get(key);
+    if (set != null) {
+      set.remove(item);
+      if (set.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * FileItem whose content is a file which already exists in the file-system.
+ * </p>
+ *
+ * It is used for files which are not received in a multipart request,
+ * like the ones assembled from the chunks of a resumable upload.
+ */
+public class StoredFileItem implements FileItem {
+
+  private static final long serialVersionUID = 1L;
+
+  private String contentType;
+  private String fieldName;
+  private File file;
+  private boolean formField = false;
+  private transient FileItemHeaders headers;
+  private String name;
+
+  public StoredFileItem(String fieldName, String contentType, String name, File file) {
+    this.fieldName = fieldName;
+    this.contentType = contentType;
+    this.name = name;
+    this.file = file;
+  }
+
+  public void delete() {
+    if (file != null && file.exists()) {
+      file.delete();
+    }
+  }
+
+  public byte[] get() {
+    InputStream in = null;
+    try {
+      in = getInputStream();
+      return IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public FileItemHeaders getHeaders() {
+    return headers;
+  }
+
+  public InputStream getInputStream() throws IOException {
+    return new FileInputStream(file);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    return new FileOutputStream(file);
+  }
+
+  public long getSize() {
+    return file.length();
+  }
+
+  /**
+   * Return the file where the data is stored.
+   */
+  public File getStoreLocation() {
+    return file;
+  }
+
+  public String getString() {
+    try {
+      return getString(DiskFileItem.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      return new String(get());
+    }
+  }
+
+  public String getString(String encoding) throws UnsupportedEncodingException {
+    byte[] data = get();
+    return data == null ? null : new String(data, encoding);
+  }
+
+  public boolean isFormField() {
+    return formField;
+  }
+
+  public boolean isInMemory() {
+    return false;
+  }
+
+  public void setFieldName(String name) {
+    fieldName = name;
+  }
+
+  public void setFormField(boolean state) {
+    formField = state;
+  }
+
+  public void setHeaders(FileItemHeaders headers) {
+    this.headers = headers;
+  }
+
+  public void write(File dest) throws Exception {
+    if (!file.renameTo(dest)) {
+      FileUtils.copyFile(file, dest);
+      file.delete();
+    }
+    file = dest;
+  }
+
+  public String toString() {
+    return "StoredFileItem " + fieldName + " => " + name + " (" + file + ")";
+  }
+}
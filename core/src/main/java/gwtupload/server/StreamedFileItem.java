@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+
+/**
+ * <p>
+ * FileItem describing a part received in streaming mode.
+ * </p>
+ *
+ * Form fields keep their value, but the content of files has been sent to
+ * an {@link UploadSink}, so this item only knows the name, type and size
+ * of the data, and the key returned by the sink.
+ */
+public class StreamedFileItem implements FileItem, HasKey {
+
+  private static final long serialVersionUID = 1L;
+
+  private String contentType;
+  private String fieldName;
+  private boolean formField;
+  private transient FileItemHeaders headers;
+  private String key;
+  private String name;
+  private long size;
+  private byte[] value;
+
+  /**
+   * Create an item for a form field.
+   */
+  public StreamedFileItem(String fieldName, String contentType, String name, byte[] value) {
+    this.fieldName = fieldName;
+    this.contentType = contentType;
+    this.name = name;
+    this.value = value;
+    this.size = value.length;
+    this.formField = true;
+  }
+
+  /**
+   * Create an item for a file whose content was consumed by a sink.
+   */
+  public StreamedFileItem(String fieldName, String contentType, String name, long size, String key) {
+    this.fieldName = fieldName;
+    this.contentType = contentType;
+    this.name = name;
+    this.size = size;
+    this.key = key;
+    this.formField = false;
+  }
+
+  public void delete() {
+    value = null;
+  }
+
+  public byte[] get() {
+    return value;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public FileItemHeaders getHeaders() {
+    return headers;
+  }
+
+  public InputStream getInputStream() throws IOException {
+    if (value == null) {
+      throw new IOException("The content of " + name + " was sent to an UploadSink and is not available");
+    }
+    return new ByteArrayInputStream(value);
+  }
+
+  public String getKeyString() {
+    return key;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    throw new UnsupportedOperationException("Streamed items are read only");
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getString() {
+    try {
+      return getString(DiskFileItem.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      return new String(value);
+    }
+  }
+
+  public String getString(String encoding) throws UnsupportedEncodingException {
+    return value == null ? null : new String(value, encoding);
+  }
+
+  public boolean isFormField() {
+    return formField;
+  }
+
+  public boolean isInMemory() {
+    return true;
+  }
+
+  public void setFieldName(String name) {
+    fieldName = name;
+  }
+
+  public void setFormField(boolean state) {
+    formField = state;
+  }
+
+  public void setHeaders(FileItemHeaders headers) {
+    this.headers = headers;
+  }
+
+  public void write(File file) throws Exception {
+    throw new UnsupportedOperationException("The content of " + name + " was sent to an UploadSink");
+  }
+
+  public String toString() {
+    return "StreamedFileItem " + fieldName + " => " + name + " (" + size + " bytes)";
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.fileupload.disk.DiskFileItem;
+
+/**
+ * DiskFileItem stored in a directory of a {@link StripedRepository}, it
+ * counts the bytes written to the directory and reports its write errors.
+ */
+public class StripedDiskFileItem extends DiskFileItem {
+
+  /**
+   * Passes the errors of the stream to the directory, and the bytes written when it is closed.
+   */
+  private class AccountingOutputStream extends FilterOutputStream {
+    private boolean closed = false;
+
+    AccountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        out.close();
+      } catch (IOException e) {
+        directory.failed(e);
+        throw e;
+      } finally {
+        directory.closed(isInMemory() ? 0 : getSize());
+      }
+    }
+
+    public void flush() throws IOException {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        directory.failed(e);
+        throw e;
+      }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        directory.failed(e);
+        throw e;
+      }
+    }
+
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+      } catch (IOException e) {
+        directory.failed(e);
+        throw e;
+      }
+    }
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient StripedRepository.Directory directory;
+  private transient OutputStream out;
+
+  StripedDiskFileItem(String fieldName, String contentType, boolean isFormField, String fileName, int sizeThreshold,
+      StripedRepository.Directory directory) {
+    super(fieldName, contentType, isFormField, fileName, sizeThreshold, directory.getDirectory());
+    this.directory = directory;
+  }
+
+  /**
+   * Return the directory where the item is stored.
+   */
+  public StripedRepository.Directory getDirectory() {
+    return directory;
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    if (out == null) {
+      OutputStream os;
+      try {
+        os = super.getOutputStream();
+      } catch (IOException e) {
+        directory.failed(e);
+        throw e;
+      }
+      directory.opened();
+      out = new AccountingOutputStream(os);
+    }
+    return out;
+  }
+
+  /**
+   * Overridden so as the factory, in this package, can register the file in its cleaning tracker.
+   */
+  @Override
+  protected File getTempFile() {
+    return super.getTempFile();
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Several directories for the temporary files of the uploads, usually in
+ * different disks, so as they are written in parallel.
+ * </p>
+ *
+ * Each new file goes to the next directory, or to the one with more usable
+ * space. A directory is excluded for a while when it has not room for the
+ * request, or when writing a file in it fails, and it is tried again later.
+ *
+ * The bytes written, the files being written and the errors of each
+ * directory are counted.
+ */
+public class StripedRepository {
+
+  /**
+   * A directory of the repository and its counters.
+   */
+  public static class Directory {
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final File dir;
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long excludedUntil = 0;
+    private volatile String lastError = null;
+    private final AtomicInteger openFiles = new AtomicInteger();
+
+    Directory(File dir) {
+      this.dir = dir;
+    }
+
+    /**
+     * Count a file being written.
+     */
+    void opened() {
+      openFiles.incrementAndGet();
+    }
+
+    /**
+     * Count a file finished, with the bytes it has written to disk.
+     */
+    void closed(long bytes) {
+      openFiles.decrementAndGet();
+      bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Exclude the directory after an error writing in it.
+     */
+    void failed(IOException e) {
+      errors.incrementAndGet();
+      lastError = e.getMessage();
+      exclude("error writing: " + e.getMessage());
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten.get();
+    }
+
+    public File getDirectory() {
+      return dir;
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    public String getLastError() {
+      return lastError;
+    }
+
+    public int getOpenFiles() {
+      return openFiles.get();
+    }
+
+    public long getUsableSpace() {
+      return dir.getUsableSpace();
+    }
+
+    public boolean isExcluded() {
+      return System.currentTimeMillis() < excludedUntil;
+    }
+
+    public String toString() {
+      return dir.getPath();
+    }
+
+    private void exclude(String reason) {
+      if (!isExcluded()) {
+        logger.error("UPLOAD-SERVLET excluding the temporary directory " + dir + " for " + EXCLUDE_MILLIS / 1000 + " seconds, " + reason);
+      }
+      excludedUntil = System.currentTimeMillis() + EXCLUDE_MILLIS;
+    }
+
+    /**
+     * Return true when the directory can receive a file of the given size,
+     * it is excluded when it is full.
+     */
+    private boolean hasRoom(long size) {
+      if (isExcluded()) {
+        return false;
+      }
+      // getUsableSpace returns 0 when the directory does not exist or can not be read
+      long usable = dir.getUsableSpace();
+      if (usable < MIN_FREE_SPACE) {
+        exclude(usable == 0 ? "it is not available" : "it is full");
+        return false;
+      }
+      return usable >= size + MIN_FREE_SPACE;
+    }
+  }
+
+  /**
+   * How the directory of a new file is selected.
+   */
+  public static enum Placement {
+    /**
+     * Directories are used in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The directory with more usable space is used.
+     */
+    LEAST_USED
+  }
+
+  /**
+   * Time a directory is excluded after an error or when it is full.
+   */
+  public static final long EXCLUDE_MILLIS = 30000;
+
+  /**
+   * Space left free in a directory, besides the size of the request, a
+   * directory with less space is excluded.
+   */
+  public static final long MIN_FREE_SPACE = 64 * 1024 * 1024;
+
+  private static UploadLogger logger = UploadLogger.getLogger(StripedRepository.class);
+
+  /**
+   * Parse a list of directories separated by commas or by the path separator of the system.
+   */
+  public static List<File> parseDirectories(String dirs) {
+    List<File> ret = new ArrayList<File>();
+    for (String dir : dirs.split("[," + File.pathSeparator + "]")) {
+      if (dir.trim().length() > 0) {
+        ret.add(new File(dir.trim()));
+      }
+    }
+    return ret;
+  }
+
+  private final List<Directory> directories;
+  private final AtomicInteger next = new AtomicInteger();
+  private final Placement placement;
+
+  public StripedRepository(List<File> dirs, Placement placement) {
+    List<Directory> list = new ArrayList<Directory>(dirs.size());
+    for (File dir : dirs) {
+      dir.mkdirs();
+      list.add(new Directory(dir));
+    }
+    this.directories = Collections.unmodifiableList(list);
+    this.placement = placement;
+  }
+
+  public List<Directory> getDirectories() {
+    return directories;
+  }
+
+  public Placement getPlacement() {
+    return placement;
+  }
+
+  /**
+   * Select the directory for a new file.
+   *
+   * @param size bytes expected, the size of the request when the file size is not known
+   * @return the directory, or null when all of them are excluded
+   */
+  public Directory select(long size) {
+    int n = directories.size();
+    if (placement == Placement.ROUND_ROBIN) {
+      // Directories skipped are not counted, so as the next one does not receive their turn
+      for (int i = 0; i < n; i++) {
+        Directory dir = directories.get((next.getAndIncrement() & Integer.MAX_VALUE) % n);
+        if (dir.hasRoom(size)) {
+          return dir;
+        }
+      }
+      return null;
+    }
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+    Directory ret = null;
+    long max = -1;
+    // Starting at a different directory each time, ties are resolved in turn
+    for (int i = 0; i < n; i++) {
+      Directory dir = directories.get((start + i) % n);
+      if (dir.hasRoom(size)) {
+        long usable = dir.getUsableSpace();
+        if (usable > max) {
+          max = usable;
+          ret = dir;
+        }
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+/**
+ * <p>
+ * A token bucket which limits a rate of bytes per second.
+ * </p>
+ *
+ * The bucket is refilled continuously at the given rate up to its capacity, which
+ * is the burst allowed after a period without traffic. Consumers take as many
+ * tokens as bytes they have transferred, even when there are not enough, and wait
+ * the time needed to pay the debt, so concurrent consumers share the rate.
+ */
+public class TokenBucket {
+
+  private final long capacity;
+  private long lastUse;
+  private final long rate;
+  private double tokens;
+  private long updated;
+
+  /**
+   * @param rate bytes per second
+   * @param capacity max number of bytes transferred in a burst
+   */
+  public TokenBucket(long rate, long capacity) {
+    this.rate = rate;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.updated = this.lastUse = System.nanoTime();
+  }
+
+  public long getRate() {
+    return rate;
+  }
+
+  /**
+   * Return true if the bucket has not been used for a while, so it is full
+   * again and it can be discarded.
+   */
+  public synchronized boolean isIdle(long nanos) {
+    return System.nanoTime() - lastUse > nanos;
+  }
+
+  /**
+   * Take tokens from the bucket.
+   *
+   * @return the nanoseconds to wait before transferring more bytes, 0 if there were tokens enough
+   */
+  public synchronized long take(long bytes) {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - updated) * (double) rate / 1e9);
+    updated = lastUse = now;
+    tokens -= bytes;
+    return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+  }
+}
@@ -45,6 +45,10 @@ import org.apache.commons.fileupload.FileItem;
  *
  * <p>Note: Temporary files are not deleted until the user calls removeSessionFiles(request).</p>
  *
+ * <p>To avoid temporary files at all, implement {@link UploadSink} and return it in
+ * getUploadSink(request), then each file is passed to the sink while it is being
+ * received, and executeAction gets StreamedFileItems describing them.</p>
+ *
  * @author Manolo Carrasco Moñino
  *
  */
@@ -184,7 +188,15 @@ public class UploadAction extends UploadServlet {
         // Fill files status before executing user code which could remove session files
         getFileItemsSummary(request, xmlResponse);
         // Call to the user code
-        message = executeAction(request, getMyLastReceivedFileItems(request));
+        long start = System.currentTimeMillis();
+        try {
+          message = executeAction(request, getMyLastReceivedFileItems(request));
+        } finally {
+          UploadMetrics metrics = UploadMetrics.get();
+          if (metrics != null) {
+            metrics.executeActionTime(System.currentTimeMillis() - start);
+          }
+        }
       }
     } catch (UploadCanceledException e) {
       xmlResponse.addResponseTag(TAG_CANCELED, "true");
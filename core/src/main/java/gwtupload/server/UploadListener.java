@@ -18,17 +18,17 @@ package gwtupload.server;
 
 import gwtupload.server.exceptions.UploadTimeoutException;
 
-import java.io.Serializable;
-import java.util.Date;
-
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 
 
 /**
  * This is a File Upload Listener that is used by Apache Commons File Upload to
  * monitor the progress of the uploaded file.
  *
+ * It is kept in the {@link ProgressRegistry}, so the progress is not written
+ * in session each time it changes, and the {@link UploadWatchDog} cancels it
+ * when no data is received for a while.
+ *
  * This object and its attributes have to be serializable because
  * Google App-Engine uses dataStore and memCache to store session objects.
  *
@@ -37,106 +37,36 @@ import javax.servlet.http.HttpSession;
  */
 public class UploadListener extends AbstractUploadListener {
 
-  /**
-   * A class which is executed in a new thread, so its able to detect
-   * when an upload process is frozen and sets an exception in order to
-   * be canceled.
-   * This doesn't work in Google application engine
-   */
-  public class TimeoutWatchDog extends Thread implements Serializable {
-    private static final long serialVersionUID = -649803529271569237L;
-
-    AbstractUploadListener listener;
-    private long lastBytesRead = 0L;
-    private long lastData = (new Date()).getTime();
-
-    public TimeoutWatchDog(AbstractUploadListener l) {
-      listener = l;
-    }
-
-    public void cancel() {
-      listener = null;
-    }
-
-    @Override
-    public void run() {
-      try {
-        Thread.sleep(WATCHER_INTERVAL);
-      } catch (InterruptedException e) {
-        logger.error(className + " " + sessionId + " TimeoutWatchDog: sleep Exception: " + e.getMessage());
-      }
-      if (listener != null) {
-        if (listener.getBytesRead() > 0 && listener.getPercent() >= 100 || listener.isCanceled()) {
-          logger.debug(className + " " + sessionId + " TimeoutWatchDog: upload process has finished, stoping watcher");
-          listener = null;
-        } else {
-          if (isFrozen()) {
-            logger.info(className + " " + sessionId + " TimeoutWatchDog: the recepcion seems frozen: " + listener.getBytesRead() + "/" + listener.getContentLength() + " bytes ("
-                  + listener.getPercent() + "%) ");
-            exception = new UploadTimeoutException("No new data received after " + noDataTimeout / 1000 + " seconds");
-          } else {
-            run();
-          }
-        }
-      }
-    }
-
-    private boolean isFrozen() {
-      long now = (new Date()).getTime();
-      if (bytesRead > lastBytesRead) {
-        lastData = now;
-        lastBytesRead = bytesRead;
-      } else if (now - lastData > noDataTimeout) { return true; }
-      return false;
-    }
-  }
-
   protected static final String ATTR_LISTENER = "LISTENER";
 
   private static int noDataTimeout = 20000;
 
   private static final long serialVersionUID = -6431275569719042836L;
 
-  private static final int WATCHER_INTERVAL = 5000;
-
   public static void setNoDataTimeout(int i) {
     noDataTimeout = i;
   }
 
   public static AbstractUploadListener current(HttpServletRequest request) {
-    return (AbstractUploadListener) request.getSession().getAttribute(ATTR_LISTENER);
+    return current(request.getSession().getId());
   }
 
-  public static AbstractUploadListener current(String sessionId) {
-    return (AbstractUploadListener) session().getAttribute(ATTR_LISTENER);
+  public static AbstractUploadListener current(String uploadId) {
+    return ProgressRegistry.get(uploadId);
   }
 
-  /**
-   *  Upload servlet saves the current request as a ThreadLocal,
-   *  so it is accessible from any class.
-   *
-   *  @return request of the current thread
-   */
-  private static HttpServletRequest request() {
-    return UploadServlet.getThreadLocalRequest();
-  }
-
-  /**
-   * @return current HttpSession
-   */
-  private static HttpSession session() {
-    return request() != null ? request().getSession() : null;
-  }
-
-  private TimeoutWatchDog watcher = null;
-
   /**
    * Default constructor.
    *
    */
   public UploadListener(int sleepMilliseconds, long requestSize) {
     super(sleepMilliseconds, requestSize);
-    startWatcher();
+    UploadWatchDog.start();
+  }
+
+  public UploadListener(HttpServletRequest request, int sleepMilliseconds, long requestSize) {
+    super(request, sleepMilliseconds, requestSize);
+    UploadWatchDog.start();
   }
 
   /* (non-Javadoc)
@@ -144,48 +74,34 @@ public class UploadListener extends AbstractUploadListener {
    */
   public void remove() {
     logger.info(className + " " + sessionId + " remove: " + toString());
-    if (session() != null) {
-      session().removeAttribute(ATTR_LISTENER);
-    }
-    saved = new Date();
+    ProgressRegistry.remove(this);
   }
 
   /* (non-Javadoc)
    * @see gwtupload.server.AbstractUploadListener#save()
    */
   public void save() {
-    if (session() != null) {
-      session().setAttribute(ATTR_LISTENER, this);
-    }
-    saved = new Date();
-    logger.debug(className + " " + sessionId + " save " + toString());
+    ProgressRegistry.register(this);
   }
 
-  /* (non-Javadoc)
-   * @see gwtupload.server.AbstractUploadListener#update(long, long, int)
-   */
   @Override
-  public void update(long done, long total, int item) {
-    super.update(done, total, item);
-    if (getPercent() >= 100) {
-      stopWatcher();
-    }
+  protected boolean isStoredByReference() {
+    return true;
   }
 
-  private void startWatcher() {
-    if (watcher == null) {
-      try {
-        watcher = new TimeoutWatchDog(this);
-        watcher.start();
-      } catch (Exception e) {
-        logger.info(className + " " + sessionId + " unable to create watchdog: " + e.getMessage());
-      }
+  /**
+   * Called periodically by the watchdog, it sets an exception to cancel the upload
+   * when no new data has been received for longer than the no-data timeout.
+   * Uploads waiting in the admission queue are not checked.
+   */
+  void checkFrozen(long now) {
+    if (getBytesRead() > 0 && getPercent() >= 100 || isCanceled() || isFinished() || isQueued()) {
+      return;
     }
-  }
-
-  private void stopWatcher() {
-    if (watcher != null) {
-      watcher.cancel();
+    if (now - lastData > noDataTimeout) {
+      logger.info(className + " " + sessionId + " UploadWatchDog: the recepcion seems frozen: " + getBytesRead() + "/" + getContentLength() + " bytes ("
+          + getPercent() + "%) ");
+      setException(new UploadTimeoutException("No new data received after " + noDataTimeout / 1000 + " seconds"));
     }
   }
 }
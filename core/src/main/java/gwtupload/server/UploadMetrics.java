@@ -0,0 +1,524 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import gwtupload.server.exceptions.UploadCanceledException;
+import gwtupload.server.exceptions.UploadTimeoutException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Metrics of the uploads received and the files served by the servlets.
+ * </p>
+ *
+ * There is a single registry per class loader, which is created when the first
+ * servlet configured with the init-param <code>metrics</code> registers it. Until
+ * then {@link #get()} returns null, so the code measuring things does nothing
+ * but reading a field when metrics are disabled.
+ *
+ * The registry is published as a JMX bean, and {@link #write(Writer)} dumps it
+ * in the plain text format scraped by Prometheus.
+ */
+public class UploadMetrics implements UploadMetricsMBean {
+
+  /**
+   * Histogram of times with fixed buckets.
+   */
+  public static class Histogram {
+    // Upper bounds of the buckets in milliseconds, the last bucket has no limit
+    static final long[] BOUNDS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Return the upper bound of the bucket containing the given percentile,
+     * or -1 when it is in the last bucket, which has no bound.
+     */
+    public long getPercentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return BOUNDS[i];
+        }
+      }
+      return -1;
+    }
+
+    public void record(long millis) {
+      int i = 0;
+      while (i < BOUNDS.length && millis > BOUNDS[i]) {
+        i++;
+      }
+      buckets.incrementAndGet(i);
+      count.incrementAndGet();
+      sum.addAndGet(millis);
+    }
+
+    void reset() {
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+    }
+
+    void write(Writer out, String name, String help) throws IOException {
+      header(out, name, help, "histogram");
+      long cumulative = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+        cumulative += buckets.get(i);
+        out.write(name + "_bucket{le=\"" + seconds(BOUNDS[i]) + "\"} " + cumulative + "\n");
+      }
+      out.write(name + "_bucket{le=\"+Inf\"} " + (cumulative + buckets.get(BOUNDS.length)) + "\n");
+      out.write(name + "_sum " + seconds(sum.get()) + "\n");
+      out.write(name + "_count " + count.get() + "\n");
+    }
+  }
+
+  /**
+   * Exponentially weighted rate of the last minute, updated every five seconds.
+   */
+  public static class Rate {
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+    private static final long TICK = 5000000000L;
+
+    private volatile long lastTick = System.nanoTime();
+    private volatile double rate = -1;
+    private final AtomicLong uncounted = new AtomicLong();
+
+    public double get() {
+      tickIfNeeded();
+      return rate < 0 ? 0 : rate;
+    }
+
+    public void mark(long n) {
+      tickIfNeeded();
+      uncounted.addAndGet(n);
+    }
+
+    private void tickIfNeeded() {
+      if (System.nanoTime() - lastTick < TICK) {
+        return;
+      }
+      synchronized (this) {
+        long now = System.nanoTime();
+        while (now - lastTick >= TICK) {
+          double instant = uncounted.getAndSet(0) / (TICK / 1e9);
+          rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+          lastTick += TICK;
+        }
+      }
+    }
+  }
+
+  private static final String OBJECT_NAME = "gwtupload:type=UploadMetrics";
+
+  private static volatile UploadMetrics instance = null;
+
+  private static UploadLogger logger = UploadLogger.getLogger(UploadMetrics.class);
+
+  private static int users = 0;
+
+  /**
+   * Return the registry, or null when metrics are disabled.
+   */
+  public static UploadMetrics get() {
+    return instance;
+  }
+
+  /**
+   * Enable the metrics, publishing the registry as a JMX bean. Each call has
+   * to be paired with a call to {@link #unregister()}.
+   */
+  public static synchronized UploadMetrics register() {
+    if (users++ == 0) {
+      instance = new UploadMetrics();
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+          server.registerMBean(instance, name);
+        }
+      } catch (Throwable e) {
+        // Not available in restricted environments like appengine
+        logger.error("UPLOAD-METRICS unable to register the JMX bean: " + e.getMessage());
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Disable the metrics when the last servlet using them is destroyed.
+   */
+  public static synchronized void unregister() {
+    if (users > 0 && --users == 0) {
+      instance = null;
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+      } catch (Throwable e) {
+        logger.error("UPLOAD-METRICS unable to unregister the JMX bean: " + e.getMessage());
+      }
+    }
+  }
+
+  private static void counter(Writer out, String name, String help, long value) throws IOException {
+    header(out, name, help, "counter");
+    out.write(name + " " + value + "\n");
+  }
+
+  private static void gauge(Writer out, String name, String help, String value) throws IOException {
+    header(out, name, help, "gauge");
+    out.write(name + " " + value + "\n");
+  }
+
+  private static void header(Writer out, String name, String help, String type) throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  private static String label(StripedRepository.Directory dir) {
+    return dir.getDirectory().getPath().replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  private static String seconds(long millis) {
+    return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+  }
+
+  private final AtomicInteger activeUploads = new AtomicInteger();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final Rate bytesRate = new Rate();
+  private final AtomicLong downloads = new AtomicLong();
+  private final Histogram downloadTime = new Histogram();
+  private final Histogram executeActionTime = new Histogram();
+  private volatile MemoryPressureMonitor memoryPressure = null;
+  private volatile OffHeapFileItemFactory.Budget offHeapBudget = null;
+  private volatile StripedRepository repository = null;
+  private final Histogram parseTime = new Histogram();
+  private final AtomicLong statusPolls = new AtomicLong();
+  private final Rate statusPollRate = new Rate();
+  // Directories with temporary files and the prefix of the names of those files
+  private final Map<File, String> tempDirectories = new ConcurrentHashMap<File, String>();
+  private final Histogram timeToFirstByte = new Histogram();
+  private final AtomicLong uploadsCanceled = new AtomicLong();
+  private final AtomicLong uploadsCompleted = new AtomicLong();
+  private final AtomicLong uploadsFailed = new AtomicLong();
+  private final AtomicLong uploadsTimedOut = new AtomicLong();
+
+  /**
+   * Take into account the files in a directory when computing the disk used by
+   * temporary files.
+   *
+   * @param prefix only files whose name starts with it are counted, empty for all
+   */
+  public void addTempDirectory(File dir, String prefix) {
+    tempDirectories.put(dir, prefix == null ? "" : prefix);
+  }
+
+  public void bytesReceived(long bytes) {
+    if (bytes > 0) {
+      bytesReceived.addAndGet(bytes);
+      bytesRate.mark(bytes);
+    }
+  }
+
+  public void downloaded(long millis) {
+    downloads.incrementAndGet();
+    downloadTime.record(millis);
+  }
+
+  public void executeActionTime(long millis) {
+    executeActionTime.record(millis);
+  }
+
+  public void firstByte(long millis) {
+    timeToFirstByte.record(millis);
+  }
+
+  public int getActiveUploads() {
+    return activeUploads.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public double getBytesPerSecond() {
+    return bytesRate.get();
+  }
+
+  public long getDownloads() {
+    return downloads.get();
+  }
+
+  public double getDownloadTimeMean() {
+    return downloadTime.getMean();
+  }
+
+  public long getDownloadTime95thPercentile() {
+    return downloadTime.getPercentile(95);
+  }
+
+  public double getExecuteActionTimeMean() {
+    return executeActionTime.getMean();
+  }
+
+  public long getExecuteActionTime95thPercentile() {
+    return executeActionTime.getPercentile(95);
+  }
+
+  public double getParseTimeMean() {
+    return parseTime.getMean();
+  }
+
+  public long getParseTime95thPercentile() {
+    return parseTime.getPercentile(95);
+  }
+
+  public boolean isUnderMemoryPressure() {
+    MemoryPressureMonitor monitor = memoryPressure;
+    return monitor != null && monitor.isUnderPressure();
+  }
+
+  public long getOffHeapMax() {
+    OffHeapFileItemFactory.Budget budget = offHeapBudget;
+    return budget != null ? budget.getMax() : 0;
+  }
+
+  public long getOffHeapSpills() {
+    OffHeapFileItemFactory.Budget budget = offHeapBudget;
+    return budget != null ? budget.getThresholdSpills() + budget.getBudgetSpills() : 0;
+  }
+
+  public long getOffHeapUsed() {
+    OffHeapFileItemFactory.Budget budget = offHeapBudget;
+    return budget != null ? budget.getUsed() : 0;
+  }
+
+  public long getStatusPolls() {
+    return statusPolls.get();
+  }
+
+  public double getStatusPollsPerSecond() {
+    return statusPollRate.get();
+  }
+
+  /**
+   * Return the bytes used by temporary files, it lists the temporary directories
+   * each time it is called.
+   */
+  public long getTempDiskUsage() {
+    long total = 0;
+    for (Map.Entry<File, String> e : tempDirectories.entrySet()) {
+      File[] files = e.getKey().listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.getName().startsWith(e.getValue()) && f.isFile()) {
+            total += f.length();
+          }
+        }
+      }
+    }
+    return total;
+  }
+
+  public double getTimeToFirstByteMean() {
+    return timeToFirstByte.getMean();
+  }
+
+  public long getTimeToFirstByte95thPercentile() {
+    return timeToFirstByte.getPercentile(95);
+  }
+
+  public long getUploadsCanceled() {
+    return uploadsCanceled.get();
+  }
+
+  public long getUploadsCompleted() {
+    return uploadsCompleted.get();
+  }
+
+  public long getUploadsFailed() {
+    return uploadsFailed.get();
+  }
+
+  public long getUploadsTimedOut() {
+    return uploadsTimedOut.get();
+  }
+
+  public void reset() {
+    bytesReceived.set(0);
+    downloads.set(0);
+    statusPolls.set(0);
+    uploadsCanceled.set(0);
+    uploadsCompleted.set(0);
+    uploadsFailed.set(0);
+    uploadsTimedOut.set(0);
+    downloadTime.reset();
+    executeActionTime.reset();
+    parseTime.reset();
+    timeToFirstByte.reset();
+  }
+
+  /**
+   * Publish the state of the memory pressure monitor, null when it is not used.
+   */
+  public void setMemoryPressureMonitor(MemoryPressureMonitor monitor) {
+    memoryPressure = monitor;
+  }
+
+  /**
+   * Publish the usage of the direct memory where items are received, null when it is not used.
+   */
+  public void setOffHeapBudget(OffHeapFileItemFactory.Budget budget) {
+    offHeapBudget = budget;
+  }
+
+  /**
+   * Publish the counters of the directories of a striped repository, and
+   * count their temporary files in the disk usage.
+   */
+  public void setRepository(StripedRepository repository) {
+    this.repository = repository;
+    if (repository != null) {
+      for (StripedRepository.Directory dir : repository.getDirectories()) {
+        addTempDirectory(dir.getDirectory(), "upload_");
+      }
+    }
+  }
+
+  public void statusPoll() {
+    statusPolls.incrementAndGet();
+    statusPollRate.mark(1);
+  }
+
+  /**
+   * Called when the servlet finishes receiving an upload.
+   *
+   * @param exception the exception which stopped the upload or null if it was received
+   * @param millis time spent receiving and parsing the request
+   */
+  public void uploadFinished(Throwable exception, long millis) {
+    activeUploads.decrementAndGet();
+    parseTime.record(millis);
+    if (exception == null) {
+      uploadsCompleted.incrementAndGet();
+    } else if (exception instanceof UploadCanceledException) {
+      uploadsCanceled.incrementAndGet();
+    } else if (exception instanceof UploadTimeoutException) {
+      uploadsTimedOut.incrementAndGet();
+    } else {
+      uploadsFailed.incrementAndGet();
+    }
+  }
+
+  /**
+   * Called when the servlet starts receiving an upload.
+   */
+  public void uploadStarted() {
+    activeUploads.incrementAndGet();
+  }
+
+  /**
+   * Write the metrics in the Prometheus text format.
+   */
+  public void write(Writer out) throws IOException {
+    gauge(out, "gwtupload_active_uploads", "Uploads being received.", "" + activeUploads.get());
+    counter(out, "gwtupload_received_bytes_total", "Bytes received in uploads.", bytesReceived.get());
+    gauge(out, "gwtupload_received_bytes_per_second", "Bytes received per second, average of the last minute.",
+        String.format(Locale.ROOT, "%.1f", bytesRate.get()));
+    header(out, "gwtupload_uploads_total", "Uploads finished by outcome.", "counter");
+    out.write("gwtupload_uploads_total{outcome=\"completed\"} " + uploadsCompleted.get() + "\n");
+    out.write("gwtupload_uploads_total{outcome=\"canceled\"} " + uploadsCanceled.get() + "\n");
+    out.write("gwtupload_uploads_total{outcome=\"timeout\"} " + uploadsTimedOut.get() + "\n");
+    out.write("gwtupload_uploads_total{outcome=\"failed\"} " + uploadsFailed.get() + "\n");
+    counter(out, "gwtupload_status_polls_total", "Status requests received.", statusPolls.get());
+    counter(out, "gwtupload_downloads_total", "Uploaded files sent to clients.", downloads.get());
+    gauge(out, "gwtupload_temp_disk_bytes", "Bytes used by temporary files.", "" + getTempDiskUsage());
+    StripedRepository stripes = repository;
+    if (stripes != null) {
+      header(out, "gwtupload_repository_written_bytes_total", "Bytes of temporary files written by directory.", "counter");
+      for (StripedRepository.Directory dir : stripes.getDirectories()) {
+        out.write("gwtupload_repository_written_bytes_total{dir=\"" + label(dir) + "\"} " + dir.getBytesWritten() + "\n");
+      }
+      header(out, "gwtupload_repository_open_files", "Temporary files being written by directory.", "gauge");
+      for (StripedRepository.Directory dir : stripes.getDirectories()) {
+        out.write("gwtupload_repository_open_files{dir=\"" + label(dir) + "\"} " + dir.getOpenFiles() + "\n");
+      }
+      header(out, "gwtupload_repository_errors_total", "Errors writing temporary files by directory.", "counter");
+      for (StripedRepository.Directory dir : stripes.getDirectories()) {
+        out.write("gwtupload_repository_errors_total{dir=\"" + label(dir) + "\"} " + dir.getErrors() + "\n");
+      }
+      header(out, "gwtupload_repository_excluded", "1 while a directory is excluded because it is full or failing.", "gauge");
+      for (StripedRepository.Directory dir : stripes.getDirectories()) {
+        out.write("gwtupload_repository_excluded{dir=\"" + label(dir) + "\"} " + (dir.isExcluded() ? 1 : 0) + "\n");
+      }
+    }
+    MemoryPressureMonitor monitor = memoryPressure;
+    if (monitor != null) {
+      gauge(out, "gwtupload_memory_pressure", "1 while the heap is over the memory pressure threshold.", monitor.isUnderPressure() ? "1" : "0");
+      header(out, "gwtupload_memory_pressure_requests_total", "Requests not received in memory because of the memory pressure.", "counter");
+      out.write("gwtupload_memory_pressure_requests_total{action=\"disk\"} " + monitor.getDiverted() + "\n");
+      out.write("gwtupload_memory_pressure_requests_total{action=\"reject\"} " + monitor.getRejected() + "\n");
+    }
+    OffHeapFileItemFactory.Budget budget = offHeapBudget;
+    if (budget != null) {
+      gauge(out, "gwtupload_offheap_used_bytes", "Direct memory used by items being received.", "" + budget.getUsed());
+      gauge(out, "gwtupload_offheap_max_bytes", "Direct memory available for items being received.", "" + budget.getMax());
+      header(out, "gwtupload_offheap_spills_total", "Items moved from direct memory to disk by reason.", "counter");
+      out.write("gwtupload_offheap_spills_total{reason=\"threshold\"} " + budget.getThresholdSpills() + "\n");
+      out.write("gwtupload_offheap_spills_total{reason=\"budget\"} " + budget.getBudgetSpills() + "\n");
+    }
+    parseTime.write(out, "gwtupload_parse_seconds", "Time receiving and parsing upload requests.");
+    timeToFirstByte.write(out, "gwtupload_first_byte_seconds", "Time from the start of an upload to its first byte received.");
+    executeActionTime.write(out, "gwtupload_execute_action_seconds", "Time spent in executeAction.");
+    downloadTime.write(out, "gwtupload_download_seconds", "Time sending uploaded files.");
+  }
+}
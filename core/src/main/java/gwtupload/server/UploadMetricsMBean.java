@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+/**
+ * Management interface of {@link UploadMetrics}, published as the JMX bean
+ * <code>gwtupload:type=UploadMetrics</code>.
+ *
+ * Times are in milliseconds and rates are averages of the last minute.
+ */
+public interface UploadMetricsMBean {
+
+  int getActiveUploads();
+
+  long getBytesReceived();
+
+  double getBytesPerSecond();
+
+  long getUploadsCompleted();
+
+  long getUploadsCanceled();
+
+  long getUploadsTimedOut();
+
+  long getUploadsFailed();
+
+  long getStatusPolls();
+
+  double getStatusPollsPerSecond();
+
+  long getDownloads();
+
+  long getTempDiskUsage();
+
+  long getOffHeapUsed();
+
+  long getOffHeapMax();
+
+  long getOffHeapSpills();
+
+  boolean isUnderMemoryPressure();
+
+  double getParseTimeMean();
+
+  long getParseTime95thPercentile();
+
+  double getTimeToFirstByteMean();
+
+  long getTimeToFirstByte95thPercentile();
+
+  double getExecuteActionTimeMean();
+
+  long getExecuteActionTime95thPercentile();
+
+  double getDownloadTimeMean();
+
+  long getDownloadTime95thPercentile();
+
+  /**
+   * Reset the counters and histograms, the active uploads are kept.
+   */
+  void reset();
+}
@@ -19,12 +19,19 @@ package gwtupload.server;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileCleaningTracker;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -32,34 +39,51 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import static gwtupload.shared.UConsts.FORMAT_JSON;
 import static gwtupload.shared.UConsts.MULTI_SUFFIX;
+import static gwtupload.shared.UConsts.PARAM_ALGORITHM;
+import static gwtupload.shared.UConsts.PARAM_CHUNK_SIZE;
+import static gwtupload.shared.UConsts.PARAM_CTYPE;
 import static gwtupload.shared.UConsts.PARAM_DELAY;
+import static gwtupload.shared.UConsts.PARAM_DIGEST;
+import static gwtupload.shared.UConsts.PARAM_FILENAME;
+import static gwtupload.shared.UConsts.PARAM_FORMAT;
 import static gwtupload.shared.UConsts.PARAM_MAX_FILE_SIZE;
+import static gwtupload.shared.UConsts.PARAM_METRICS;
+import static gwtupload.shared.UConsts.PARAM_NAME;
+import static gwtupload.shared.UConsts.PARAM_UPLOAD_ID;
 import static gwtupload.shared.UConsts.TAG_BLOBSTORE;
 import static gwtupload.shared.UConsts.TAG_BLOBSTORE_PATH;
 import static gwtupload.shared.UConsts.TAG_CANCELED;
 import static gwtupload.shared.UConsts.TAG_CURRENT_BYTES;
 import static gwtupload.shared.UConsts.TAG_ERROR;
+import static gwtupload.shared.UConsts.TAG_EVENTS;
 import static gwtupload.shared.UConsts.TAG_FINISHED;
 import static gwtupload.shared.UConsts.TAG_PERCENT;
+import static gwtupload.shared.UConsts.TAG_QUEUED;
 import static gwtupload.shared.UConsts.TAG_SESSION_ID;
 import static gwtupload.shared.UConsts.TAG_TOTAL_BYTES;
 
 import gwtupload.server.exceptions.UploadActionException;
+import gwtupload.server.exceptions.UploadBusyException;
 import gwtupload.server.exceptions.UploadCanceledException;
 import gwtupload.server.exceptions.UploadException;
 import gwtupload.server.exceptions.UploadSizeLimitException;
@@ -100,17 +124,175 @@ import gwtupload.shared.UConsts;
  *   &lt;/context-param&gt;
  *
  *   &lt;context-param&gt;
- *     &lt;!-- useful in development mode to see the upload progress bar in fast networks. (sleep time in milliseconds) --&gt;
+ *     &lt;!-- useful in development mode to see the upload progress bar in fast networks.
+ *          (milliseconds to receive each block of 4 KB) --&gt;
  *     &lt;param-name&gt;slowUploads&lt;/param-name&gt;
  *     &lt;param-value&gt;200&lt;/param-value&gt;
  *   &lt;/context-param&gt;
  *
  *   &lt;context-param&gt;
+ *     &lt;!-- max bytes per second received by the servlet for all the uploads --&gt;
+ *     &lt;param-name&gt;maxBandwidth&lt;/param-name&gt;
+ *     &lt;param-value&gt;10485760&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max bytes per second received for the uploads of each session --&gt;
+ *     &lt;param-name&gt;maxSessionBandwidth&lt;/param-name&gt;
+ *     &lt;param-value&gt;2097152&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max bytes per second received for each upload --&gt;
+ *     &lt;param-name&gt;maxUploadBandwidth&lt;/param-name&gt;
+ *     &lt;param-value&gt;1048576&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
  *     &lt;!-- max file size of the upload request --&gt;
  *     &lt;param-name&gt;maxFileSize&lt;/param-name&gt;
  *     &lt;param-value&gt;3145728&lt;/param-value&gt;
  *   &lt;/context-param&gt;
  *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max number of uploads received at the same time from the same session --&gt;
+ *     &lt;param-name&gt;maxConcurrentUploads&lt;/param-name&gt;
+ *     &lt;param-value&gt;4&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max number of uploads received at the same time by the servlet, others wait in a queue --&gt;
+ *     &lt;param-name&gt;maxActiveUploads&lt;/param-name&gt;
+ *     &lt;param-value&gt;50&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max sum of the sizes of the uploads received at the same time by the servlet --&gt;
+ *     &lt;param-name&gt;maxActiveBytes&lt;/param-name&gt;
+ *     &lt;param-value&gt;524288000&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max milliseconds an upload waits in the queue, after that the client
+ *          is asked to retry later --&gt;
+ *     &lt;param-name&gt;maxQueueWait&lt;/param-name&gt;
+ *     &lt;param-value&gt;60000&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- directories for the temporary files, separated by commas, usually in
+ *          different disks, by default the system temporary directory --&gt;
+ *     &lt;param-name&gt;repositories&lt;/param-name&gt;
+ *     &lt;param-value&gt;/mnt/disk1/uploads,/mnt/disk2/uploads&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- how the directory of each temporary file is selected: 'roundrobin'
+ *          or 'leastused', the one with more free space --&gt;
+ *     &lt;param-name&gt;repositoryPlacement&lt;/param-name&gt;
+ *     &lt;param-value&gt;roundrobin&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- bytes of direct memory, out of the java heap, shared by the items being
+ *          received, an item which does not fit is moved to a temporary file --&gt;
+ *     &lt;param-name&gt;offHeapBudget&lt;/param-name&gt;
+ *     &lt;param-value&gt;268435456&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- max size of an item kept in direct memory --&gt;
+ *     &lt;param-name&gt;offHeapThreshold&lt;/param-name&gt;
+ *     &lt;param-value&gt;1048576&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- percent of the heap, measured after a garbage collection, over which new
+ *          uploads are not received in memory --&gt;
+ *     &lt;param-name&gt;memoryPressureThreshold&lt;/param-name&gt;
+ *     &lt;param-value&gt;85&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- what to do with new uploads under memory pressure: 'disk' receives them
+ *          in temporary files, 'reject' asks the client to retry later --&gt;
+ *     &lt;param-name&gt;memoryPressureAction&lt;/param-name&gt;
+ *     &lt;param-value&gt;disk&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- directory for the partial files of resumable uploads --&gt;
+ *     &lt;param-name&gt;resumableDir&lt;/param-name&gt;
+ *     &lt;param-value&gt;/var/tmp/gwtupload-resumable&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- milliseconds a resumable upload is kept without receiving chunks, by default one day --&gt;
+ *     &lt;param-name&gt;resumableMaxAge&lt;/param-name&gt;
+ *     &lt;param-value&gt;86400000&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- collect metrics, published as the JMX bean gwtupload:type=UploadMetrics
+ *          and in plain text for Prometheus at servlet-path?metrics --&gt;
+ *     &lt;param-name&gt;metrics&lt;/param-name&gt;
+ *     &lt;param-value&gt;true&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- addresses allowed to read the plain text metrics, by default only localhost --&gt;
+ *     &lt;param-name&gt;metricsAllowRegex&lt;/param-name&gt;
+ *     &lt;param-value&gt;10\.0\..*&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- compute a digest of each received file, it is sent to the client with the file info --&gt;
+ *     &lt;param-name&gt;digestAlgorithm&lt;/param-name&gt;
+ *     &lt;param-value&gt;SHA-256&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- keep received files by digest, so identical files share one copy on disk --&gt;
+ *     &lt;param-name&gt;contentStoreDir&lt;/param-name&gt;
+ *     &lt;param-value&gt;/var/lib/gwtupload/content&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- milliseconds a file of the content store is kept when no item uses it, by default
+ *          one day. It should be longer than sessions saved by the container may live --&gt;
+ *     &lt;param-name&gt;contentStoreMaxAge&lt;/param-name&gt;
+ *     &lt;param-value&gt;86400000&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- let clients send the digest of a file in the content store instead of its content.
+ *          Anyone knowing the digest of a stored file gets a copy of it, so do not enable it
+ *          when users upload confidential files --&gt;
+ *     &lt;param-name&gt;instantUploads&lt;/param-name&gt;
+ *     &lt;param-value&gt;true&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- let the web server in front send the files on disk, instead of the servlet.
+ *          Use X-Sendfile for Apache mod_xsendfile or X-Accel-Redirect for nginx --&gt;
+ *     &lt;param-name&gt;sendfileHeader&lt;/param-name&gt;
+ *     &lt;param-value&gt;X-Accel-Redirect&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- directory with the files, it is the temporary one unless contentStoreDir is used.
+ *          Only files inside it are sent by the web server --&gt;
+ *     &lt;param-name&gt;sendfileRoot&lt;/param-name&gt;
+ *     &lt;param-value&gt;/tmp&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
+ *   &lt;context-param&gt;
+ *     &lt;!-- path which the web server maps to sendfileRoot, for nginx an internal location like:
+ *          location /protected-uploads/ { internal; alias /tmp/; } --&gt;
+ *     &lt;param-name&gt;sendfilePrefix&lt;/param-name&gt;
+ *     &lt;param-value&gt;/protected-uploads&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *
  *   &lt;servlet&gt;
  *     &lt;servlet-name&gt;uploadServlet&lt;/servlet-name&gt;
  *     &lt;servlet-class&gt;gwtupload.server.UploadServlet&lt;/servlet-class&gt;
@@ -131,9 +313,21 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
   private static final String SESSION_FILES = "FILES";
   private static final String SESSION_LAST_FILES = "LAST_FILES";
+  protected static final String ATTR_RECEIVED_ITEMS = "gwtupload.RECEIVED_ITEMS";
+  // Listener of an upload whose items have been received in other way, so it is not created again
+  protected static final String ATTR_UPLOAD_LISTENER = "gwtupload.UPLOAD_LISTENER";
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
 
   protected static final int DEFAULT_REQUEST_LIMIT_KB = 5 * 1024 * 1024;
   protected static final int DEFAULT_SLOW_DELAY_MILLIS = 300;
+  // Bytes received between the pauses of slow uploads
+  protected static final int SLOW_UPLOAD_BLOCK_SIZE = 4096;
+  protected static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+  protected static final int DEFAULT_MAX_QUEUE_WAIT_MILLIS = 60000;
+  // Seconds the client is asked to wait when the server is too busy
+  protected static final int BUSY_RETRY_AFTER_SECONDS = 5;
+  // Only local scrapers can read the metrics unless other addresses are configured
+  protected static final String DEFAULT_METRICS_ALLOW_REGEX = "127\\..*|0:0:0:0:0:0:0:1|::1";
 
   protected static final String XML_ERROR_ITEM_NOT_FOUND = "item not found";
   protected static final String XML_ERROR_TIMEOUT = "timeout receiving file";
@@ -191,6 +385,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
    * @return fileItem found or null
    */
   public static FileItem findItemByFieldName(List<FileItem> sessionFiles, String attrName) {
+    SessionFileStore store = getCurrentStore(sessionFiles);
+    if (store != null) {
+      return store.findByFieldName(attrName);
+    }
     if (sessionFiles != null) {
       for (FileItem fileItem : sessionFiles) {
         if (fileItem.getFieldName().equalsIgnoreCase(attrName)) {
@@ -210,6 +408,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
    * @return fileItem of the file found or null
    */
   public static FileItem findItemByFileName(List<FileItem> sessionFiles, String fileName) {
+    SessionFileStore store = getCurrentStore(sessionFiles);
+    if (store != null) {
+      return store.findByFileName(fileName);
+    }
     if (sessionFiles != null) {
       for (FileItem fileItem : sessionFiles) {
         if (fileItem.isFormField() == false && fileItem.getName().equalsIgnoreCase(fileName)) {
@@ -220,12 +422,29 @@ public class UploadServlet extends HttpServlet implements Servlet {
     return null;
   }
 
+  /**
+   * Return the store of the session when the list is a view of it, so lookups can use its indexes.
+   */
+  private static SessionFileStore getCurrentStore(List<FileItem> sessionFiles) {
+    return sessionFiles instanceof SessionFileStore.View ? ((SessionFileStore.View) sessionFiles).getStore() : null;
+  }
+
+  /**
+   * Return the store with the FileItems saved in session under the provided session key, or null.
+   */
+  public static SessionFileStore getSessionFileStore(HttpServletRequest request, String sessionFilesKey) {
+    return SessionFileStore.get(request.getSession(), sessionFilesKey, false);
+  }
+
   /**
    * Return the list of FileItems stored in session under the provided session key.
+   *
+   * Changes made to the list are written to the {@link SessionFileStore} of the session.
    */
   @SuppressWarnings("unchecked")
   public static List<FileItem> getSessionFileItems(HttpServletRequest request, String sessionFilesKey) {
-    return (List<FileItem>) request.getSession().getAttribute(sessionFilesKey);
+    Object value = request.getSession().getAttribute(sessionFilesKey);
+    return value instanceof SessionFileStore ? ((SessionFileStore) value).asList() : (List<FileItem>) value;
   }
 
   /**
@@ -243,6 +462,13 @@ public class UploadServlet extends HttpServlet implements Servlet {
     return getSessionFileItems(request, getSessionFilesKey(request));
   }
 
+  /**
+   * Return the store with the FileItems saved in session under the session key, or null.
+   */
+  public SessionFileStore getMySessionFileStore(HttpServletRequest request) {
+    return getSessionFileStore(request, getSessionFilesKey(request));
+  }
+
   /**
    * Return the most recent list of FileItems received
    */
@@ -276,10 +502,21 @@ public class UploadServlet extends HttpServlet implements Servlet {
    * Returns the localized text of a key.
    */
   public static String getMessage(String key, Object... pars) {
-    Locale loc =
-      getThreadLocalRequest() == null || getThreadLocalRequest().getLocale() == null
-       ? new Locale("en")
-       : getThreadLocalRequest().getLocale();
+    return getMessage(getThreadLocalRequest(), key, pars);
+  }
+
+  /**
+   * Returns the localized text of a key in the locale of the request.
+   */
+  public static String getMessage(HttpServletRequest request, String key, Object... pars) {
+    return getMessage(request == null ? null : request.getLocale(), key, pars);
+  }
+
+  /**
+   * Returns the localized text of a key, english when the locale is null.
+   */
+  public static String getMessage(Locale locale, String key, Object... pars) {
+    Locale loc = locale == null ? new Locale("en") : locale;
 
     ResourceBundle res =
       ResourceBundle.getBundle(UploadServlet.class.getName(), loc);
@@ -292,6 +529,32 @@ public class UploadServlet extends HttpServlet implements Servlet {
     return perThreadRequest.get();
   }
 
+  /**
+   * Return true when the request can be processed asynchronously.
+   *
+   * It returns false in containers with a servlet api older than 3.0, like
+   * App Engine, where the method does not exist.
+   */
+  protected static boolean isAsyncSupported(HttpServletRequest request) {
+    try {
+      return request.isAsyncSupported();
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Return true when progress events can be streamed, they need the
+   * non-blocking output of servlet 3.1.
+   */
+  protected static boolean isEventsSupported(HttpServletRequest request) {
+    if (!isAsyncSupported(request)) {
+      return false;
+    }
+    ServletContext context = request.getServletContext();
+    return context.getMajorVersion() > 3 || context.getMajorVersion() == 3 && context.getMinorVersion() >= 1;
+  }
+
   /**
    * Just a method to detect whether the web container is running with appengine
    * restrictions.
@@ -362,9 +625,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
   protected static FileItem removeUploadedFile(HttpServletRequest request, HttpServletResponse response) throws IOException {
     String parameter = request.getParameter(UConsts.PARAM_REMOVE);
 
-    FileItem item = findFileItem(getSessionFileItems(request), parameter);
+    SessionFileStore store = getSessionFileStore(request, SESSION_FILES);
+    FileItem item = store == null || parameter == null ? null : store.find(parameter);
     if (item != null) {
-      getSessionFileItems(request).remove(item);
+      store.remove(item);
       logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") removeUploadedFile: " + parameter + " " + item.getName() + " " + item.getSize());
     } else {
       logger.info("UPLOAD-SERVLET (" + request.getSession().getId() + ") removeUploadedFile: " + parameter + " not in session.");
@@ -447,17 +711,78 @@ public class UploadServlet extends HttpServlet implements Servlet {
    * @throws IOException
    */
   protected static void renderXmlResponse(HttpServletRequest request, HttpServletResponse response, XMLResponse xmlResponse, boolean post) throws IOException {
-    String contentType = post ? "text/plain" : "text/html";
-
-    String xml = xmlResponse.getXML();
+    boolean json = isJsonRequest(request);
+    String contentType = post ? "text/plain" : json ? "application/json" : "text/html";
 
-    renderMessage(response, xml, contentType);
+    response.addHeader("Cache-Control", "no-cache");
+    response.setContentType(contentType + "; charset=UTF-8");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter out = response.getWriter();
+    if (json) {
+      xmlResponse.writeJSON(out);
+    } else {
+      xmlResponse.write(out);
+    }
+    out.flush();
+    out.close();
   }
 
   protected static void renderXmlResponse(HttpServletRequest request, HttpServletResponse response, XMLResponse xmlResponse) throws IOException {
     renderXmlResponse(request, response, xmlResponse, false);
   }
 
+  /**
+   * Write the metrics in plain text for a scraper, only to the addresses
+   * allowed by the init-param metricsAllowRegex.
+   */
+  protected void renderMetrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UploadMetrics metrics = UploadMetrics.get();
+    String address = request.getRemoteAddr();
+    if (metrics == null || address == null || !address.matches(metricsAllowRegex)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.addHeader("Cache-Control", "no-cache");
+    response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter out = response.getWriter();
+    metrics.write(out);
+    out.flush();
+    out.close();
+  }
+
+  private static void countStatusPoll() {
+    UploadMetrics metrics = UploadMetrics.get();
+    if (metrics != null) {
+      metrics.statusPoll();
+    }
+  }
+
+  /**
+   * Tell the client that the server can not receive the upload now and when it
+   * should send it again.
+   */
+  protected static void renderBusyResponse(HttpServletRequest request, HttpServletResponse response, UploadBusyException e) throws IOException {
+    response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    XMLResponse xmlResponse = new XMLResponse();
+    xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
+    renderXmlResponse(request, response, xmlResponse, true);
+  }
+
+  /**
+   * Return true when the client prefers json responses, either because it sends the
+   * parameter format=json or because it accepts application/json and not xml.
+   */
+  protected static boolean isJsonRequest(HttpServletRequest request) {
+    String format = request.getParameter(PARAM_FORMAT);
+    if (format != null) {
+      return FORMAT_JSON.equalsIgnoreCase(format);
+    }
+    String accept = request.getHeader("Accept");
+    return accept != null && accept.contains("application/json") && !accept.contains("xml");
+  }
+
   protected static void setThreadLocalRequest(HttpServletRequest request) {
     perThreadRequest.set(request);
   }
@@ -480,8 +805,44 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
   protected int uploadDelay = 0;
 
+  protected int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
   protected boolean useBlobstore = false;
 
+  protected ResumableUploadStore resumableStore;
+
+  protected String digestAlgorithm = null;
+
+  protected ContentStore contentStore = null;
+
+  protected boolean instantUploads = false;
+
+  protected BandwidthShaper bandwidthShaper = new BandwidthShaper(0, 0, 0);
+
+  protected AdmissionController admissionController = new AdmissionController(0, 0);
+
+  protected boolean metricsEnabled = false;
+
+  protected String metricsAllowRegex = DEFAULT_METRICS_ALLOW_REGEX;
+
+  protected long maxQueueWait = DEFAULT_MAX_QUEUE_WAIT_MILLIS;
+
+  protected StripedRepository repository = null;
+
+  protected OffHeapFileItemFactory.Budget offHeapBudget = null;
+
+  protected int offHeapThreshold = OffHeapFileItemFactory.DEFAULT_THRESHOLD;
+
+  protected MemoryPressureMonitor memoryPressure = null;
+
+  protected boolean rejectUnderMemoryPressure = false;
+
+  protected String sendfileHeader = null;
+
+  protected String sendfilePrefix = null;
+
+  protected File sendfileRoot = null;
+
   /**
    * Mark the current upload process to be canceled.
    *
@@ -512,6 +873,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
   /**
    * Get an uploaded file item.
    *
+   * Range and conditional requests are supported, see {@link UploadedFileServer}.
+   * When the sendfileHeader parameter is set, files in disk are sent by the web
+   * server in front of the container.
+   *
    * @param request
    * @param response
    * @throws IOException
@@ -522,8 +887,14 @@ public class UploadServlet extends HttpServlet implements Servlet {
     if (item != null) {
       logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") getUploadedFile: " + parameter + " returning: " + item.getContentType() + ", " + item.getName() + ", " + item.getSize()
             + " bytes");
-      response.setContentType(item.getContentType());
-      copyFromInputStreamToOutputStream(item.getInputStream(), response.getOutputStream());
+      long start = System.currentTimeMillis();
+      if (sendfileHeader == null || !UploadedFileServer.offload(response, item, sendfileHeader, sendfileRoot, sendfilePrefix)) {
+        UploadedFileServer.serve(request, response, item);
+      }
+      UploadMetrics metrics = UploadMetrics.get();
+      if (metrics != null) {
+        metrics.downloaded(System.currentTimeMillis() - start);
+      }
     } else {
       logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") getUploadedFile: " + parameter + " file isn't in session.");
       XMLResponse xmlResponse = new XMLResponse();
@@ -541,6 +912,28 @@ public class UploadServlet extends HttpServlet implements Servlet {
     return value;
   }
 
+  /**
+   * Stop the thread which watches frozen uploads, so it does not keep the
+   * application classes when it is undeployed.
+   */
+  @Override
+  public void destroy() {
+    if (memoryPressure != null) {
+      memoryPressure.stop();
+    }
+    if (metricsEnabled) {
+      UploadMetrics.unregister();
+    }
+    if (resumableStore != null) {
+      UploadWatchDog.unwatch(resumableStore);
+    }
+    if (contentStore != null) {
+      UploadWatchDog.unwatch(contentStore);
+    }
+    UploadWatchDog.stop();
+    super.destroy();
+  }
+
   /**
    * Read configurable parameters during the servlet initialization.
    */
@@ -595,7 +988,174 @@ public class UploadServlet extends HttpServlet implements Servlet {
       corsDomainsRegex = cors;
     }
 
-    logger.info("UPLOAD-SERVLET init: maxSize=" + maxSize + ", slowUploads=" + slow + ", isAppEngine=" + isAppEngine() + ", corsRegex=" + corsDomainsRegex);
+    String concurrent = getInitParameter("maxConcurrentUploads");
+    if (concurrent != null) {
+      try {
+        maxConcurrentUploads = Math.max(1, Integer.parseInt(concurrent));
+      } catch (NumberFormatException e) {
+      }
+    }
+
+    int maxActiveUploads = 0;
+    String activeUploads = getInitParameter("maxActiveUploads");
+    if (activeUploads != null) {
+      try {
+        maxActiveUploads = Integer.parseInt(activeUploads);
+      } catch (NumberFormatException e) {
+      }
+    }
+    long maxActiveBytes = 0;
+    String activeBytes = getInitParameter("maxActiveBytes");
+    if (activeBytes != null) {
+      try {
+        maxActiveBytes = Long.parseLong(activeBytes);
+      } catch (NumberFormatException e) {
+      }
+    }
+    admissionController = new AdmissionController(maxActiveUploads, maxActiveBytes);
+    String queueWait = getInitParameter("maxQueueWait");
+    if (queueWait != null) {
+      try {
+        maxQueueWait = Long.parseLong(queueWait);
+      } catch (NumberFormatException e) {
+      }
+    }
+
+    String repositories = getInitParameter("repositories");
+    List<File> repositoryDirs = repositories != null ? StripedRepository.parseDirectories(repositories) : new ArrayList<File>();
+    if (!repositoryDirs.isEmpty()) {
+      repository = new StripedRepository(repositoryDirs,
+          "leastused".equalsIgnoreCase(getInitParameter("repositoryPlacement"))
+          ? StripedRepository.Placement.LEAST_USED : StripedRepository.Placement.ROUND_ROBIN);
+    }
+
+    String budget = getInitParameter("offHeapBudget");
+    if (budget != null) {
+      try {
+        long max = Long.parseLong(budget);
+        offHeapBudget = max > 0 ? new OffHeapFileItemFactory.Budget(max) : null;
+      } catch (NumberFormatException e) {
+      }
+    }
+    String threshold = getInitParameter("offHeapThreshold");
+    if (threshold != null) {
+      try {
+        offHeapThreshold = Integer.parseInt(threshold);
+      } catch (NumberFormatException e) {
+      }
+    }
+
+    String pressure = getInitParameter("memoryPressureThreshold");
+    if (pressure != null) {
+      try {
+        int percent = Integer.parseInt(pressure);
+        if (percent > 0 && percent < 100) {
+          memoryPressure = new MemoryPressureMonitor(percent / 100.0);
+          if (!memoryPressure.start()) {
+            logger.error("UPLOAD-SERVLET init: the JVM does not support memory usage thresholds, memoryPressureThreshold is ignored");
+            memoryPressure = null;
+          }
+        }
+      } catch (NumberFormatException e) {
+      }
+    }
+    rejectUnderMemoryPressure = "reject".equalsIgnoreCase(getInitParameter("memoryPressureAction"));
+
+    String resumableDir = getInitParameter("resumableDir");
+    File resumableDirectory = resumableDir != null ? new File(resumableDir)
+        : new File(System.getProperty("java.io.tmpdir"), "gwtupload-resumable");
+    long resumableMaxAge = ResumableUploadStore.DEFAULT_MAX_AGE_MILLIS;
+    String maxAge = getInitParameter("resumableMaxAge");
+    if (maxAge != null) {
+      try {
+        resumableMaxAge = Long.parseLong(maxAge);
+      } catch (NumberFormatException e) {
+      }
+    }
+    resumableStore = new ResumableUploadStore(resumableDirectory, resumableMaxAge);
+    if (!appEngine) {
+      // Remove the files abandoned before a restart, and then periodically
+      resumableStore.expire(System.currentTimeMillis());
+      UploadWatchDog.watch(resumableStore);
+    }
+
+    metricsEnabled = "true".equalsIgnoreCase(getInitParameter("metrics"));
+    if (metricsEnabled) {
+      UploadMetrics metrics = UploadMetrics.register();
+      // Temporary files created by commons-fileupload are named upload_*.tmp
+      metrics.addTempDirectory(new File(System.getProperty("java.io.tmpdir")), "upload_");
+      metrics.setRepository(repository);
+      metrics.addTempDirectory(resumableDirectory, "");
+      metrics.setOffHeapBudget(offHeapBudget);
+      metrics.setMemoryPressureMonitor(memoryPressure);
+      String allow = getInitParameter("metricsAllowRegex");
+      if (allow != null) {
+        metricsAllowRegex = allow;
+      }
+    }
+
+    String algorithm = getInitParameter("digestAlgorithm");
+    String contentDir = getInitParameter("contentStoreDir");
+    if (algorithm != null || contentDir != null) {
+      try {
+        DigestFileItemFactory.checkAlgorithm(algorithm != null ? algorithm : DigestFileItemFactory.DEFAULT_ALGORITHM);
+        digestAlgorithm = algorithm != null ? algorithm : DigestFileItemFactory.DEFAULT_ALGORITHM;
+        if (contentDir != null) {
+          long contentMaxAge = ContentStore.DEFAULT_MAX_AGE_MILLIS;
+          String contentAge = getInitParameter("contentStoreMaxAge");
+          if (contentAge != null) {
+            try {
+              contentMaxAge = Long.parseLong(contentAge);
+            } catch (NumberFormatException e) {
+            }
+          }
+          contentStore = new ContentStore(new File(contentDir), contentMaxAge);
+          if (!appEngine) {
+            UploadWatchDog.watch(contentStore);
+          }
+          instantUploads = "true".equalsIgnoreCase(getInitParameter("instantUploads"));
+        }
+      } catch (IllegalArgumentException e) {
+        logger.error("UPLOAD-SERVLET init: " + e.getMessage());
+      }
+    }
+
+    long[] bandwidth = new long[3];
+    String[] bandwidthParams = {"maxBandwidth", "maxSessionBandwidth", "maxUploadBandwidth"};
+    for (int i = 0; i < bandwidthParams.length; i++) {
+      String value = getInitParameter(bandwidthParams[i]);
+      if (value != null) {
+        try {
+          bandwidth[i] = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+        }
+      }
+    }
+    bandwidthShaper = new BandwidthShaper(bandwidth[0], bandwidth[1], bandwidth[2]);
+
+    sendfileHeader = getInitParameter("sendfileHeader");
+    String root = getInitParameter("sendfileRoot");
+    if (root != null) {
+      sendfileRoot = new File(root);
+    }
+    sendfilePrefix = getInitParameter("sendfilePrefix");
+    if (sendfileHeader != null && sendfileRoot == null && sendfileHeader.equalsIgnoreCase("X-Accel-Redirect")) {
+      logger.error("UPLOAD-SERVLET init: X-Accel-Redirect needs sendfileRoot and sendfilePrefix, files will be sent by the servlet");
+      sendfileHeader = null;
+    }
+
+    logger.info("UPLOAD-SERVLET init: maxSize=" + maxSize + ", slowUploads=" + slow + ", isAppEngine=" + isAppEngine() + ", corsRegex=" + corsDomainsRegex
+        + ", maxConcurrentUploads=" + maxConcurrentUploads + ", digestAlgorithm=" + digestAlgorithm + ", contentStoreDir=" + contentDir
+        + ", contentStoreMaxAge=" + (contentStore != null ? contentStore.getMaxAge() : 0)
+        + ", instantUploads=" + instantUploads + ", sendfileHeader=" + sendfileHeader
+        + ", bandwidth=" + bandwidth[0] + "/" + bandwidth[1] + "/" + bandwidth[2]
+        + ", maxActiveUploads=" + maxActiveUploads + ", maxActiveBytes=" + maxActiveBytes + ", maxQueueWait=" + maxQueueWait
+        + ", repositories=" + (repository != null ? repository.getDirectories() + " " + repository.getPlacement() : "default")
+        + ", offHeapBudget=" + (offHeapBudget != null ? offHeapBudget.getMax() : 0) + ", offHeapThreshold=" + offHeapThreshold
+        + ", memoryPressureThreshold=" + (memoryPressure != null ? memoryPressure.getThreshold() : 0)
+        + ", memoryPressureAction=" + (rejectUnderMemoryPressure ? "reject" : "disk")
+        + ", resumableDir=" + resumableDirectory + ", resumableMaxAge=" + resumableMaxAge
+        + ", metrics=" + metricsEnabled);
   }
 
   /**
@@ -607,12 +1167,26 @@ public class UploadServlet extends HttpServlet implements Servlet {
   protected AbstractUploadListener createNewListener(HttpServletRequest request) {
     int delay = request.getParameter("nodelay") != null ? 0 : uploadDelay;
     if (isAppEngine()) {
-      return new MemoryUploadListener(delay, getContentLength(request));
+      return new MemoryUploadListener(request, delay, getContentLength(request));
     } else {
-      return new UploadListener(delay, getContentLength(request));
+      return new UploadListener(request, delay, getContentLength(request));
     }
   }
 
+  /**
+   * Return the request to read the upload from, which is throttled when there are
+   * bandwidth limits or the upload is slowed down with slowUploads.
+   *
+   * @param request
+   * @return the request itself when the upload is not throttled
+   */
+  protected HttpServletRequest getThrottledRequest(HttpServletRequest request) {
+    int delay = request.getParameter("nodelay") != null ? 0 : uploadDelay;
+    // The delay was a pause after each block read, so it is converted to the same rate
+    long rate = delay > 0 && delay < 30000 ? SLOW_UPLOAD_BLOCK_SIZE * 1000L / delay : 0;
+    return bandwidthShaper.throttle(request, rate);
+  }
+
   private long getContentLength(HttpServletRequest request) {
     long size = -1;
     try {
@@ -631,12 +1205,19 @@ public class UploadServlet extends HttpServlet implements Servlet {
     perThreadRequest.set(request);
     XMLResponse xmlResponse = new XMLResponse();
     try {
+      if (request.getParameter(PARAM_METRICS) != null && metricsEnabled) {
+        // Scrapers do not keep cookies, so the listener is not looked up to not create a session per request
+        renderMetrics(request, response);
+        return;
+      }
       AbstractUploadListener listener = getCurrentListener(request);
       if (request.getParameter(UConsts.PARAM_SESSION) != null) {
         logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") new session, blobstore=" + (isAppEngine() && useBlobstore));
         String sessionId = request.getSession().getId();
         xmlResponse.addResponseTag(TAG_BLOBSTORE, (isAppEngine() && useBlobstore) ? "true" : "false");
         xmlResponse.addResponseTag(TAG_SESSION_ID, sessionId);
+        // Clients can receive the progress as server-sent events instead of polling
+        xmlResponse.addResponseTag(TAG_EVENTS, "" + isEventsSupported(request));
         renderXmlResponse(request, response, xmlResponse);
       } else if (isAppEngine() && (request.getParameter(UConsts.PARAM_BLOBSTORE) != null || request.getParameterMap().size() == 0)) {
         String blobStorePath = getBlobstorePath(request);
@@ -651,6 +1232,28 @@ public class UploadServlet extends HttpServlet implements Servlet {
         renderXmlResponse(request, response, xmlResponse);
       } else if (request.getParameter(UConsts.PARAM_REMOVE) != null) {
         removeUploadedFile(request, response);
+      } else if (request.getParameter(PARAM_DIGEST) != null) {
+        FileItem item = attachStoredFile(request);
+        if (item != null) {
+          // The file is processed as if it had been posted
+          request.setAttribute(ATTR_RECEIVED_ITEMS, Collections.singletonList(item));
+          doPost(request, response);
+          return;
+        }
+        // The client has to send the content
+        xmlResponse.addResponseTag(TAG_CURRENT_BYTES, "0");
+        renderXmlResponse(request, response, xmlResponse);
+      } else if (request.getParameter(UConsts.PARAM_RESUME) != null) {
+        long offset = resumableStore.resume(getResumableKey(request));
+        logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") resumable upload " + request.getParameter(PARAM_UPLOAD_ID) + " offset=" + offset);
+        if (offset > 0) {
+          response.setHeader("Range", "bytes=0-" + (offset - 1));
+        }
+        xmlResponse.addResponseTag(TAG_CURRENT_BYTES, "" + offset);
+        renderXmlResponse(request, response, xmlResponse);
+      } else if (request.getParameter(UConsts.PARAM_EVENTS) != null && isEventsSupported(request)) {
+        String interval = request.getParameter(UConsts.PARAM_EVENTS);
+        ProgressEventStream.subscribe(request, response, interval.matches("[0-9]+") ? Long.parseLong(interval) : 0, listener);
       } else if (request.getParameter(UConsts.PARAM_CLEAN) != null) {
         logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") cleanListener");
         if (listener != null) {
@@ -658,10 +1261,18 @@ public class UploadServlet extends HttpServlet implements Servlet {
         }
         xmlResponse.addResponseTag(TAG_FINISHED, "ok");
         renderXmlResponse(request, response, xmlResponse);
+      } else if (request.getParameter(UConsts.PARAM_BATCH) != null) {
+        countStatusPoll();
+        String[] fieldnames = request.getParameterValues(UConsts.PARAM_FILENAME);
+        if (fieldnames != null) {
+          getUploadStatus(request, fieldnames, xmlResponse);
+        }
+        renderXmlResponse(request, response, xmlResponse);
       } else if (listener != null && listener.isFinished()) {
         removeCurrentListener(request);
         renderXmlResponse(request, response, listener.getPostResponse());
       } else {
+        countStatusPoll();
         xmlResponse.addResponseTags(getUploadStatus(request, request.getParameter(UConsts.PARAM_FILENAME), null));
         renderXmlResponse(request, response, xmlResponse);
       }
@@ -700,6 +1311,8 @@ public class UploadServlet extends HttpServlet implements Servlet {
     } catch (UploadSizeLimitException e) {
       xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
       renderXmlResponse(request, response, xmlResponse, true);
+    } catch (UploadBusyException e) {
+      renderBusyResponse(request, response, e);
     } catch (Exception e) {
       logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") Exception -> " + e.getMessage() + "\n" + stackTraceToString(e));
       xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
@@ -709,6 +1322,123 @@ public class UploadServlet extends HttpServlet implements Servlet {
     }
   }
 
+  /**
+   * The put method receives the chunks of resumable uploads.
+   *
+   * Each request has a Content-Range header and its body is written at that
+   * position of the partial file of the upload. Until all chunks have arrived, the
+   * response contains the offset received without gaps; the request completing
+   * the file is processed as a normal post,
+   * so the file is put in session and the response has the files summary.
+   */
+  protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+    perThreadRequest.set(request);
+    XMLResponse xmlResponse = new XMLResponse();
+    try {
+      FileItem item = receiveChunk(request);
+      if (item == null) {
+        long offset = resumableStore.getOffset(getResumableKey(request));
+        xmlResponse.addResponseTag(TAG_CURRENT_BYTES, "" + offset);
+        xmlResponse.addResponseTag(TAG_TOTAL_BYTES, "" + parseContentRange(request)[2]);
+        renderXmlResponse(request, response, xmlResponse, true);
+        return;
+      }
+      request.setAttribute(ATTR_RECEIVED_ITEMS, Collections.singletonList(item));
+    } catch (UploadSizeLimitException e) {
+      xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
+      renderXmlResponse(request, response, xmlResponse, true);
+      return;
+    } catch (Exception e) {
+      logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") Exception receiving chunk -> " + e.getMessage());
+      xmlResponse.addResponseTag(TAG_ERROR, e.getMessage());
+      renderXmlResponse(request, response, xmlResponse, true);
+      return;
+    } finally {
+      perThreadRequest.set(null);
+    }
+    doPost(request, response);
+  }
+
+  /**
+   * Write the body of a chunk at its position in the partial file of its resumable upload.
+   *
+   * Chunks can arrive in any order and concurrently. All of them must have the size
+   * given in the chunksize parameter (the last one can be smaller); when it is not
+   * present the size of the received chunk is used. The store rejects chunk sizes
+   * out of its limits and ranges which do not match the chunk size.
+   *
+   * @return the complete file once its last byte has been received, otherwise null
+   */
+  protected FileItem receiveChunk(HttpServletRequest request) throws IOException {
+    long[] range = parseContentRange(request);
+    if (range == null || request.getParameter(PARAM_UPLOAD_ID) == null || request.getParameter(PARAM_NAME) == null) {
+      throw new UploadActionException("Invalid chunk, uploadid and name parameters and Content-Range header are required");
+    }
+    if (range[2] > maxSize) {
+      throw new UploadSizeLimitException(maxSize, range[2]);
+    }
+    if (range[2] > maxFileSize) {
+      throw new UploadSizeLimitException(maxFileSize, range[2]);
+    }
+
+    String key = getResumableKey(request);
+    String size = request.getParameter(PARAM_CHUNK_SIZE);
+    int chunkSize = size != null ? Integer.parseInt(size) : (int) (range[1] - range[0] + 1);
+    boolean completed = resumableStore.write(key, range[0], range[1], range[2], chunkSize, getThrottledRequest(request).getInputStream());
+    logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") received chunk " + range[0] + "-" + range[1] + "/" + range[2] + " of " + key + (completed ? ", completed" : ""));
+    if (!completed) {
+      return null;
+    }
+    String fieldName = indexedFieldName(new HashMap<String, Integer>(), request.getParameter(PARAM_NAME));
+    return resumableStore.complete(key, fieldName, request.getParameter(PARAM_CTYPE), request.getParameter(PARAM_FILENAME));
+  }
+
+  /**
+   * Create an item with a file of the content store, when the client sends
+   * the digest of the file instead of its content.
+   *
+   * @return the item, or null when instant uploads are disabled, the digest was
+   *         computed with other algorithm, or the content is not in the store
+   */
+  protected FileItem attachStoredFile(HttpServletRequest request) {
+    String digest = request.getParameter(PARAM_DIGEST).toLowerCase();
+    String algorithm = request.getParameter(PARAM_ALGORITHM);
+    if (!instantUploads || contentStore == null || request.getParameter(PARAM_NAME) == null || !digest.matches("[0-9a-f]{8,128}")
+        || !digestAlgorithm.equalsIgnoreCase(algorithm != null ? algorithm : DigestFileItemFactory.DEFAULT_ALGORITHM)) {
+      return null;
+    }
+    String fieldName = indexedFieldName(new HashMap<String, Integer>(), request.getParameter(PARAM_NAME));
+    FileItem item = DigestFileItem.fromStore(contentStore, digest, digestAlgorithm, fieldName, request.getParameter(PARAM_CTYPE), request.getParameter(PARAM_FILENAME));
+    if (item != null && item.getSize() > maxFileSize) {
+      item.delete();
+      return null;
+    }
+    logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") instant upload of " + fieldName + " " + digest + (item != null ? " found" : " not found"));
+    return item;
+  }
+
+  /**
+   * The key of a resumable upload in the store.
+   * Uploads are scoped to the session, so a client can not write into uploads of others.
+   */
+  protected String getResumableKey(HttpServletRequest request) {
+    return request.getSession().getId() + "-" + request.getParameter(PARAM_UPLOAD_ID);
+  }
+
+  /**
+   * Parse a Content-Range header like 'bytes 0-1023/2048'.
+   *
+   * @return an array with the first byte, the last byte and the total length, or null
+   */
+  private static long[] parseContentRange(HttpServletRequest request) {
+    String header = request.getHeader("Content-Range");
+    Matcher m = header == null ? null : CONTENT_RANGE.matcher(header.trim());
+    if (m == null || !m.matches()) {
+      return null;
+    }
+    return new long[] {Long.parseLong(m.group(1)), Long.parseLong(m.group(2)), Long.parseLong(m.group(3))};
+  }
+
   protected void getFileItemsSummary(HttpServletRequest request, XMLResponse xmlResponse) {
     List<FileItem> s = getMyLastReceivedFileItems(request);
     if (s != null) {
@@ -717,7 +1447,8 @@ public class UploadServlet extends HttpServlet implements Servlet {
         if (i.isFormField()) {
           xmlResponse.addParam(i.getFieldName(), i.getString());
         } else {
-          xmlResponse.addFile(i.getFieldName(), i.getName(), i.getSize(), i.getContentType() !=null ? i.getContentType() : "unknown", (i instanceof HasKey) ? ((HasKey)i).getKeyString() : null);
+          xmlResponse.addFile(i.getFieldName(), i.getName(), i.getSize(), i.getContentType() !=null ? i.getContentType() : "unknown", (i instanceof HasKey) ? ((HasKey)i).getKeyString() : null,
+              (i instanceof HasDigest) ? ((HasDigest) i).getDigest() : null);
         }
       }
       xmlResponse.addResponseTag(TAG_FINISHED, "ok");
@@ -742,26 +1473,134 @@ public class UploadServlet extends HttpServlet implements Servlet {
   }
 
   /**
-   * Get the listener active in this session.
+   * Override this method to receive files in streaming mode.
+   *
+   * When it returns a sink, the request is parsed with the streaming api of
+   * commons-fileupload and the content of each file is passed to the sink
+   * instead of being stored in temporary FileItems.
+   *
+   * @param request
+   * @return the sink for this request or null to use the FileItemFactory (default)
+   */
+  protected UploadSink getUploadSink(HttpServletRequest request) {
+    return null;
+  }
+
+  /**
+   * Get the listener of the upload identified in the request.
    *
    * @param request
    * @return the listener active
    */
   protected AbstractUploadListener getCurrentListener(HttpServletRequest request) {
+    return getCurrentListener(request, getUploadName(request));
+  }
+
+  /**
+   * Get the listener of an upload of this session.
+   *
+   * @param request
+   * @param uploadName the name given by the client to the upload, or null
+   * @return the listener active
+   */
+  protected AbstractUploadListener getCurrentListener(HttpServletRequest request, String uploadName) {
+    String sessionId = request.getSession().getId();
+    AbstractUploadListener listener = findListener(AbstractUploadListener.getUploadId(sessionId, uploadName));
+    if (listener == null && uploadName != null) {
+      // Clients which don't name their uploads have just one listener per session
+      listener = findListener(sessionId);
+    }
+    return listener;
+  }
+
+  private AbstractUploadListener findListener(String uploadId) {
     if (isAppEngine()) {
-      return MemoryUploadListener.current(request.getSession().getId());
+      return MemoryUploadListener.current(uploadId);
     } else {
-      return UploadListener.current(request);
+      return UploadListener.current(uploadId);
     }
   }
 
+  /**
+   * Return the name the client gives to the upload, so the same session can
+   * run several uploads at the same time, or null when it is not provided.
+   *
+   * Uploads are named with the upload id parameter, status requests can use the
+   * filename parameter instead.
+   */
+  public static String getUploadName(HttpServletRequest request) {
+    String name = request.getParameter(PARAM_UPLOAD_ID);
+    return name != null ? name : request.getParameter(PARAM_FILENAME);
+  }
+
   /**
    * Override this method if you want to implement a different ItemFactory.
    *
+   * When an off-heap budget is configured, items are received in direct memory.
+   * When a digest algorithm is configured, the factory is decorated so as
+   * the digest of each file is computed while it is received.
+   *
    * @return FileItemFactory
    */
   protected FileItemFactory getFileItemFactory(long requestSize) {
-    return new DefaultFileItemFactory();
+    if (offHeapBudget == null) {
+      return getDiskFileItemFactory(requestSize);
+    }
+    StripedRepository.Directory dir = repository != null ? repository.select(requestSize) : null;
+    FileItemFactory factory = new OffHeapFileItemFactory(offHeapBudget, offHeapThreshold, dir != null ? dir.getDirectory() : null);
+    return digestAlgorithm != null ? new DigestFileItemFactory(factory, digestAlgorithm, contentStore) : factory;
+  }
+
+  /**
+   * Return the factory used when the heap is almost full, it must not keep
+   * items in memory.
+   *
+   * @return FileItemFactory
+   */
+  protected FileItemFactory getDiskFileItemFactory(long requestSize) {
+    FileItemFactory factory = new DefaultFileItemFactory(repository, requestSize);
+    return digestAlgorithm != null ? new DigestFileItemFactory(factory, digestAlgorithm, contentStore) : factory;
+  }
+
+  /**
+   * Return the factory for a request: the one of {@link #getFileItemFactory(long)},
+   * or the disk one while the heap is almost full.
+   *
+   * @throws UploadBusyException when the heap is almost full and the servlet
+   *         is configured to reject requests, or it can not use the disk
+   */
+  FileItemFactory getRequestFileItemFactory(HttpServletRequest request, long requestSize) {
+    if (memoryPressure == null || !memoryPressure.isUnderPressure()) {
+      return getFileItemFactory(requestSize);
+    }
+    if (rejectUnderMemoryPressure || isAppEngine()) {
+      memoryPressure.rejected();
+      logger.info("UPLOAD-SERVLET (" + request.getSession().getId() + ") the heap is almost full, the client will retry in " + BUSY_RETRY_AFTER_SECONDS + " seconds");
+      throw new UploadBusyException(BUSY_RETRY_AFTER_SECONDS);
+    }
+    memoryPressure.diverted();
+    logger.debug("UPLOAD-SERVLET (" + request.getSession().getId() + ") the heap is almost full, receiving the request in disk");
+    return getDiskFileItemFactory(requestSize);
+  }
+
+  /**
+   * Method executed when the client asks for the progress status of several
+   * uploads in a single request.
+   *
+   * The listener of a finished upload is discarded once its status is sent, so
+   * the status includes the files of the response to its POST request, which
+   * the client could not read when the form response was not available.
+   *
+   * @param request
+   * @param fieldnames
+   * @param xmlResponse the response where the status of each upload is added
+   */
+  protected void getUploadStatus(HttpServletRequest request, String[] fieldnames, XMLResponse xmlResponse) {
+    for (String fieldname : fieldnames) {
+      AbstractUploadListener listener = getCurrentListener(request, fieldname);
+      XMLResponse postResponse = listener != null && listener.isFinished() ? listener.getPostResponse() : null;
+      xmlResponse.addStatus(fieldname, getUploadStatus(request, fieldname, null), postResponse);
+    }
   }
 
   /**
@@ -783,17 +1622,18 @@ public class UploadServlet extends HttpServlet implements Servlet {
     long currentBytes = 0;
     long totalBytes = 0;
     long percent = 0;
-    AbstractUploadListener listener = getCurrentListener(request);
+    AbstractUploadListener listener = getCurrentListener(request, fieldname);
     if (listener != null) {
       if (listener.isFinished()) {
-
+        // The uploaded files are sent to the client in the response to the POST request
+        ret.put(TAG_FINISHED, "ok");
       } else if (listener.getException() != null) {
         if (listener.getException() instanceof UploadCanceledException) {
           ret.put(TAG_CANCELED, "true");
           ret.put(TAG_FINISHED, TAG_CANCELED);
           logger.error("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + fieldname + " canceled by the user after " + listener.getBytesRead() + " Bytes");
         } else {
-          String errorMsg = getMessage("server_error", listener.getException().getMessage());
+          String errorMsg = getMessage(request, "server_error", listener.getException().getMessage());
           ret.put(TAG_ERROR, errorMsg);
           ret.put(TAG_FINISHED, TAG_ERROR);
           logger.error("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + fieldname + " finished with error: " + listener.getException().getMessage());
@@ -804,31 +1644,28 @@ public class UploadServlet extends HttpServlet implements Servlet {
         percent = totalBytes != 0 ? currentBytes * 100 / totalBytes : 0;
         // logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + fieldname + " " + currentBytes + "/" + totalBytes + " " + percent + "%");
         ret.put(TAG_PERCENT, "" + percent);
+        int position = admissionController.getQueuePosition(listener.getUploadId());
+        if (position > 0) {
+          ret.put(TAG_QUEUED, "" + position);
+        }
         ret.put(TAG_CURRENT_BYTES, "" + currentBytes);
         ret.put(TAG_TOTAL_BYTES, "" + totalBytes);
       }
-    } else if (getMySessionFileItems(request) != null) {
+    } else if (getMySessionFileStore(request) != null) {
       if (fieldname == null) {
         ret.put(TAG_FINISHED, "ok");
-        logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + request.getQueryString() +
-            " finished with files: " + session.getAttribute(getSessionFilesKey(request)));
-      } else {
-        List<FileItem> sessionFiles = getMySessionFileItems(request);
-        for (FileItem file : sessionFiles) {
-          if (file.isFormField() == false && file.getFieldName().equals(fieldname)) {
-            ret.put(TAG_FINISHED, "ok");
-            ret.put(UConsts.PARAM_FILENAME, fieldname);
-            logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + fieldname +
-                " finished with files: " + session.getAttribute(getSessionFilesKey(request)));
-          }
-        }
+        logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + request.getQueryString() + " finished");
+      } else if (getMySessionFileStore(request).hasFile(fieldname)) {
+        ret.put(TAG_FINISHED, "ok");
+        ret.put(UConsts.PARAM_FILENAME, fieldname);
+        logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: " + fieldname + " finished");
       }
     } else {
       logger.debug("UPLOAD-SERVLET (" + session.getId() + ") getUploadStatus: no listener in session");
       ret.put("wait", "listener is null");
     }
-    if (ret.containsKey(TAG_FINISHED)) {
-      removeCurrentListener(request);
+    if (ret.containsKey(TAG_FINISHED) && listener != null) {
+      listener.remove();
     }
     perThreadRequest.set(null);
     return ret;
@@ -855,66 +1692,94 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
     logger.debug("UPLOAD-SERVLET (" + session.getId() + ") new upload request received.");
 
-    AbstractUploadListener listener = getCurrentListener(request);
-    if (listener != null) {
-      if (listener.isFrozen() || listener.isCanceled() || listener.getPercent() >= 100) {
-        removeCurrentListener(request);
-      } else {
-        String error = getMessage("busy");
-        logger.error("UPLOAD-SERVLET (" + session.getId() + ") " + error);
-        return error;
+    AbstractUploadListener listener = (AbstractUploadListener) request.getAttribute(ATTR_UPLOAD_LISTENER);
+    if (listener == null) {
+      String busy = checkBusy(request);
+      if (busy != null) {
+        return busy;
       }
-    }
 
-    // Create a file upload progress listener, and put it in the user session,
-    // so the browser can use ajax to query status of the upload process
-    listener = createNewListener(request);
+      // Create a file upload progress listener, and put it in the user session,
+      // so the browser can use ajax to query status of the upload process
+      listener = createNewListener(request);
+    }
 
     List<FileItem> uploadedItems;
+    boolean admitted = false;
+    UploadMetrics metrics = null;
+    long start = 0;
     try {
 
       // Call to a method which the user can override
       checkRequest(request);
 
-      // Create the factory used for uploading files,
-      FileItemFactory factory = getFileItemFactory(getContentLength(request));
-      ServletFileUpload uploader = new ServletFileUpload(factory);
-      uploader.setSizeMax(maxSize);
-      uploader.setFileSizeMax(maxFileSize);
-      uploader.setProgressListener(listener);
-
-      // Receive the files
-      logger.error("UPLOAD-SERVLET (" + session.getId() + ") parsing HTTP POST request ");
-      uploadedItems = uploader.parseRequest(request);
+      @SuppressWarnings("unchecked")
+      List<FileItem> receivedItems = (List<FileItem>) request.getAttribute(ATTR_RECEIVED_ITEMS);
+      UploadSink sink = null;
+      FileItemFactory factory = null;
+      if (receivedItems == null) {
+        // The factory is chosen before the body is read, so as under memory
+        // pressure the request can be rejected without receiving it
+        sink = getUploadSink(request);
+        if (sink == null) {
+          factory = getRequestFileItemFactory(request, getContentLength(request));
+        }
+        // Wait until there is room for this upload, the client shows its position in the queue.
+        // The listener is not timed out by the watchdog meanwhile.
+        listener.setQueued(true);
+        try {
+          admitted = admissionController.admit(session.getId(), listener.getUploadId(), getContentLength(request), maxQueueWait);
+        } finally {
+          listener.setQueued(false);
+        }
+        if (!admitted) {
+          logger.info("UPLOAD-SERVLET (" + session.getId() + ") too many uploads in progress, the client will retry in " + BUSY_RETRY_AFTER_SECONDS + " seconds");
+          throw new UploadBusyException(BUSY_RETRY_AFTER_SECONDS);
+        }
+      }
+      if (receivedItems != null) {
+        // Items already received in other way, like the chunks of a resumable upload
+        uploadedItems = new ArrayList<FileItem>(receivedItems);
+      } else {
+        // In streaming mode files are passed to the sink, otherwise
+        // create the factory used for uploading files,
+        ServletFileUpload uploader = sink != null ? new ServletFileUpload() : new ServletFileUpload(factory);
+        uploader.setSizeMax(maxSize);
+        uploader.setFileSizeMax(maxFileSize);
+        uploader.setProgressListener(listener);
+
+        // Receive the files
+        logger.error("UPLOAD-SERVLET (" + session.getId() + ") parsing HTTP POST request " + (sink != null ? "in streaming mode" : ""));
+        HttpServletRequest input = getThrottledRequest(request);
+        metrics = UploadMetrics.get();
+        if (metrics != null) {
+          metrics.uploadStarted();
+          start = System.currentTimeMillis();
+        }
+        uploadedItems = sink != null ? parseItemStreams(input, uploader, sink) : uploader.parseRequest(input);
+      }
       session.removeAttribute(getSessionLastFilesKey(request));
       logger.error("UPLOAD-SERVLET (" + session.getId() + ") parsed request, " + uploadedItems.size() + " items received.");
 
-      // Received files are put in session
-      List<FileItem> sessionFiles = getMySessionFileItems(request);
-      if (sessionFiles == null) {
-        sessionFiles = new ArrayList<FileItem>();
-      }
-
       String error = "";
       if (uploadedItems.size() > 0) {
+        // Received files are put in session
+        SessionFileStore sessionFiles = SessionFileStore.get(session, getSessionFilesKey(request), true);
         sessionFiles.addAll(uploadedItems);
-        String msg = "";
-        for (FileItem i : sessionFiles) {
-          msg += i.getFieldName() + " => " + i.getName() + "(" + i.getSize() + " bytes),";
-        }
-        logger.debug("UPLOAD-SERVLET (" + session.getId() + ") puting items in session: " + msg);
+        logger.debug("UPLOAD-SERVLET (" + session.getId() + ") puting " + uploadedItems.size() + " items in session, total: " + sessionFiles.size());
+        // Set it again so as replicated sessions notice the change
         session.setAttribute(getSessionFilesKey(request), sessionFiles);
         session.setAttribute(getSessionLastFilesKey(request), uploadedItems);
       } else if (!isAppEngine()){
         logger.error("UPLOAD-SERVLET (" + session.getId() + ") error NO DATA received ");
-        error += getMessage("no_data");
+        error += getMessage(request, "no_data");
       }
       return error.length() > 0 ? error : null;
 
     // So much silly questions in the list about this issue.
     } catch(LinkageError e) {
       logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") Exception: " + e.getMessage() + "\n" + stackTraceToString(e));
-      RuntimeException ex = new UploadActionException(getMessage("restricted", e.getMessage()), e);
+      RuntimeException ex = new UploadActionException(getMessage(request, "restricted", e.getMessage()), e);
       listener.setException(ex);
       throw ex;
     } catch (SizeLimitExceededException e) {
@@ -930,15 +1795,88 @@ public class UploadServlet extends HttpServlet implements Servlet {
     } catch (UploadTimeoutException e) {
       listener.setException(e);
       throw e;
+    } catch (UploadBusyException e) {
+      listener.setException(e);
+      throw e;
     } catch (Throwable e) {
       logger.error("UPLOAD-SERVLET (" + request.getSession().getId() + ") Unexpected Exception -> " + e.getMessage() + "\n" + stackTraceToString(e));
       e.printStackTrace();
       RuntimeException ex = new UploadException(e);
       listener.setException(ex);
       throw ex;
+    } finally {
+      if (metrics != null) {
+        metrics.uploadFinished(listener.getException(), System.currentTimeMillis() - start);
+      }
+      if (admitted) {
+        admissionController.release(session.getId(), getContentLength(request));
+      }
     }
   }
 
+  /**
+   * Checks whether the session is already receiving this upload, or as many
+   * uploads as the maxConcurrentUploads limit. Listeners of uploads which have
+   * finished, have been canceled or are frozen are not taken into account.
+   *
+   * @return the error message when the session is busy, otherwise null
+   */
+  protected String checkBusy(HttpServletRequest request) {
+    String sessionId = request.getSession().getId();
+    boolean busy = false;
+    AbstractUploadListener current = getCurrentListener(request);
+    if (current != null) {
+      if (current.isFrozen() || current.isCanceled() || current.getPercent() >= 100) {
+        current.remove();
+      } else {
+        busy = true;
+      }
+    }
+    int active = 0;
+    for (AbstractUploadListener listener : ProgressRegistry.listeners(sessionId)) {
+      if (listener != current && !(listener.isFrozen() || listener.isCanceled() || listener.getPercent() >= 100)) {
+        active++;
+      }
+    }
+    if (busy || active >= maxConcurrentUploads) {
+      String error = getMessage(request, "busy");
+      logger.error("UPLOAD-SERVLET (" + sessionId + ") " + error + " (" + active + " other uploads in progress)");
+      return error;
+    }
+    return null;
+  }
+
+  /**
+   * Receives the parts of the request using the commons-fileupload streaming api.
+   *
+   * Form fields are read in memory, files are passed to the sink while they are
+   * received, and described afterwards by StreamedFileItems, so the
+   * progress listener and the response summary work as in the normal mode.
+   */
+  protected List<FileItem> parseItemStreams(HttpServletRequest request, ServletFileUpload uploader, UploadSink sink) throws FileUploadException, IOException {
+    List<FileItem> items = new ArrayList<FileItem>();
+    Map<String, Integer> counters = new HashMap<String, Integer>();
+    try {
+      FileItemIterator iterator = uploader.getItemIterator(request);
+      while (iterator.hasNext()) {
+        FileItemStream stream = iterator.next();
+        String fieldName = indexedFieldName(counters, stream.getFieldName());
+        if (stream.isFormField()) {
+          byte[] value = IOUtils.toByteArray(stream.openStream());
+          items.add(new StreamedFileItem(fieldName, stream.getContentType(), stream.getName(), value));
+        } else {
+          CountingItemStream counted = new CountingItemStream(stream);
+          String key = sink.receive(request, counted);
+          items.add(new StreamedFileItem(fieldName, stream.getContentType(), stream.getName(), counted.getByteCount(), key));
+        }
+      }
+    } catch (FileUploadBase.FileUploadIOException e) {
+      // Limits exceeded while reading a stream come wrapped in an IOException
+      throw (FileUploadException) e.getCause();
+    }
+    return items;
+  }
+
   /**
    * Remove the listener active in this session.
    *
@@ -974,23 +1912,107 @@ public class UploadServlet extends HttpServlet implements Servlet {
    * multiple instances of uploaders in an application with the same session but
    * who do not wish to share the uploaded files.
    * See getSessionFilesKey() for an example.
+   *
+   * The files of named uploads are kept under different keys, because the session
+   * can be receiving several uploads at the same time.
    */
   protected String getSessionLastFilesKey(HttpServletRequest request) {
-    return SESSION_LAST_FILES;
+    String name = request.getParameter(PARAM_UPLOAD_ID);
+    return name != null ? SESSION_LAST_FILES + "_" + name : SESSION_LAST_FILES;
+  }
+
+  /**
+   * Multiple file inputs send all files with the same name, so we
+   * give each part an unique name adding a counter to the field name.
+   */
+  static String indexedFieldName(Map<String, Integer> counters, String fieldName) {
+    Integer cont = counters.get(fieldName) != null ? (counters.get(fieldName) + 1): 0;
+    counters.put(fieldName, cont);
+    return fieldName.replace(MULTI_SUFFIX, "") + "-" + cont;
   }
 
   /**
    * DiskFileItemFactory for Multiple file selection.
+   *
+   * When it has a striped repository, each file is stored in the directory
+   * selected by it, or in the default repository when all of them are excluded.
+   * Form fields, which are small and rarely reach the disk, use the default
+   * repository, so they do not cost a directory selection.
    */
   public static class DefaultFileItemFactory extends DiskFileItemFactory {
     private HashMap<String, Integer> map = new HashMap<String, Integer>();
+    private final StripedRepository repository;
+    private final long requestSize;
+
+    public DefaultFileItemFactory() {
+      this(null, 0);
+    }
+
+    public DefaultFileItemFactory(StripedRepository repository, long requestSize) {
+      this.repository = repository;
+      this.requestSize = requestSize;
+    }
 
     @Override
     public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName) {
-      Integer cont = map.get(fieldName) != null ? (map.get(fieldName) + 1): 0;
-      map.put(fieldName, cont);
-      fieldName = fieldName.replace(MULTI_SUFFIX, "") + "-" + cont;
-      return super.createItem(fieldName, contentType, isFormField, fileName);
+      StripedRepository.Directory dir = repository != null && !isFormField ? repository.select(requestSize) : null;
+      if (dir == null) {
+        return super.createItem(indexedFieldName(map, fieldName), contentType, isFormField, fileName);
+      }
+      StripedDiskFileItem item = new StripedDiskFileItem(indexedFieldName(map, fieldName), contentType, isFormField, fileName,
+          getSizeThreshold(), dir);
+      FileCleaningTracker tracker = getFileCleaningTracker();
+      if (tracker != null) {
+        tracker.track(item.getTempFile(), item);
+      }
+      return item;
+    }
+  }
+
+  /**
+   * FileItemStream which counts the bytes consumed by the sink.
+   */
+  private static class CountingItemStream implements FileItemStream {
+    private CountingInputStream counter;
+    private FileItemStream stream;
+
+    CountingItemStream(FileItemStream stream) {
+      this.stream = stream;
+    }
+
+    long getByteCount() {
+      return counter == null ? 0 : counter.getByteCount();
+    }
+
+    public InputStream openStream() throws IOException {
+      if (counter == null) {
+        counter = new CountingInputStream(stream.openStream());
+      }
+      return counter;
+    }
+
+    public String getContentType() {
+      return stream.getContentType();
+    }
+
+    public String getName() {
+      return stream.getName();
+    }
+
+    public String getFieldName() {
+      return stream.getFieldName();
+    }
+
+    public boolean isFormField() {
+      return stream.isFormField();
+    }
+
+    public FileItemHeaders getHeaders() {
+      return stream.getHeaders();
+    }
+
+    public void setHeaders(FileItemHeaders headers) {
+      stream.setHeaders(headers);
     }
   }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemStream;
+
+/**
+ * <p>
+ * Destination for files received in streaming mode.
+ * </p>
+ *
+ * When the servlet returns a sink in {@link UploadServlet#getUploadSink(HttpServletRequest)},
+ * the request is parsed with the commons-fileupload streaming API and each file part
+ * is handed to the sink while it is being received, so it is never buffered in a
+ * temporary FileItem.
+ *
+ * Form fields are not passed to the sink, they are read by the servlet and are
+ * available as usual in the list of received items.
+ */
+public interface UploadSink {
+
+  /**
+   * Called once for each file part of the request.
+   *
+   * The implementation should read the stream returned by <code>item.openStream()</code>
+   * and copy it to its final destination. Progress and size limits are tracked by the
+   * servlet while the stream is consumed.
+   *
+   * @param request the current request
+   * @param item the part being received
+   * @return an optional key identifying the stored data, it is sent to the client
+   *         in the key tag of the file, or null
+   * @throws IOException in the case of error, the whole upload is aborted
+   */
+  String receive(HttpServletRequest request, FileItemStream item) throws IOException;
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A single daemon thread which periodically scans the {@link ProgressRegistry}.
+ * </p>
+ *
+ * It detects uploads which are frozen, setting an exception in their listener so
+ * they are canceled, and discards listeners which have not been used for a long time,
+ * like the ones of clients which never asked for the final status. It also expires
+ * the abandoned uploads of the {@link ResumableUploadStore}s and the unused files
+ * of the {@link ContentStore}s being watched.
+ *
+ * This doesn't work in Google application engine, where threads can not be created.
+ */
+public final class UploadWatchDog {
+
+  private static final long EXPIRATION_MILLIS = 10 * 60 * 1000;
+
+  protected static UploadLogger logger = UploadLogger.getLogger(UploadWatchDog.class);
+
+  private static final List<ContentStore> contentStores = new CopyOnWriteArrayList<ContentStore>();
+
+  private static ScheduledExecutorService scheduler = null;
+
+  private static final List<ResumableUploadStore> stores = new CopyOnWriteArrayList<ResumableUploadStore>();
+
+  private static final int WATCHER_INTERVAL = 5000;
+
+  /**
+   * Start the watchdog if it is not running yet.
+   */
+  public static synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    try {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "gwtupload-watchdog");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            scan(System.currentTimeMillis());
+          } catch (Throwable e) {
+            logger.error("UPLOAD-WATCHDOG error scanning uploads: " + e.getMessage(), e);
+          }
+        }
+      }, WATCHER_INTERVAL, WATCHER_INTERVAL, TimeUnit.MILLISECONDS);
+    } catch (Throwable e) {
+      scheduler = null;
+      logger.info("UPLOAD-WATCHDOG unable to create watchdog: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Expire periodically the abandoned uploads of a store, starting the watchdog if needed.
+   */
+  public static void watch(ResumableUploadStore store) {
+    stores.add(store);
+    start();
+  }
+
+  /**
+   * Stop expiring the uploads of a store.
+   */
+  public static void unwatch(ResumableUploadStore store) {
+    stores.remove(store);
+  }
+
+  /**
+   * Expire periodically the unused files of a content store, starting the watchdog if needed.
+   */
+  public static void watch(ContentStore store) {
+    contentStores.add(store);
+    start();
+  }
+
+  /**
+   * Stop expiring the files of a content store.
+   */
+  public static void unwatch(ContentStore store) {
+    contentStores.remove(store);
+  }
+
+  /**
+   * Stop the watchdog, it is started again when a new upload needs it.
+   */
+  public static synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  static void scan(long now) {
+    for (AbstractUploadListener listener : ProgressRegistry.listeners()) {
+      if (listener.isQueued()) {
+        continue;
+      }
+      if (now - listener.lastData > EXPIRATION_MILLIS) {
+        logger.debug("UPLOAD-WATCHDOG " + listener.getUploadId() + " expired: " + listener);
+        ProgressRegistry.remove(listener);
+      } else if (listener instanceof UploadListener) {
+        ((UploadListener) listener).checkFrozen(now);
+      }
+    }
+    for (ResumableUploadStore store : stores) {
+      store.expire(now);
+    }
+    for (ContentStore store : contentStores) {
+      store.expire(now);
+    }
+  }
+
+  private UploadWatchDog() {
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Sends the content of uploaded items to the browser.
+ * </p>
+ *
+ * Responses have Content-Length, an ETag and Accept-Ranges headers. Requests with
+ * an If-None-Match header matching the ETag get a 304 response, and requests with
+ * a single range get a 206 response with just that part, so players and viewers
+ * can seek in videos and documents without downloading the whole file again.
+ *
+ * The content is copied to the response through a buffer, because the servlet
+ * output is a stream. Files in disk are only sent without copying them through
+ * the heap when a web server in front of the container sends them, configured
+ * with the sendfileHeader parameter of the servlet, see {@link #offload}.
+ */
+public class UploadedFileServer {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  /**
+   * Return the file where an item is saved, or null when it is in memory or it
+   * is not a known type of item.
+   */
+  public static File getStoreLocation(FileItem item) {
+    if (item.isInMemory()) {
+      return null;
+    }
+    if (item instanceof DiskFileItem) {
+      return ((DiskFileItem) item).getStoreLocation();
+    }
+    if (item instanceof StoredFileItem) {
+      return ((StoredFileItem) item).getStoreLocation();
+    }
+    if (item instanceof DigestFileItem) {
+      return ((DigestFileItem) item).getStoreLocation();
+    }
+    if (item instanceof OffHeapFileItem) {
+      return ((OffHeapFileItem) item).getStoreLocation();
+    }
+    return null;
+  }
+
+  /**
+   * Return the entity tag of an item: its digest when it is known, otherwise it
+   * is computed from the date and size of its file, or from its content when it
+   * is in memory.
+   */
+  public static String getETag(FileItem item) {
+    String digest = item instanceof HasDigest ? ((HasDigest) item).getDigest() : null;
+    if (digest != null) {
+      return "\"" + digest + "\"";
+    }
+    File file = getStoreLocation(item);
+    if (file != null) {
+      return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+    }
+    return "\"" + Integer.toHexString(Arrays.hashCode(item.get())) + "-" + Long.toHexString(item.getSize()) + "\"";
+  }
+
+  /**
+   * Parse a Range header with a single range like 'bytes=0-499', 'bytes=500-' or 'bytes=-500'.
+   *
+   * @return the first and last bytes of the range, {-1, -1} when it is not satisfiable
+   *         or null when there is no range or it can not be parsed, so the whole content is sent
+   */
+  static long[] parseRange(String header, long size) {
+    Matcher m = header == null ? null : RANGE.matcher(header.trim());
+    if (m == null || !m.matches() || m.group(1).isEmpty() && m.group(2).isEmpty()) {
+      return null;
+    }
+    long first;
+    long last;
+    try {
+      if (m.group(1).isEmpty()) {
+        first = Math.max(0, size - Long.parseLong(m.group(2)));
+        last = size - 1;
+      } else {
+        first = Long.parseLong(m.group(1));
+        last = m.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(m.group(2));
+        if (last < first) {
+          return null;
+        }
+        last = Math.min(size - 1, last);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return first > last || first >= size ? new long[] {-1, -1} : new long[] {first, last};
+  }
+
+  /**
+   * Ask the web server in front of the servlet container to send the file of an
+   * item, with a header like X-Sendfile (Apache, lighttpd) or X-Accel-Redirect (nginx).
+   *
+   * The response has no body, and the web server takes care of ranges and
+   * conditional requests.
+   *
+   * @param header the name of the header
+   * @param root the directory exposed by the web server, or null to send absolute paths
+   * @param prefix the path which the web server maps to the root directory
+   * @return false when the item is not saved in disk or its file is not in the root directory
+   */
+  public static boolean offload(HttpServletResponse response, FileItem item, String header, File root, String prefix) {
+    File file = getStoreLocation(item);
+    if (file == null) {
+      return false;
+    }
+    String path = file.getAbsolutePath();
+    if (root != null) {
+      String dir = root.getAbsolutePath();
+      if (!path.startsWith(dir + File.separator)) {
+        return false;
+      }
+      path = (prefix != null ? prefix.replaceFirst("/$", "") : "") + path.substring(dir.length()).replace(File.separatorChar, '/');
+      try {
+        path = new URI(null, null, path, null).toASCIIString();
+      } catch (URISyntaxException e) {
+        return false;
+      }
+    }
+    response.setContentType(item.getContentType() != null ? item.getContentType() : "application/octet-stream");
+    response.setHeader(header, path);
+    return true;
+  }
+
+  /**
+   * Send the content of an item, or the part asked in the request.
+   */
+  public static void serve(HttpServletRequest request, HttpServletResponse response, FileItem item) throws IOException {
+    File file = getStoreLocation(item);
+    long size = file != null ? file.length() : item.getSize();
+    String etag = getETag(item);
+
+    response.setHeader("ETag", etag);
+    response.setHeader("Accept-Ranges", "bytes");
+    if (file != null) {
+      response.setDateHeader("Last-Modified", file.lastModified());
+    }
+
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    long[] range = parseRange(request.getHeader("Range"), size);
+    String ifRange = request.getHeader("If-Range");
+    if (range != null && ifRange != null && !ifRange.trim().equals(etag)) {
+      // The content has changed since the client got the first part
+      range = null;
+    }
+    if (range != null && range[0] < 0) {
+      response.setHeader("Content-Range", "bytes */" + size);
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+
+    long first = 0;
+    long length = size;
+    if (range != null) {
+      first = range[0];
+      length = range[1] - range[0] + 1;
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+    }
+    response.setContentType(item.getContentType() != null ? item.getContentType() : "application/octet-stream");
+    // setContentLengthLong is not available in servlet 2.5 containers like App Engine
+    response.setHeader("Content-Length", String.valueOf(length));
+    if ("HEAD".equals(request.getMethod())) {
+      return;
+    }
+
+    OutputStream out = response.getOutputStream();
+    if (file == null && item.isInMemory() && item.get() != null) {
+      out.write(item.get(), (int) first, (int) length);
+      return;
+    }
+    InputStream in = file != null ? new FileInputStream(file) : item.getInputStream();
+    try {
+      long sent = IOUtils.copyLarge(in, out, first, length, new byte[BUFFER_SIZE]);
+      if (sent < length) {
+        throw new IOException("Unexpected end of " + (file != null ? file : item.getName()) + " at " + (first + sent));
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+}
@@ -16,6 +16,7 @@
 package gwtupload.server;
 
 import static gwtupload.shared.UConsts.TAG_CTYPE;
+import static gwtupload.shared.UConsts.TAG_DIGEST;
 import static gwtupload.shared.UConsts.TAG_FIELD;
 import static gwtupload.shared.UConsts.TAG_FILE;
 import static gwtupload.shared.UConsts.TAG_FILES;
@@ -25,57 +26,152 @@ import static gwtupload.shared.UConsts.TAG_PARAM;
 import static gwtupload.shared.UConsts.TAG_PARAMS;
 import static gwtupload.shared.UConsts.TAG_RESPONSE;
 import static gwtupload.shared.UConsts.TAG_SIZE;
+import static gwtupload.shared.UConsts.TAG_STATUS;
 import static gwtupload.shared.UConsts.TAG_VALUE;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
-public class XMLResponse {
-  private Document responseDocument;
-  private Node responseNode;
-  private Node filesNode;
-  private Node paramsNode;
-
-  public XMLResponse() {
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance("com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl", null);
-    DocumentBuilder builder;
-    try {
-      builder = dbf.newDocumentBuilder();
-    } catch (ParserConfigurationException e) {
-      e.printStackTrace();
-      return;
+/**
+ * Builds the responses sent to the client.
+ *
+ * Tags, files and parameters are kept as plain strings while they are added,
+ * and the document is written straight to a Writer either as xml, the layout
+ * the client has always parsed, or as a compact json object when the client
+ * asks for it. It does not use DOM nor a Transformer, which were expensive for
+ * small and frequent responses like the status ones.
+ *
+ * The json object has a property per tag, the array <code>status</code> in batched
+ * status responses, and the arrays <code>files</code> and <code>parameters</code>
+ * when there are uploaded items. Each element of a batched status response has
+ * the same layout, so a finished upload includes its files.
+ */
+public class XMLResponse implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Escape xml special characters, returning the same string when it
+   * doesn't contain any of them.
+   */
+  static String escape(String value) {
+    int len = value.length();
+    int i = 0;
+    while (i < len) {
+      char c = value.charAt(i);
+      if (c == '&' || c == '<' || c == '>') {
+        break;
+      }
+      i++;
+    }
+    if (i == len) {
+      return value;
     }
-    responseDocument = builder.newDocument();
-    responseNode = responseDocument.createElement(TAG_RESPONSE);
-    responseDocument.appendChild(responseNode);
+    StringBuilder sb = new StringBuilder(len + 16);
+    sb.append(value, 0, i);
+    for (; i < len; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
   }
 
-  private Node addResponseNode(String tagName, String value) {
-    Element el = responseDocument.createElement(tagName);
-    addTextToNode(el, value);
-    return responseNode.appendChild(el);
+  /**
+   * Escape a json string, returning the same string when it doesn't need it.
+   *
+   * Html special characters are escaped too, because POST responses are read
+   * by the browser from the html of a hidden iframe.
+   */
+  static String escapeJson(String value) {
+    int len = value.length();
+    int i = 0;
+    while (i < len && !needsJsonEscape(value.charAt(i))) {
+      i++;
+    }
+    if (i == len) {
+      return value;
+    }
+    StringBuilder sb = new StringBuilder(len + 16);
+    sb.append(value, 0, i);
+    for (; i < len; i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else if (needsJsonEscape(c)) {
+        sb.append("\\u00").append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean needsJsonEscape(char c) {
+    return c < 0x20 || c == '"' || c == '\\' || c == '<' || c == '>' || c == '&';
   }
 
+  private static void writeTag(Writer out, String tagName, String value) throws IOException {
+    out.write('<');
+    out.write(tagName);
+    out.write('>');
+    if (value != null) {
+      out.write(escape(value));
+    }
+    out.write("</");
+    out.write(tagName);
+    out.write(">\n");
+  }
+
+  private static void writeJsonProperty(Writer out, String name, String value, boolean first) throws IOException {
+    if (!first) {
+      out.write(',');
+    }
+    out.write('"');
+    out.write(escapeJson(name));
+    out.write("\":\"");
+    if (value != null) {
+      out.write(escapeJson(value));
+    }
+    out.write('"');
+  }
+
+  // Name and value pairs of the tags added before and after the files and parameters sections
+  private final List<String> head = new ArrayList<String>(8);
+  private List<String> tail = null;
+  // field, name, size, content-type, key and digest of each file
+  private List<String[]> files = null;
+  // field and value of each parameter
+  private List<String[]> params = null;
+  // The status of each upload in a batched status response
+  private List<XMLResponse> status = null;
+
   public void addResponseTag(String tagName, String value) {
-    addResponseNode(tagName, value);
+    List<String> tags = tail != null ? tail : head;
+    tags.add(tagName);
+    tags.add(value);
   }
 
   public void addResponseTags(Map<String, String> uploadStatus) {
@@ -87,72 +183,215 @@ public class XMLResponse {
     }
   }
 
-  public void prepareFilesParams() {
-    filesNode = addResponseNode(TAG_FILES, null);
-    paramsNode = addResponseNode(TAG_PARAMS, null);
+  /**
+   * Add the status of an upload to a batched status response.
+   */
+  public void addStatus(String fieldName, Map<String, String> uploadStatus) {
+    addStatus(fieldName, uploadStatus, null);
   }
 
-  public void addParam(String key, String value) {
-    Node paramNode = responseDocument.createElement(TAG_PARAM);
+  /**
+   * Add the status of an upload to a batched status response, with the files,
+   * parameters and tags of the response to its POST request when it has finished.
+   */
+  public void addStatus(String fieldName, Map<String, String> uploadStatus, XMLResponse postResponse) {
+    if (status == null) {
+      status = new ArrayList<XMLResponse>();
+    }
+    XMLResponse element = new XMLResponse();
+    element.head.add(TAG_FIELD);
+    element.head.add(fieldName);
+    for (Entry<String, String> e : uploadStatus.entrySet()) {
+      if (e.getValue() != null) {
+        element.head.add(e.getKey());
+        element.head.add(e.getValue());
+      }
+    }
+    if (postResponse != null) {
+      if (postResponse.files != null) {
+        element.prepareFilesParams();
+        element.files.addAll(postResponse.files);
+        element.params.addAll(postResponse.params);
+      }
+      element.copyTags(postResponse.head);
+      if (postResponse.tail != null) {
+        element.copyTags(postResponse.tail);
+      }
+    }
+    status.add(element);
+  }
 
-    Node fieldNode = responseDocument.createElement(TAG_FIELD);
-    addTextToNode(fieldNode, key);
-    paramNode.appendChild(fieldNode);
-    Node valueNode = responseDocument.createElement(TAG_VALUE);
-    addTextToNode(valueNode, value);
-    paramNode.appendChild(valueNode);
+  // Add the tags which are not present yet
+  private void copyTags(List<String> tags) {
+    for (int i = 0; i < tags.size(); i += 2) {
+      if (!hasTag(head, tags.get(i)) && (tail == null || !hasTag(tail, tags.get(i)))) {
+        addResponseTag(tags.get(i), tags.get(i + 1));
+      }
+    }
+  }
 
-    paramsNode.appendChild(paramNode);
+  private static boolean hasTag(List<String> tags, String tagName) {
+    for (int i = 0; i < tags.size(); i += 2) {
+      if (tags.get(i).equals(tagName)) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  private void addTextToNode(Node node, String value) {
-    if (value == null) {
-      return;
+  public void prepareFilesParams() {
+    if (files == null) {
+      files = new ArrayList<String[]>();
+      params = new ArrayList<String[]>();
+      tail = new ArrayList<String>(4);
     }
+  }
+
+  public void addParam(String key, String value) {
+    params.add(new String[] {key, value});
+  }
 
-    node.appendChild(responseDocument.createTextNode(value));
+  public void addFile(String fieldName, String fileName, long size, String contentType, String key) {
+    addFile(fieldName, fileName, size, contentType, key, null);
+  }
+
+  public void addFile(String fieldName, String fileName, long size, String contentType, String key, String digest) {
+    files.add(new String[] {fieldName, fileName, String.valueOf(size), contentType, key, digest});
   }
 
   public String getXML() {
-    Transformer tf;
+    StringWriter out = new StringWriter(256);
     try {
-       tf = TransformerFactory.newInstance().newTransformer();
-    } catch (TransformerConfigurationException | TransformerFactoryConfigurationError e) {
+      write(out);
+    } catch (IOException e) {
       e.printStackTrace();
-      return "";
     }
-    tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-    tf.setOutputProperty(OutputKeys.INDENT, "yes");
-    Writer out = new StringWriter();
+    return out.toString();
+  }
+
+  public String getJSON() {
+    StringWriter out = new StringWriter(128);
     try {
-      tf.transform(new DOMSource(responseDocument), new StreamResult(out));
-    } catch (TransformerException e) {
+      writeJSON(out);
+    } catch (IOException e) {
       e.printStackTrace();
     }
     return out.toString();
   }
 
-  public void addFile(String fieldName, String fileName, long size, String contentType, String key) {
-    Node fileNode = responseDocument.createElement(TAG_FILE);
-
-    Node fieldNode = responseDocument.createElement(TAG_FIELD);
-    addTextToNode(fieldNode, fieldName);
-    fileNode.appendChild(fieldNode);
-    Node fileNameNode = responseDocument.createElement(TAG_NAME);
-    addTextToNode(fileNameNode, fileName);
-    fileNode.appendChild(fileNameNode);
-    Node fileSizeNode = responseDocument.createElement(TAG_SIZE);
-    addTextToNode(fileSizeNode, new Long(size).toString());
-    fileNode.appendChild(fileSizeNode);
-    Node contentTypeNode = responseDocument.createElement(TAG_CTYPE);
-    addTextToNode(contentTypeNode, contentType);
-    fileNode.appendChild(contentTypeNode);
-    if (key != null) {
-      Node keyNode = responseDocument.createElement(TAG_KEY);
-      addTextToNode(keyNode, key);
-      fileNode.appendChild(keyNode);
-    }
-
-    filesNode.appendChild(fileNode);
+  /**
+   * Write the xml document.
+   */
+  public void write(Writer out) throws IOException {
+    out.write(XML_HEADER);
+    out.write("<" + TAG_RESPONSE + ">\n");
+    writeContent(out);
+    out.write("</" + TAG_RESPONSE + ">\n");
+  }
+
+  /**
+   * Write the xml elements inside the root element.
+   */
+  private void writeContent(Writer out) throws IOException {
+    writeTags(out, head);
+    if (status != null) {
+      for (XMLResponse element : status) {
+        out.write("<" + TAG_STATUS + ">\n");
+        element.writeContent(out);
+        out.write("</" + TAG_STATUS + ">\n");
+      }
+    }
+    if (files != null) {
+      out.write("<" + TAG_FILES + ">\n");
+      for (String[] f : files) {
+        out.write("<" + TAG_FILE + ">\n");
+        writeTag(out, TAG_FIELD, f[0]);
+        writeTag(out, TAG_NAME, f[1]);
+        writeTag(out, TAG_SIZE, f[2]);
+        writeTag(out, TAG_CTYPE, f[3]);
+        if (f[4] != null) {
+          writeTag(out, TAG_KEY, f[4]);
+        }
+        if (f[5] != null) {
+          writeTag(out, TAG_DIGEST, f[5]);
+        }
+        out.write("</" + TAG_FILE + ">\n");
+      }
+      out.write("</" + TAG_FILES + ">\n");
+      out.write("<" + TAG_PARAMS + ">\n");
+      for (String[] p : params) {
+        out.write("<" + TAG_PARAM + ">");
+        writeTag(out, TAG_FIELD, p[0]);
+        writeTag(out, TAG_VALUE, p[1]);
+        out.write("</" + TAG_PARAM + ">\n");
+      }
+      out.write("</" + TAG_PARAMS + ">\n");
+      writeTags(out, tail);
+    }
+  }
+
+  /**
+   * Write the json object.
+   */
+  public void writeJSON(Writer out) throws IOException {
+    out.write('{');
+    boolean first = writeJsonProperties(out, head, true);
+    if (status != null) {
+      out.write(first ? "\"" : ",\"");
+      out.write(TAG_STATUS + "\":[");
+      for (int i = 0; i < status.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        status.get(i).writeJSON(out);
+      }
+      out.write(']');
+      first = false;
+    }
+    if (files != null) {
+      out.write(first ? "\"" : ",\"");
+      out.write(TAG_FILES + "\":[");
+      for (int i = 0; i < files.size(); i++) {
+        String[] f = files.get(i);
+        out.write(i == 0 ? "{" : ",{");
+        writeJsonProperty(out, TAG_FIELD, f[0], true);
+        writeJsonProperty(out, TAG_NAME, f[1], false);
+        out.write(",\"" + TAG_SIZE + "\":");
+        out.write(f[2]);
+        writeJsonProperty(out, TAG_CTYPE, f[3], false);
+        if (f[4] != null) {
+          writeJsonProperty(out, TAG_KEY, f[4], false);
+        }
+        if (f[5] != null) {
+          writeJsonProperty(out, TAG_DIGEST, f[5], false);
+        }
+        out.write('}');
+      }
+      out.write("],\"" + TAG_PARAMS + "\":[");
+      for (int i = 0; i < params.size(); i++) {
+        String[] p = params.get(i);
+        out.write(i == 0 ? "{" : ",{");
+        writeJsonProperty(out, TAG_FIELD, p[0], true);
+        writeJsonProperty(out, TAG_VALUE, p[1], false);
+        out.write('}');
+      }
+      out.write(']');
+      writeJsonProperties(out, tail, false);
+    }
+    out.write('}');
+  }
+
+  private static void writeTags(Writer out, List<String> tags) throws IOException {
+    for (int i = 0; i < tags.size(); i += 2) {
+      writeTag(out, tags.get(i), tags.get(i + 1));
+    }
+  }
+
+  private static boolean writeJsonProperties(Writer out, List<String> tags, boolean first) throws IOException {
+    for (int i = 0; i < tags.size(); i += 2) {
+      writeJsonProperty(out, tags.get(i), tags.get(i + 1), first);
+      first = false;
+    }
+    return first;
   }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server.exceptions;
+
+import gwtupload.server.UploadServlet;
+
+/**
+ * Exception thrown when the server is receiving too many uploads and the
+ * request can not wait its turn.
+ */
+public class UploadBusyException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  int retryAfter;
+
+  /**
+   * @param retryAfter seconds the client should wait before sending the upload again
+   */
+  public UploadBusyException(int retryAfter) {
+    super();
+    this.retryAfter = retryAfter;
+  }
+
+  @Override
+  public String getLocalizedMessage() {
+    return getMessage();
+  }
+
+  @Override
+  public String getMessage() {
+    return UploadServlet.getMessage("server_busy", retryAfter);
+  }
+
+  public int getRetryAfter() {
+    return retryAfter;
+  }
+}
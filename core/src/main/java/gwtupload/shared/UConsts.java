@@ -8,6 +8,7 @@ public class UConsts {
   public static final String ATTR_BLOBSTORE_PARAM_NAME = "name";
   public static final String TAG_BLOBSTORE = "blobstore";
   public static final String TAG_KEY = "key";
+  public static final String TAG_DIGEST = "digest";
   public static final String TAG_CANCELED = "canceled";
   public static final String TAG_CTYPE = "ctype";
   public static final String TAG_CURRENT_BYTES = "currentBytes";
@@ -18,6 +19,7 @@ public class UConsts {
   public static final String TAG_MESSAGE = "message";
   public static final String TAG_NAME = "name";
   public static final String TAG_PERCENT = "percent";
+  public static final String TAG_QUEUED = "queued";
   public static final String TAG_SIZE = "size";
   public static final String TAG_TOTAL_BYTES = "totalBytes";
   public static final String TAG_WAIT = "wait";
@@ -28,8 +30,11 @@ public class UConsts {
   public static final String TAG_PARAM = "parameter";
   public static final String TAG_PARAMS = "parameters";
   public static final String TAG_SESSION_ID = "sessionid";
+  public static final String TAG_EVENTS = "events";
+  public static final String TAG_STATUS = "status";
 
   public static final String PARAM_BLOBSTORE = TAG_BLOBSTORE;
+  public static final String PARAM_EVENTS = TAG_EVENTS;
   public static final String PARAM_BLOBKEY = "blob-key";
   public static final String PARAM_CANCEL = "cancel";
   public static final String PARAM_CLEAN = "clean";
@@ -43,6 +48,17 @@ public class UConsts {
   public static final String PARAM_MESSAGE = TAG_MESSAGE;
   public static final String PARAM_ERROR = TAG_ERROR;
   public static final String PARAM_REDIRECT = "redirect";
+  public static final String PARAM_UPLOAD_ID = "uploadid";
+  public static final String PARAM_RESUME = "resume";
+  public static final String PARAM_CHUNK_SIZE = "chunksize";
+  public static final String PARAM_FORMAT = "format";
+  public static final String PARAM_BATCH = "batch";
+  public static final String PARAM_DIGEST = TAG_DIGEST;
+  public static final String PARAM_METRICS = "metrics";
+  public static final String PARAM_ALGORITHM = "algorithm";
+
+  public static final String FORMAT_XML = "xml";
+  public static final String FORMAT_JSON = "json";
 
   public static final String MULTI_SUFFIX = "[]";
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AdmissionController}.
+ */
+public class AdmissionControllerTest extends TestCase {
+
+  /**
+   * Waits for admission in its own thread and records the order.
+   */
+  private class Waiting extends Thread {
+    volatile boolean admitted;
+    final long maxWait;
+    final String sessionId;
+    final long size;
+    final String uploadId;
+
+    Waiting(String sessionId, String uploadId, long size, long maxWait) {
+      this.sessionId = sessionId;
+      this.uploadId = uploadId;
+      this.size = size;
+      this.maxWait = maxWait;
+    }
+
+    public void run() {
+      try {
+        admitted = controller.admit(sessionId, uploadId, size, maxWait);
+        if (admitted) {
+          synchronized (order) {
+            order.add(uploadId);
+            order.notifyAll();
+          }
+        }
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  private AdmissionController controller;
+  private final List<String> order = new ArrayList<String>();
+
+  public void testAdmitWithinLimits() throws Exception {
+    controller = new AdmissionController(2, 0);
+    assertTrue(controller.admit("s1", "u1", 10, 0));
+    assertTrue(controller.admit("s2", "u2", 10, 0));
+    assertFalse(controller.admit("s3", "u3", 10, 0));
+    assertEquals(2, controller.getActiveUploads());
+    assertEquals(20, controller.getActiveBytes());
+
+    controller.release("s1", 10);
+    assertTrue(controller.tryAdmit("s3", 10));
+    assertEquals(2, controller.getActiveUploads());
+  }
+
+  public void testBytesLimit() throws Exception {
+    controller = new AdmissionController(0, 100);
+    assertTrue(controller.admit("s1", "u1", 60, 0));
+    assertFalse(controller.admit("s2", "u2", 60, 0));
+    assertTrue(controller.admit("s2", "u3", 40, 0));
+    controller.release("s1", 60);
+    controller.release("s2", 40);
+    assertEquals(0, controller.getActiveBytes());
+    // An upload bigger than the limit is admitted when nothing else is received
+    assertTrue(controller.admit("s3", "u4", 500, 0));
+    assertFalse(controller.admit("s3", "u5", 1, 0));
+  }
+
+  public void testDisabled() throws Exception {
+    controller = new AdmissionController(0, 0);
+    assertFalse(controller.isEnabled());
+    for (int i = 0; i < 100; i++) {
+      assertTrue(controller.admit("s1", "u" + i, 1000, 0));
+    }
+  }
+
+  public void testReleaseAdmitsInOrderOfArrival() throws Exception {
+    controller = new AdmissionController(1, 0);
+    assertTrue(controller.admit("s1", "u0", 1, 0));
+    Waiting w1 = startWaiting("s2", "u1", 1);
+    Waiting w2 = startWaiting("s2", "u2", 2);
+    assertEquals(1, controller.getQueuePosition("u1"));
+    assertEquals(2, controller.getQueuePosition("u2"));
+    assertEquals(-1, controller.getQueuePosition("u0"));
+
+    controller.release("s1", 1);
+    waitForAdmissions(1);
+    assertEquals("u1", order.get(0));
+    assertEquals(1, controller.getQueuePosition("u2"));
+
+    controller.release("s2", 1);
+    waitForAdmissions(2);
+    assertEquals("u2", order.get(1));
+    w1.join();
+    w2.join();
+    assertEquals(0, controller.getWaiting());
+  }
+
+  public void testSessionsTakeTurns() throws Exception {
+    controller = new AdmissionController(1, 0);
+    assertTrue(controller.admit("s1", "u0", 1, 0));
+    startWaiting("s1", "u1", 1);
+    startWaiting("s1", "u2", 2);
+    startWaiting("s2", "u3", 3);
+    // s1 already has an upload in progress, so s2 goes first
+    assertEquals(1, controller.getQueuePosition("u3"));
+
+    controller.release("s1", 1);
+    waitForAdmissions(1);
+    assertEquals("u3", order.get(0));
+    controller.release("s2", 1);
+    waitForAdmissions(2);
+    controller.release("s1", 1);
+    waitForAdmissions(3);
+    assertEquals("u1", order.get(1));
+    assertEquals("u2", order.get(2));
+  }
+
+  public void testTimeout() throws Exception {
+    controller = new AdmissionController(1, 0);
+    assertTrue(controller.admit("s1", "u0", 1, 0));
+    long start = System.currentTimeMillis();
+    assertFalse(controller.admit("s2", "u1", 1, 200));
+    assertTrue(System.currentTimeMillis() - start >= 190);
+    // The upload which timed out leaves the queue and does not keep any room
+    assertEquals(0, controller.getWaiting());
+    assertEquals(-1, controller.getQueuePosition("u1"));
+    assertEquals(1, controller.getActiveUploads());
+
+    controller.release("s1", 1);
+    assertEquals(0, controller.getActiveUploads());
+    assertTrue(controller.tryAdmit("s2", 1));
+  }
+
+  public void testTimeoutOfTheHeadAdmitsTheNext() throws Exception {
+    controller = new AdmissionController(0, 100);
+    assertTrue(controller.admit("s1", "u0", 50, 0));
+    // The head does not fit, and the smaller upload behind it waits until the head leaves
+    Waiting big = startWaiting(new Waiting("s2", "u1", 80, 300), 1);
+    Waiting small = startWaiting(new Waiting("s3", "u2", 10, 10000), 2);
+    big.join();
+    assertFalse(big.admitted);
+    waitForAdmissions(1);
+    assertEquals("u2", order.get(0));
+    small.join();
+    assertEquals(60, controller.getActiveBytes());
+  }
+
+  private Waiting startWaiting(String sessionId, String uploadId, int waiting) throws InterruptedException {
+    return startWaiting(new Waiting(sessionId, uploadId, 1, 10000), waiting);
+  }
+
+  private Waiting startWaiting(Waiting w, int waiting) throws InterruptedException {
+    w.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (controller.getWaiting() < waiting && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(waiting, controller.getWaiting());
+    return w;
+  }
+
+  private void waitForAdmissions(int n) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    synchronized (order) {
+      while (order.size() < n && System.currentTimeMillis() < deadline) {
+        order.wait(100);
+      }
+    }
+    assertEquals(n, order.size());
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import gwtupload.server.exceptions.UploadSizeLimitException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Tests for {@link MemoryFileItemFactory} and its {@link BlockPool}.
+ */
+public class MemoryFileItemFactoryTest extends TestCase {
+
+  private static final int BLOCK = 8;
+
+  private BlockPool pool;
+  private MemoryFileItemFactory factory;
+
+  protected void setUp() {
+    pool = new BlockPool(BLOCK, 16);
+    factory = new MemoryFileItemFactory(1000, pool);
+  }
+
+  private FileItem item(byte[] content) throws Exception {
+    FileItem item = factory.createItem("file", "application/octet-stream", false, "a.bin");
+    OutputStream out = item.getOutputStream();
+    out.write(content);
+    out.close();
+    return item;
+  }
+
+  private static byte[] content(int size, int seed) {
+    byte[] ret = new byte[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = (byte) (seed + i);
+    }
+    return ret;
+  }
+
+  public void testBlocksReusedAfterDelete() throws Exception {
+    FileItem item = item(content(20, 0));
+    assertEquals(20, item.getSize());
+    assertEquals(20, factory.getUsedMemory());
+    InputStream in = item.getInputStream();
+    assertTrue(Arrays.equals(content(20, 0), IOUtils.toByteArray(in)));
+    in.close();
+    item.delete();
+    assertEquals(0, factory.getUsedMemory());
+    assertEquals(3, pool.getFreeBlocks());
+
+    FileItem other = item(content(20, 50));
+    assertEquals(0, pool.getFreeBlocks());
+    assertTrue(Arrays.equals(content(20, 50), other.get()));
+  }
+
+  public void testBlocksNotReusedWithOpenStream() throws Exception {
+    FileItem item = item(content(20, 0));
+    InputStream in = item.getInputStream();
+    assertEquals(0, in.read());
+    item.delete();
+    assertEquals(0, pool.getFreeBlocks());
+
+    // Writing other items does not overwrite the data being read
+    item(content(40, 100));
+    byte[] rest = IOUtils.toByteArray(in);
+    in.close();
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content(20, 0), 1, 20), rest));
+    assertEquals(0, pool.getFreeBlocks());
+  }
+
+  public void testArrayReturnedByGetNotReused() throws Exception {
+    // The data fits exactly in one block, so get() returns the block itself
+    FileItem item = item(content(BLOCK, 0));
+    byte[] data = item.get();
+    item.delete();
+    assertEquals(0, pool.getFreeBlocks());
+    item(content(BLOCK, 100));
+    assertTrue(Arrays.equals(content(BLOCK, 0), data));
+  }
+
+  public void testRequestSizeLimit() throws Exception {
+    item(content(600, 0));
+    try {
+      item(content(600, 0));
+      fail("The request size was exceeded");
+    } catch (UploadSizeLimitException e) {
+      // expected
+    }
+    assertEquals(600, factory.getUsedMemory());
+  }
+}
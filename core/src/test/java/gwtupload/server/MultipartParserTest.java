@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+
+/**
+ * Tests for {@link MultipartParser}.
+ */
+public class MultipartParserTest extends TestCase {
+
+  /**
+   * Describes the parts received as a string.
+   */
+  private static class Recorder implements MultipartParser.PartHandler {
+    private final StringBuilder parts = new StringBuilder();
+    private ByteArrayOutputStream data;
+
+    public void startPart(String fieldName, String fileName, String contentType, FileItemHeaders headers) {
+      parts.append(fieldName).append('|').append(fileName).append('|').append(contentType).append('|');
+      data = new ByteArrayOutputStream();
+    }
+
+    public void partData(byte[] buffer, int offset, int length) {
+      data.write(buffer, offset, length);
+    }
+
+    public void endPart() throws IOException {
+      parts.append(data.toString("ISO-8859-1")).append(';');
+    }
+
+    public String toString() {
+      return parts.toString();
+    }
+  }
+
+  private static final String BOUNDARY = "----gwtupload42";
+
+  // The file contains beginnings of the delimiter which must not end it
+  private static final String BODY = "preamble\r\n"
+      + "--" + BOUNDARY + "\r\n"
+      + "Content-Disposition: form-data; name=\"field\"\r\n"
+      + "\r\n"
+      + "value\r\n"
+      + "--" + BOUNDARY + "  \r\n"
+      + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+      + "Content-Type: text/plain\r\n"
+      + "\r\n"
+      + "line\r\n--" + BOUNDARY.substring(0, 8) + "\r\n\r\n-" + BOUNDARY + "\r\n"
+      + "--" + BOUNDARY + "--\r\n"
+      + "epilogue";
+
+  private static final String EXPECTED = "field|null|null|value;"
+      + "file|a.txt|text/plain|line\r\n--" + BOUNDARY.substring(0, 8) + "\r\n\r\n-" + BOUNDARY + ";";
+
+  public void testByteByByte() throws Exception {
+    byte[] body = BODY.getBytes("ISO-8859-1");
+    Recorder recorder = new Recorder();
+    MultipartParser parser = new MultipartParser(BOUNDARY, null, recorder);
+    for (int i = 0; i < body.length; i++) {
+      parser.feed(body, i, 1);
+    }
+    assertTrue(parser.isComplete());
+    assertEquals(EXPECTED, recorder.toString());
+  }
+
+  public void testGetBoundary() {
+    assertEquals(BOUNDARY, MultipartParser.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+    assertEquals("abc", MultipartParser.getBoundary("multipart/form-data; charset=UTF-8; boundary=\"abc\""));
+    assertNull(MultipartParser.getBoundary("multipart/form-data"));
+    assertNull(MultipartParser.getBoundary(null));
+  }
+
+  public void testIncompleteBody() throws Exception {
+    byte[] body = BODY.getBytes("ISO-8859-1");
+    Recorder recorder = new Recorder();
+    MultipartParser parser = new MultipartParser(BOUNDARY, null, recorder);
+    parser.feed(body, 0, BODY.indexOf("--" + BOUNDARY + "--") + 4);
+    assertFalse(parser.isComplete());
+  }
+
+  public void testMalformedHeaders() throws Exception {
+    byte[] body = ("--" + BOUNDARY + "\r\nContent-Disposition: attachment\r\n\r\nx\r\n--" + BOUNDARY + "--").getBytes("ISO-8859-1");
+    MultipartParser parser = new MultipartParser(BOUNDARY, null, new Recorder());
+    try {
+      parser.feed(body, 0, body.length);
+      fail("A part without form-data disposition must be rejected");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testSingleBlock() throws Exception {
+    byte[] body = BODY.getBytes("ISO-8859-1");
+    Recorder recorder = new Recorder();
+    MultipartParser parser = new MultipartParser(BOUNDARY, null, recorder);
+    parser.feed(body, 0, body.length);
+    assertTrue(parser.isComplete());
+    assertEquals(EXPECTED, recorder.toString());
+  }
+
+  /**
+   * The body split in two at every position, so each boundary and header block
+   * is split across the two calls to feed.
+   */
+  public void testSplitAtEveryPosition() throws Exception {
+    byte[] body = BODY.getBytes("ISO-8859-1");
+    for (int split = 0; split <= body.length; split++) {
+      Recorder recorder = new Recorder();
+      MultipartParser parser = new MultipartParser(BOUNDARY, null, recorder);
+      parser.feed(body, 0, split);
+      parser.feed(body, split, body.length - split);
+      assertTrue("split at " + split, parser.isComplete());
+      assertEquals("split at " + split, EXPECTED, recorder.toString());
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Tests for {@link OffHeapFileItem} and the budget of {@link OffHeapFileItemFactory}.
+ */
+public class OffHeapFileItemTest extends TestCase {
+
+  private static final int BLOCK = 1024;
+
+  private OffHeapFileItemFactory.Budget budget;
+  private OffHeapFileItemFactory factory;
+
+  protected void setUp() {
+    budget = new OffHeapFileItemFactory.Budget(8 * BLOCK, BLOCK);
+    factory = new OffHeapFileItemFactory(budget, 4 * BLOCK, null);
+  }
+
+  public void testBlocksReusedAfterDelete() throws Exception {
+    FileItem item = write("a", fill('a', 2 * BLOCK + 10));
+    assertTrue(item.isInMemory());
+    assertEquals(3 * BLOCK, budget.getUsed());
+    item.delete();
+    assertEquals(0, budget.getUsed());
+    assertEquals(3 * BLOCK, budget.getAllocated());
+
+    // Other item takes the released blocks instead of allocating new ones
+    FileItem other = write("b", fill('b', 3 * BLOCK));
+    assertEquals(3 * BLOCK, budget.getAllocated());
+    assertTrue(Arrays.equals(fill('b', 3 * BLOCK), other.get()));
+    other.delete();
+  }
+
+  public void testBudgetExhausted() throws Exception {
+    FileItem first = write("a", fill('a', 4 * BLOCK));
+    FileItem second = write("b", fill('b', 4 * BLOCK));
+    // The budget is full, the third item goes to disk
+    FileItem third = write("c", fill('c', 2 * BLOCK));
+    assertFalse(third.isInMemory());
+    assertEquals(8 * BLOCK, budget.getUsed());
+    assertEquals(1, budget.getBudgetSpills());
+    assertTrue(Arrays.equals(fill('c', 2 * BLOCK), third.get()));
+    File file = ((OffHeapFileItem) third).getStoreLocation();
+    third.delete();
+    assertFalse(file.exists());
+    first.delete();
+    second.delete();
+    assertEquals(0, budget.getUsed());
+  }
+
+  public void testOverThreshold() throws Exception {
+    FileItem item = write("a", fill('a', 5 * BLOCK));
+    assertFalse(item.isInMemory());
+    assertEquals(0, budget.getUsed());
+    assertEquals(1, budget.getThresholdSpills());
+    assertTrue(Arrays.equals(fill('a', 5 * BLOCK), IOUtils.toByteArray(item.getInputStream())));
+    item.delete();
+  }
+
+  /**
+   * A stream still open when its item is deleted must not see the data of
+   * the item which is written next with the same budget.
+   */
+  public void testReadAfterDeleteWhileOtherItemIsWritten() throws Exception {
+    byte[] data = fill('a', 3 * BLOCK);
+    FileItem item = write("a", data);
+    InputStream in = item.getInputStream();
+    byte[] read = new byte[3 * BLOCK];
+    int n = in.read(read, 0, 100);
+    item.delete();
+    assertEquals(0, budget.getUsed());
+    // The blocks being read are left to the GC, not returned to the budget
+    assertEquals(0, budget.getAllocated());
+
+    FileItem other = write("b", fill('b', 3 * BLOCK));
+    while (n < read.length) {
+      int r = in.read(read, n, read.length - n);
+      assertTrue(r > 0);
+      n += r;
+    }
+    assertEquals(-1, in.read());
+    in.close();
+    assertTrue(Arrays.equals(data, read));
+    assertTrue(Arrays.equals(fill('b', 3 * BLOCK), other.get()));
+
+    // Once the streams are closed, blocks go back to the budget again
+    other.delete();
+    assertEquals(3 * BLOCK, budget.getAllocated());
+  }
+
+  private static byte[] fill(char c, int length) {
+    byte[] ret = new byte[length];
+    Arrays.fill(ret, (byte) c);
+    return ret;
+  }
+
+  private FileItem write(String name, byte[] data) throws Exception {
+    FileItem item = factory.createItem(name, "application/octet-stream", false, name + ".bin");
+    OutputStream out = item.getOutputStream();
+    // Written in pieces not aligned to the blocks
+    for (int off = 0; off < data.length; off += 700) {
+      out.write(data, off, Math.min(700, data.length - off));
+    }
+    out.close();
+    return item;
+  }
+}
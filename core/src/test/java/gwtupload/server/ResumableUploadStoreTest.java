@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for {@link ResumableUploadStore}.
+ */
+public class ResumableUploadStoreTest extends TestCase {
+
+  private static final int CHUNK = 10;
+
+  private byte[] data;
+  private File directory;
+  private ResumableUploadStore store;
+
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("resumable", "");
+    directory.delete();
+    directory.mkdirs();
+    store = newStore();
+    data = new byte[25];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+  }
+
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  public void testDuplicateChunks() throws Exception {
+    assertFalse(write("k", 0));
+    assertFalse(write("k", 0));
+    assertFalse(write("k", 10));
+    assertEquals(20, store.getOffset("k"));
+    assertTrue(write("k", 20));
+    // A chunk resent after the one which completed the file does not complete it again
+    assertFalse(write("k", 10));
+    assertContent(store.complete("k", "f-0", "application/octet-stream", "a.bin"));
+  }
+
+  public void testLateChunkAfterComplete() throws Exception {
+    write("k", 0);
+    write("k", 10);
+    write("k", 20);
+    FileItem item = store.complete("k", "f-0", "application/octet-stream", "a.bin");
+    assertFalse(write("k", 0));
+    assertFalse(store.getPartialFile("k").exists());
+    assertContent(item);
+
+    // A new upload with the same key starts after a resume request
+    assertEquals(0, store.resume("k"));
+    assertFalse(write("k", 0));
+    assertTrue(store.getPartialFile("k").exists());
+  }
+
+  public void testMisalignedChunk() throws Exception {
+    try {
+      store.write("k", 5, 14, data.length, CHUNK, new ByteArrayInputStream(data, 5, CHUNK));
+      fail("A chunk not aligned to the chunk size must be rejected");
+    } catch (IOException e) {
+    }
+    write("k", 0);
+    try {
+      store.write("k", 10, 19, 40, CHUNK, new ByteArrayInputStream(data, 10, CHUNK));
+      fail("A chunk with a different total must be rejected");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testChunkLimits() throws Exception {
+    assertRejected(0, 0, data.length, 1);
+    assertRejected(0, 2047, 4096, 2048);
+    // Chunks smaller than the min are allowed when the file fits in one
+    assertTrue(store.write("small", 0, 4, 5, CHUNK, new ByteArrayInputStream(data, 0, 5)));
+    // The min size allows too many chunks
+    assertRejected(0, CHUNK - 1, (long) CHUNK * 2 * 1024 * 1024, CHUNK);
+    assertFalse(store.getPartialFile("k").exists());
+  }
+
+  public void testMapFileIsNotRewritten() throws Exception {
+    write("k", 0);
+    File map = new File(directory, ResumableUploadStore.fileName("k") + ".map");
+    long length = map.length();
+    write("k", 20);
+    assertEquals(length, map.length());
+    store = newStore();
+    assertEquals(10, store.getOffset("k"));
+  }
+
+  public void testRangeNotMatchingChunkSize() throws Exception {
+    // Shorter or longer than the chunk size
+    assertRejected(0, 4, data.length, CHUNK);
+    assertRejected(0, 14, data.length, CHUNK);
+    // The last chunk has the rest of the file
+    assertRejected(20, 29, data.length, CHUNK);
+    assertEquals(0, store.getOffset("k"));
+  }
+
+  public void testOutOfOrder() throws Exception {
+    assertFalse(write("k", 20));
+    assertEquals(0, store.getOffset("k"));
+    assertFalse(write("k", 0));
+    assertEquals(10, store.getOffset("k"));
+    assertTrue(write("k", 10));
+    assertEquals(25, store.getOffset("k"));
+    assertContent(store.complete("k", "f-0", "application/octet-stream", "a.bin"));
+    assertFalse(store.getPartialFile("k").exists());
+  }
+
+  public void testResumeAfterRestart() throws Exception {
+    write("k", 0);
+    write("k", 20);
+    store = newStore();
+    assertEquals(10, store.getOffset("k"));
+    assertTrue(write("k", 10));
+    assertContent(store.complete("k", "f-0", "application/octet-stream", "a.bin"));
+  }
+
+  public void testTruncatedChunk() throws Exception {
+    try {
+      store.write("k", 0, 9, data.length, CHUNK, new ByteArrayInputStream(data, 0, 4));
+      fail("A chunk shorter than the chunk size must be rejected");
+    } catch (IOException e) {
+    }
+    assertEquals(0, store.getOffset("k"));
+  }
+
+  private void assertContent(FileItem item) throws IOException {
+    assertEquals(data.length, item.getSize());
+    byte[] content = item.get();
+    for (int i = 0; i < data.length; i++) {
+      assertEquals(data[i], content[i]);
+    }
+    item.delete();
+  }
+
+  private void assertRejected(long start, long end, long total, int chunkSize) {
+    try {
+      store.write("k", start, end, total, chunkSize, new ByteArrayInputStream(new byte[(int) (end - start + 1)]));
+      fail("Chunk " + start + "-" + end + "/" + total + " of " + chunkSize + " bytes must be rejected");
+    } catch (IOException e) {
+    }
+  }
+
+  private ResumableUploadStore newStore() {
+    return new ResumableUploadStore(directory, ResumableUploadStore.DEFAULT_MAX_AGE_MILLIS, CHUNK, 1024);
+  }
+
+  private boolean write(String key, int start) throws IOException {
+    int length = Math.min(CHUNK, data.length - start);
+    return store.write(key, start, start + length - 1, data.length, CHUNK, new ByteArrayInputStream(data, start, length));
+  }
+}
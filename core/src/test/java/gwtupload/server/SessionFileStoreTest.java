@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.File;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * Tests for {@link SessionFileStore}.
+ */
+public class SessionFileStoreTest extends TestCase {
+
+  private static FileItem file(String fieldName, String name) {
+    return new StoredFileItem(fieldName, "text/plain", name, new File(name));
+  }
+
+  private static FileItem field(String fieldName) {
+    StoredFileItem item = new StoredFileItem(fieldName, null, null, null);
+    item.setFormField(true);
+    return item;
+  }
+
+  public void testFind() {
+    SessionFileStore store = new SessionFileStore();
+    FileItem one = file("Upload1", "One.txt");
+    FileItem text = field("comment");
+    store.add(one);
+    store.add(text);
+
+    // Names are case insensitive
+    assertSame(one, store.findByFieldName("upload1"));
+    assertSame(one, store.findByFileName("ONE.TXT"));
+    assertSame(one, store.find("one.txt"));
+    assertSame(one, store.find("UPLOAD1"));
+    assertNull(store.find("two.txt"));
+    // Form fields are found by field name only, and find returns just files
+    assertSame(text, store.findByFieldName("comment"));
+    assertNull(store.find("comment"));
+    // hasFile needs the exact field name of a file
+    assertTrue(store.hasFile("Upload1"));
+    assertFalse(store.hasFile("upload1"));
+    assertFalse(store.hasFile("comment"));
+  }
+
+  public void testFindFirstReceived() {
+    SessionFileStore store = new SessionFileStore();
+    FileItem first = file("upload", "a.txt");
+    FileItem second = file("upload", "a.txt");
+    store.add(first);
+    store.add(second);
+    assertSame(first, store.find("upload"));
+    assertSame(first, store.find("a.txt"));
+    store.remove(first);
+    assertSame(second, store.find("upload"));
+    assertSame(second, store.find("a.txt"));
+    store.remove(second);
+    assertNull(store.find("upload"));
+    assertNull(store.find("a.txt"));
+  }
+
+  public void testIteratorFailsWhenStoreIsModified() {
+    SessionFileStore store = new SessionFileStore();
+    FileItem one = file("a", "one.txt");
+    FileItem two = file("b", "two.txt");
+    store.add(one);
+    store.add(two);
+    store.add(file("c", "three.txt"));
+    List<FileItem> list = store.asList();
+
+    try {
+      for (FileItem item : list) {
+        if (item == one) {
+          store.remove(two);
+        }
+      }
+      fail("The removal of an item not seen yet was not detected");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+    assertEquals(2, list.size());
+
+    try {
+      for (FileItem item : list) {
+        list.add(file("d", item.getName()));
+      }
+      fail("The addition of an item was not detected");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+
+    Iterator<FileItem> it = list.iterator();
+    it.next();
+    list.clear();
+    try {
+      it.next();
+      fail("Clearing the store was not detected");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+
+  public void testIteratorRemove() {
+    SessionFileStore store = new SessionFileStore();
+    store.add(file("a", "one.txt"));
+    store.add(file("b", "two.txt"));
+    store.add(file("c", "three.txt"));
+    for (Iterator<FileItem> it = store.asList().iterator(); it.hasNext();) {
+      if (!it.next().getName().equals("two.txt")) {
+        it.remove();
+      }
+    }
+    assertEquals(1, store.size());
+    assertEquals("two.txt", store.asList().get(0).getName());
+    assertNull(store.find("one.txt"));
+    assertNull(store.find("c"));
+  }
+
+  public void testViewWritesThrough() {
+    SessionFileStore store = new SessionFileStore();
+    List<FileItem> list = store.asList();
+    FileItem one = file("a", "one.txt");
+    FileItem two = file("b", "two.txt");
+    FileItem three = file("c", "three.txt");
+    list.add(one);
+    list.add(two);
+    list.add(three);
+    // An item is not added twice
+    list.add(one);
+    assertEquals(3, store.size());
+    assertSame(two, store.find("two.txt"));
+
+    list.remove(two);
+    assertEquals(2, store.size());
+    assertNull(store.find("b"));
+    assertSame(three, list.get(1));
+
+    FileItem four = file("d", "four.txt");
+    assertSame(one, list.set(0, four));
+    assertNull(store.find("one.txt"));
+    assertSame(four, store.find("d"));
+    assertSame(four, list.get(0));
+    assertSame(three, list.get(1));
+
+    store.add(one);
+    assertEquals(3, list.size());
+    assertTrue(list.contains(one));
+
+    list.clear();
+    assertEquals(0, store.size());
+    assertNull(store.find("d"));
+    assertTrue(list.isEmpty());
+
+    try {
+      list.add(0, one);
+      list.add(0, two);
+      fail("Items can only be added at the end");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TokenBucket}.
+ */
+public class TokenBucketTest extends TestCase {
+
+  private static final long SECOND = 1000000000L;
+
+  public void testBurstIsLimitedByCapacity() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000000, 1000);
+    // Idle time does not accumulate more tokens than the capacity
+    Thread.sleep(50);
+    assertEquals(2 * SECOND / 1000, bucket.take(3000));
+  }
+
+  public void testDebtAccumulates() {
+    TokenBucket bucket = new TokenBucket(1000, 1000);
+    assertEquals(0, bucket.take(1000));
+    // Half a second of debt, minus the few tokens refilled meanwhile
+    long wait = bucket.take(500);
+    assertTrue("wait " + wait, wait <= SECOND / 2 && wait > SECOND / 2 - SECOND / 20);
+    // Concurrent consumers queue behind the previous debt
+    wait = bucket.take(500);
+    assertTrue("wait " + wait, wait <= SECOND && wait > SECOND - SECOND / 20);
+  }
+
+  public void testDebtIsPaidOverTime() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000000, 1000);
+    long wait = bucket.take(1500);
+    assertTrue("wait " + wait, wait > 0 && wait <= SECOND / 2000);
+    Thread.sleep(wait / 1000000 + 5);
+    assertEquals(0, bucket.take(0));
+    assertEquals(0, bucket.take(100));
+  }
+
+  public void testIdle() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000, 1000);
+    assertFalse(bucket.isIdle(SECOND));
+    Thread.sleep(20);
+    assertTrue(bucket.isIdle(SECOND / 1000));
+    bucket.take(1);
+    assertFalse(bucket.isIdle(SECOND));
+  }
+
+  public void testWithinCapacity() {
+    TokenBucket bucket = new TokenBucket(1000, 4000);
+    assertEquals(0, bucket.take(1000));
+    assertEquals(0, bucket.take(3000));
+    assertTrue(bucket.take(1000) > 0);
+  }
+}
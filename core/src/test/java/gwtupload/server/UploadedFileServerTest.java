@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010 Manuel Carrasco Moñino. (manolo at apache/org)
+ * http://code.google.com/p/gwtupload
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwtupload.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+
+/**
+ * Tests for {@link UploadedFileServer}.
+ */
+public class UploadedFileServerTest extends TestCase {
+
+  private static final long[] NOT_SATISFIABLE = {-1, -1};
+
+  private static void assertRange(long[] expected, String header, long size) {
+    long[] range = UploadedFileServer.parseRange(header, size);
+    if (expected == null) {
+      assertNull(header, range);
+    } else {
+      assertNotNull(header, range);
+      assertEquals(header, expected[0], range[0]);
+      assertEquals(header, expected[1], range[1]);
+    }
+  }
+
+  public void testParseRange() {
+    assertRange(new long[] {0, 499}, "bytes=0-499", 1000);
+    assertRange(new long[] {500, 999}, "bytes=500-", 1000);
+    assertRange(new long[] {500, 999}, "bytes=-500", 1000);
+    // The last byte is beyond the end
+    assertRange(new long[] {900, 999}, "bytes=900-5000", 1000);
+    // The suffix is longer than the content
+    assertRange(new long[] {0, 999}, "bytes=-5000", 1000);
+  }
+
+  public void testParseRangeIgnored() {
+    assertRange(null, null, 1000);
+    assertRange(null, "bytes=-", 1000);
+    assertRange(null, "bytes=0-1,5-6", 1000);
+    assertRange(null, "items=0-1", 1000);
+    // The last byte is before the first one
+    assertRange(null, "bytes=5-2", 1000);
+    assertRange(null, "bytes=99999999999999999999-", 1000);
+  }
+
+  public void testParseRangeNotSatisfiable() {
+    // An empty suffix
+    assertRange(NOT_SATISFIABLE, "bytes=-0", 1000);
+    // The first byte is beyond the end
+    assertRange(NOT_SATISFIABLE, "bytes=1000-", 1000);
+    assertRange(NOT_SATISFIABLE, "bytes=2000-3000", 1000);
+    assertRange(NOT_SATISFIABLE, "bytes=0-", 0);
+    assertRange(NOT_SATISFIABLE, "bytes=-10", 0);
+  }
+
+  public void testServeRangeOfFile() throws Exception {
+    byte[] content = new byte[200 * 1024];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    FileItem item = new DiskFileItemFactory(0, null).createItem("file", "application/octet-stream", false, "a.bin");
+    OutputStream os = item.getOutputStream();
+    os.write(content);
+    os.close();
+    File file = UploadedFileServer.getStoreLocation(item);
+    assertNotNull(file);
+
+    try {
+      Map<String, String> headers = new HashMap<String, String>();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      HttpServletRequest request = request("GET", "Range", "bytes=1000-150000");
+      UploadedFileServer.serve(request, response(headers, body), item);
+
+      assertEquals("206", headers.get("status"));
+      assertEquals("bytes 1000-150000/" + content.length, headers.get("Content-Range"));
+      assertEquals("149001", headers.get("Content-Length"));
+      byte[] sent = body.toByteArray();
+      assertEquals(149001, sent.length);
+      for (int i = 0; i < sent.length; i++) {
+        assertEquals(content[1000 + i], sent[i]);
+      }
+    } finally {
+      item.delete();
+    }
+  }
+
+  private static HttpServletRequest request(final String method, final String header, final String value) {
+    return (HttpServletRequest) Proxy.newProxyInstance(UploadedFileServerTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getMethod")) {
+              return method;
+            }
+            if (m.getName().equals("getHeader")) {
+              return header.equals(args[0]) ? value : null;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static HttpServletResponse response(final Map<String, String> headers, final ByteArrayOutputStream body) {
+    final ServletOutputStream out = new ServletOutputStream() {
+      public boolean isReady() {
+        return true;
+      }
+
+      public void setWriteListener(WriteListener listener) {
+      }
+
+      public void write(int b) {
+        body.write(b);
+      }
+
+      public void write(byte[] b, int off, int len) {
+        body.write(b, off, len);
+      }
+    };
+    return (HttpServletResponse) Proxy.newProxyInstance(UploadedFileServerTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getOutputStream")) {
+              return out;
+            }
+            if (m.getName().equals("setHeader")) {
+              headers.put((String) args[0], (String) args[1]);
+            } else if (m.getName().equals("setStatus")) {
+              headers.put("status", String.valueOf(args[0]));
+            }
+            return null;
+          }
+        });
+  }
+}
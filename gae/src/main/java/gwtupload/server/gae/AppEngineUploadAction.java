@@ -87,7 +87,8 @@ public class AppEngineUploadAction extends UploadAction {
 
   @Override
   protected final AbstractUploadListener getCurrentListener(
-      HttpServletRequest request) {
+      HttpServletRequest request, String uploadName) {
+    // Listeners are stored in memcache, one per session
     return MemCacheUploadListener.current(request.getSession().getId());
   }
 
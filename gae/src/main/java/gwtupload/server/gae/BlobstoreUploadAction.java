@@ -237,7 +237,8 @@ public class BlobstoreUploadAction extends UploadAction {
 
   @Override
   protected final AbstractUploadListener getCurrentListener(
-      HttpServletRequest request) {
+      HttpServletRequest request, String uploadName) {
+    // Listeners are stored in memcache, one per session
     return MemCacheUploadListener.current(request.getSession().getId());
   }
 